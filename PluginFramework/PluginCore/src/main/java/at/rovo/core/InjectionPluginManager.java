@@ -1,7 +1,11 @@
 package at.rovo.core;
 
+import at.rovo.core.classloader.ActivationPipeline;
+import at.rovo.core.classloader.ClassLoadingMetrics;
 import at.rovo.core.classloader.IClassLoaderStrategy;
 import at.rovo.core.classloader.InjectionLoaderStrategyDecorator;
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.PluginIndex;
 import at.rovo.core.classloader.PluginLoaderStrategy;
 import at.rovo.core.classloader.StrategyClassLoader;
 import at.rovo.core.injection.InjectionControllerImpl;
@@ -10,6 +14,7 @@ import at.rovo.common.plugin.IPlugin;
 import at.rovo.common.plugin.PluginException;
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -31,6 +36,9 @@ import java.util.logging.Logger;
  * To provide the injection mechanism {@link InjectionLoaderStrategyDecorator} compiles a call to a {@link
  * at.rovo.core.injection.IInjectionController} into the component, which handles the injection of {@link
  * at.rovo.common.annotations.Inject} annotated fields.
+ * <p/>
+ * The classes of a plug-in are read and instrumented concurrently by an {@link ActivationPipeline} before they get
+ * defined.
  *
  * @author Roman Vottner
  * @see SimplePluginManager
@@ -91,55 +99,102 @@ public class InjectionPluginManager extends PluginManager
             }
 
             URL fileURL = meta.getJarFileURL();
-            File jarFile = new File(fileURL.toURI());
+            JarSnapshot snapshot = meta.getJarSnapshot();
 
-            LOGGER.log(Level.INFO, "Scanning Jar file {0} for classes of plugin {1}",
-                       new Object[] {jarFile, pluginName});
-            // get all classes provided by the jar file
-            List<String> foundFiles = ClassFinder.scanJarFileForClasses(jarFile);
+            // get all classes provided by the jar file. Plug-ins packaged with an index list their classes already
+            PluginIndex index = meta.getPluginIndex();
+            List<String> foundFiles;
+            if (index != null)
+            {
+                foundFiles = index.getClassNames();
+            }
+            else if (snapshot != null)
+            {
+                foundFiles = snapshot.getClassNames();
+            }
+            else
+            {
+                File jarFile = new File(fileURL.toURI());
+                LOGGER.log(Level.INFO, "Scanning Jar file {0} for classes of plugin {1}",
+                           new Object[] {jarFile, pluginName});
+                foundFiles = ClassFinder.scanJarFileForClasses(jarFile);
+            }
 
             // set the strategy for loading plug-ins
             Set<IClassLoaderStrategy> strategy = new LinkedHashSet<>();
-            PluginLoaderStrategy pluginStrategy = new PluginLoaderStrategy(fileURL);
+            PluginLoaderStrategy pluginStrategy = new PluginLoaderStrategy(fileURL, snapshot);
 
             // decorate the strategy to insert new code into the class bytes
             InjectionLoaderStrategyDecorator injectionStrategy = new InjectionLoaderStrategyDecorator(pluginStrategy);
             strategy.add(injectionStrategy);
-            injectionStrategy.setJarFile(jarFile);
 
-            // loads classes that are marked as to export with a new, separate
-            // classloader and add the classes to the common classloader
-            this.loadExportedClasses(meta, strategy);
-
-            // create a new class loader for this plug-in which holds all
-            // non-exported classes
-            StrategyClassLoader pluginLoader = new StrategyClassLoader(this.commonClassLoader, strategy);
-            pluginLoader.setName("Plugin classloader for: " + pluginName);
-
-            // load all classes for this plug-in with our new class loader
+            StrategyClassLoader pluginLoader = null;
             Class<?> plugin = null;
-            for (String className : foundFiles)
+            try
             {
-                LOGGER.log(Level.INFO, "Loading class of plugin {0}: {1}", new Object[] {pluginName, className});
-                // load the class object for the respective class
-                Class<?> clazz = this.loadPlugin(meta, className, pluginLoader);
+                // loads classes that are marked as to export with a new, separate
+                // classloader and add the classes to the common classloader
+                this.loadExportedClasses(meta, strategy);
 
-                if (clazz != null)
+                // create a new class loader for this plug-in which holds all
+                // non-exported classes
+                pluginLoader = new StrategyClassLoader(this.commonClassLoader, strategy);
+                pluginLoader.setName("Plugin classloader for: " + pluginName);
+                pluginLoader.setDelegationPolicy(meta.getDelegationPolicy());
+                pluginLoader.setMetrics(ClassLoadingMetrics.forPlugin(pluginName));
+                pluginLoader.setPluginIndex(index);
+
+                // read and instrument the non-exported classes concurrently and define them afterwards with super
+                // classes first, exported classes got loaded already
+                List<String> privateClasses = new ArrayList<>();
+                List<String> exportedClasses = new ArrayList<>();
+                for (String className : foundFiles)
                 {
-                    // check if we found a IPlugin implementation
-                    Class<?>[] interfaces = clazz.getInterfaces();
-                    for (Class<?> iface : interfaces)
+                    (meta.isExported(className) ? exportedClasses : privateClasses).add(className);
+                }
+                List<String> classesToLoad = new ArrayList<>(ActivationPipeline.prepare(pluginLoader, privateClasses));
+                classesToLoad.addAll(exportedClasses);
+
+                // load all classes for this plug-in with our new class loader
+                for (String className : classesToLoad)
+                {
+                    LOGGER.log(Level.INFO, "Loading class of plugin {0}: {1}", new Object[] {pluginName, className});
+                    // load the class object for the respective class
+                    Class<?> clazz = this.loadPlugin(meta, className, pluginLoader);
+
+                    if (clazz != null)
                     {
-                        if (iface.getName().equals(IPlugin.class.getName()))
+                        // check if we found a IPlugin implementation
+                        Class<?>[] interfaces = clazz.getInterfaces();
+                        for (Class<?> iface : interfaces)
                         {
-                            plugin = clazz;
-                            meta.setClassObj(plugin);
-                            meta.setClassLoader(pluginLoader);
-                            break;
+                            if (iface.getName().equals(IPlugin.class.getName()))
+                            {
+                                plugin = clazz;
+                                meta.setClassObj(plugin);
+                                meta.setClassLoader(pluginLoader);
+                                break;
+                            }
                         }
                     }
                 }
+
+                LOGGER.log(Level.FINE, "Components of plugin {0}: {1}",
+                           new Object[] {pluginName, injectionStrategy.getComponentMetadata()});
+            }
+            finally
+            {
+                // all classes of the plug-in got loaded or loading them failed, so don't keep the jar file open any
+                // longer and drop the classes kept for instrumentation
+                if (pluginLoader != null)
+                {
+                    pluginLoader.discardPreparedClasses();
+                }
+                pluginStrategy.release();
+                injectionStrategy.close();
             }
+            LOGGER.log(Level.FINE, "Class loading metrics: {0}, collected composite class loaders: {1}",
+                       new Object[] {pluginLoader.getMetrics(), this.commonClassLoader.getClearedLoaderCount()});
 
             if (plugin != null)
             {
@@ -227,6 +282,24 @@ public class InjectionPluginManager extends PluginManager
         }
     }
 
+    @Override
+    public void unload(String name)
+    {
+        PluginMeta meta = this.pluginData.get(name);
+        if (meta != null && meta.getClassLoader() instanceof StrategyClassLoader)
+        {
+            // discard the class pool used for instrumenting the classes of the plug-in
+            for (IClassLoaderStrategy strategy : ((StrategyClassLoader) meta.getClassLoader()).getStrategies())
+            {
+                if (strategy instanceof InjectionLoaderStrategyDecorator)
+                {
+                    ((InjectionLoaderStrategyDecorator) strategy).close();
+                }
+            }
+        }
+        super.unload(name);
+    }
+
     @Override
     public void close()
     {
@@ -1,7 +1,13 @@
 package at.rovo.core;
 
+import at.rovo.core.classloader.ClassLoadingMetrics;
 import at.rovo.core.classloader.DelegationClassLoader;
+import at.rovo.core.classloader.DelegationPolicy;
 import at.rovo.core.classloader.IClassLoaderStrategy;
+import at.rovo.core.classloader.JarFilePool;
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.LoadingMode;
+import at.rovo.core.classloader.PluginIndex;
 import at.rovo.core.classloader.PluginLoaderStrategy;
 import at.rovo.core.classloader.StrategyClassLoader;
 import at.rovo.core.filemonitor.ClassFilter;
@@ -11,9 +17,11 @@ import at.rovo.core.filemonitor.IDirectoryChangeListener;
 import at.rovo.core.filemonitor.JarFilter;
 import at.rovo.common.plugin.IPlugin;
 import at.rovo.common.plugin.PluginException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -26,7 +34,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,6 +79,9 @@ public abstract class PluginManager implements IDirectoryChangeListener
     protected Set<IPluginListener> listeners;
     /** The class loader which holds the singleton components **/
     protected DelegationClassLoader commonClassLoader = null;
+    /** Defines whether plug-ins are loaded from their jar files directly or from a private snapshot of the jar **/
+    protected volatile LoadingMode loadingMode =
+            LoadingMode.parse(System.getProperty("at.rovo.core.loadingMode"));
 
     /**
      * The thread which takes care of re-checking if a needed dependency was already loaded
@@ -190,6 +203,31 @@ public abstract class PluginManager implements IDirectoryChangeListener
         return this.pluginDir;
     }
 
+    /**
+     * Defines how plug-ins loaded afterwards access their jar files. In {@link LoadingMode#SNAPSHOT} mode the jar file
+     * is copied once on loading the plug-in and classes are served from this copy afterwards.
+     * <p/>
+     * The initial mode can be set via the <em>at.rovo.core.loadingMode</em> system property and defaults to {@link
+     * LoadingMode#DIRECT}.
+     *
+     * @param loadingMode
+     *         The mode to use for loading plug-ins
+     */
+    public void setLoadingMode(LoadingMode loadingMode)
+    {
+        this.loadingMode = loadingMode;
+    }
+
+    /**
+     * Returns the mode plug-ins are loaded with.
+     *
+     * @return The mode used for loading plug-ins
+     */
+    public LoadingMode getLoadingMode()
+    {
+        return this.loadingMode;
+    }
+
     /**
      * Adds a listener to an internal List to objects who get notified when a plug-in has been loaded or removed.
      *
@@ -228,6 +266,8 @@ public abstract class PluginManager implements IDirectoryChangeListener
                 this.reloadPlugin(file);
                 break;
             case FILE_MODIFIED:
+                // close any pooled handle of the outdated jar file before the new version gets loaded
+                JarFilePool.getInstance().release(file);
                 try
                 {
                     this.unload(this.getPluginNameBasedOnJar(file.toURI().toURL().toString()));
@@ -240,6 +280,7 @@ public abstract class PluginManager implements IDirectoryChangeListener
                 this.reloadPlugin(file);
                 break;
             case FILE_DELETED:
+                JarFilePool.getInstance().release(file);
                 // On dragging a jar inside the plug-in directory to a different location a FILE_DELETED action will be
                 // propagated by the FileMonitor if automatic unloading of the plug-in should not happen, comment out
                 // the following lines
@@ -365,7 +406,8 @@ public abstract class PluginManager implements IDirectoryChangeListener
     /**
      * Loads or reloads a plug-in in from of a certain .jar- or .zip- archive and looks in the
      * MANIFEST/MANIFEST.MF-file, lying inside the archive, for a "Plugin-Class:"-entry to know which class in the
-     * archive will be the starting point.
+     * archive will be the starting point. If the archive contains a {@link PluginIndex}, the entry point and the
+     * further plug-in attributes are taken from the index instead.
      * <p/>
      * Every plug-in is loaded in a separate ClassLoader, which allows Plug-ins to be unloaded from and reloaded into
      * the system. Note however that the unloading of already loaded classes is not guaranteed as they are only unloaded
@@ -379,19 +421,57 @@ public abstract class PluginManager implements IDirectoryChangeListener
     {
         String pluginClass;
         Attributes attributes = null;
+        JarSnapshot snapshot = null;
+        PluginIndex index = null;
         try
         {
             // Extract the entry-point of the plug-in which is defined by the 'Plugin-Class'-field in the
-            // MANIFEST.MF-file
-            JarFile jarFile = new JarFile(file);
-            if (jarFile.getManifest() == null)
+            // MANIFEST.MF-file. Plug-ins packaged with an index contain the attributes in their index already
+            Manifest manifest = null;
+            if (LoadingMode.SNAPSHOT.equals(this.loadingMode))
+            {
+                // copy the jar once - the manifest as well as all classes are read from this copy afterwards
+                snapshot = JarSnapshot.create(file);
+                byte[] rawIndex = snapshot.read(PluginIndex.ENTRY_NAME);
+                if (rawIndex != null)
+                {
+                    index = PluginIndex.read(rawIndex);
+                }
+                else
+                {
+                    manifest = snapshot.getManifest();
+                }
+            }
+            else
+            {
+                // the pooled handle is reused by the plug-in's loader strategy and released once loading finished
+                try (JarFilePool.Handle handle = JarFilePool.getInstance().acquire(file))
+                {
+                    JarFile jarFile = handle.getJarFile();
+                    JarEntry indexEntry = jarFile.getJarEntry(PluginIndex.ENTRY_NAME);
+                    if (indexEntry != null)
+                    {
+                        index = PluginIndex.read(this.readEntry(jarFile, indexEntry));
+                    }
+                    else
+                    {
+                        manifest = jarFile.getManifest();
+                    }
+                }
+            }
+            if (index != null)
+            {
+                LOGGER.log(Level.FINE, "Found {0} inside jar {1}", new Object[] {index, file});
+                attributes = index.getAttributes();
+            }
+            else if (manifest == null)
             {
-                jarFile.close();
                 throw new IllegalArgumentException("Archive does not have a META-INF/MANIFEST.MF-file");
             }
-            attributes = jarFile.getManifest().getMainAttributes();
-            // releases the lock on the loaded jar file
-            jarFile.close();
+            else
+            {
+                attributes = manifest.getMainAttributes();
+            }
         }
         catch (IOException e)
         {
@@ -399,7 +479,7 @@ public abstract class PluginManager implements IDirectoryChangeListener
                        e);
         }
 
-        if (attributes == null)
+        if (attributes == null || attributes.getValue("Plugin-Class") == null)
         {
             LOGGER.log(Level.WARNING, "Could not load plug-in of file " + file +
                                       " as attributes could not be found within the JAR files MANIFEST.MF");
@@ -420,7 +500,20 @@ public abstract class PluginManager implements IDirectoryChangeListener
         List<String> required = this.parseClassSet(rawRequiredClasses);
         LOGGER.log(Level.INFO, "Found required classes for {0}: {1}", new Object[] {file, required});
 
-        this.reloadPlugin(file, pluginClass, export, required);
+        // the policy specifies if the classes of the plugin should be loaded before asking the parent class loader
+        DelegationPolicy policy;
+        try
+        {
+            policy = DelegationPolicy.fromManifest(attributes);
+        }
+        catch (IllegalArgumentException iaEx)
+        {
+            LOGGER.log(Level.WARNING, "Invalid class loading policy of {0}: {1}. Falling back to parent-first",
+                       new Object[] {file, iaEx.getLocalizedMessage()});
+            policy = DelegationPolicy.PARENT_FIRST;
+        }
+
+        this.reloadPlugin(file, pluginClass, export, required, snapshot, index, policy);
     }
 
     /**
@@ -440,6 +533,33 @@ public abstract class PluginManager implements IDirectoryChangeListener
      *         The name to register the plugin with
      */
     protected void reloadPlugin(File jarFile, String pluginName, List<String> exported, List<String> required)
+    {
+        this.reloadPlugin(jarFile, pluginName, exported, required, null, null, DelegationPolicy.PARENT_FIRST);
+    }
+
+    /**
+     * Loads or reloads a plug-in, therefore this method caches the archive and the class-name which represent the
+     * starting point of the plug-in. If a snapshot of the archive is provided, the plug-in is loaded from the snapshot
+     * instead of the archive itself.
+     *
+     * @param jarFile
+     *         The JAR file to load
+     * @param pluginName
+     *         The name to register the plugin with
+     * @param exported
+     *         The names of the classes exported by the plug-in
+     * @param required
+     *         The names of the classes required by the plug-in
+     * @param snapshot
+     *         The snapshot of the JAR file to load the plug-in from or null if the JAR file should be accessed
+     *         directly
+     * @param index
+     *         The index of the plug-in created at build time or null if the JAR file does not contain an index
+     * @param policy
+     *         The policy which specifies whether the classes of the plug-in are loaded parent-first or child-first
+     */
+    protected void reloadPlugin(File jarFile, String pluginName, List<String> exported, List<String> required,
+                                JarSnapshot snapshot, PluginIndex index, DelegationPolicy policy)
     {
         // if the plug-in was loaded before there has to be
         // still a valid PluginMeta-instance for this plug-in,
@@ -463,6 +583,9 @@ public abstract class PluginManager implements IDirectoryChangeListener
         {
             e.printStackTrace();
         }
+        meta.setJarSnapshot(snapshot);
+        meta.setPluginIndex(index);
+        meta.setDelegationPolicy(policy);
         this.pluginData.put(pluginName, meta);
         this.reloadPlugin(pluginName);
     }
@@ -492,20 +615,36 @@ public abstract class PluginManager implements IDirectoryChangeListener
 
             LOGGER.log(Level.INFO, "Creating strategy for {0}", new Object[] {pluginName});
             Set<IClassLoaderStrategy> strategy = new HashSet<>();
-            strategy.add(new PluginLoaderStrategy(fileURL));
+            PluginLoaderStrategy pluginStrategy = new PluginLoaderStrategy(fileURL, meta.getJarSnapshot());
+            strategy.add(pluginStrategy);
 
-            // load classes that are marked as to export in the common classloader
-            this.loadExportedClasses(meta, strategy);
+            StrategyClassLoader pluginLoader;
+            Class<?> result;
+            try
+            {
+                // load classes that are marked as to export in the common classloader
+                this.loadExportedClasses(meta, strategy);
 
-            // load the rest of the plugin with the plugins own respective classloader which is a child of the commons
-            // class loader
-            StrategyClassLoader pluginLoader = new StrategyClassLoader(this.commonClassLoader, strategy);
+                // load the rest of the plugin with the plugins own respective classloader which is a child of the
+                // commons class loader
+                pluginLoader = new StrategyClassLoader(this.commonClassLoader, strategy);
+                pluginLoader.setDelegationPolicy(meta.getDelegationPolicy());
+                pluginLoader.setMetrics(ClassLoadingMetrics.forPlugin(pluginName));
+                pluginLoader.setPluginIndex(meta.getPluginIndex());
 
-            meta.setClassLoader(pluginLoader);
+                meta.setClassLoader(pluginLoader);
 
-            LOGGER.log(Level.INFO, "Loading plugin's main class: {0}", new Object[] {pluginName});
-            Class<?> result = pluginLoader.loadClass(pluginName);
-            meta.setClassObj(result);
+                LOGGER.log(Level.INFO, "Loading plugin's main class: {0}", new Object[] {pluginName});
+                result = pluginLoader.loadClass(pluginName);
+                meta.setClassObj(result);
+            }
+            finally
+            {
+                // loading finished or failed, so don't keep the jar file open any longer
+                pluginStrategy.release();
+            }
+            LOGGER.log(Level.FINE, "Class loading metrics: {0}, collected composite class loaders: {1}",
+                       new Object[] {pluginLoader.getMetrics(), this.commonClassLoader.getClearedLoaderCount()});
             if (result != null)
             {
                 for (IPluginListener listener : this.listeners)
@@ -687,6 +826,34 @@ public abstract class PluginManager implements IDirectoryChangeListener
         return "";
     }
 
+    /**
+     * Reads the content of an entry of an open jar file.
+     *
+     * @param jarFile
+     *         The jar file containing the entry
+     * @param entry
+     *         The entry to read
+     *
+     * @return The content of the entry
+     *
+     * @throws IOException
+     *         If the entry could not be read
+     */
+    private byte[] readEntry(JarFile jarFile, JarEntry entry) throws IOException
+    {
+        try (InputStream is = jarFile.getInputStream(entry))
+        {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }
+    }
+
     /**
      * Parses a set of classes which are separated by a blank and adds them to the list which is then returned.
      *
@@ -716,6 +883,10 @@ public abstract class PluginManager implements IDirectoryChangeListener
     /**
      * Add classes that are marked as export for the respective plugin to the common classloader and adds a reference of
      * the class file loaded to the plugin's meta data.
+     * <p/>
+     * All exported classes of a plug-in are defined by a single composite class loader which is registered with the
+     * common class loader under the name of the plug-in. Classes exported together can therefore access each others
+     * package-private members.
      *
      * @param meta
      *         The plugin's meta data which hold the information of the classes to load
@@ -724,10 +895,16 @@ public abstract class PluginManager implements IDirectoryChangeListener
      */
     protected final void loadExportedClasses(PluginMeta meta, Set<IClassLoaderStrategy> strategies)
     {
+        if (meta.getExportedClasses().isEmpty())
+        {
+            return;
+        }
+
+        StrategyClassLoader loader = new StrategyClassLoader(this.commonClassLoader, strategies);
+        loader.setMetrics(ClassLoadingMetrics.forPlugin(meta.getDeclaredClassName()));
+        this.commonClassLoader.addLoaderForName(meta.getDeclaredClassName(), loader);
         for (String classToExport : meta.getExportedClasses())
         {
-            StrategyClassLoader loader = new StrategyClassLoader(this.commonClassLoader, strategies);
-            this.commonClassLoader.addLoaderForName(classToExport, loader);
             Class<?> export = null;
             try
             {
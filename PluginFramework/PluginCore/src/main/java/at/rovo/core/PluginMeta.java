@@ -1,6 +1,9 @@
 package at.rovo.core;
 
 import at.rovo.common.plugin.IPlugin;
+import at.rovo.core.classloader.DelegationPolicy;
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.PluginIndex;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collections;
@@ -27,6 +30,12 @@ public class PluginMeta
     private ClassLoader classLoader = null;
     /** The jar file containing the plug-in **/
     private URL jarFile = null;
+    /** The snapshot of the jar file if the plug-in is loaded from a private copy of the jar **/
+    private JarSnapshot jarSnapshot = null;
+    /** The build-time index of the plug-in if the jar file contains one **/
+    private PluginIndex pluginIndex = null;
+    /** Specifies whether the plug-in's classes are loaded parent-first or child-first **/
+    private DelegationPolicy delegationPolicy = DelegationPolicy.PARENT_FIRST;
     /** The IPlugin implementing class **/
     private Class<?> pluginClass = null;
     /** The loaded and initialized plug-in **/
@@ -153,6 +162,69 @@ public class PluginMeta
         return fileName;
     }
 
+    /**
+     * Sets the snapshot of the jar file the plug-in should be loaded from.
+     *
+     * @param snapshot
+     *         The snapshot of the jar file or null if the plug-in should be loaded from the jar file directly
+     */
+    public void setJarSnapshot(JarSnapshot snapshot)
+    {
+        this.jarSnapshot = snapshot;
+    }
+
+    /**
+     * Returns the snapshot of the jar file the plug-in is loaded from.
+     *
+     * @return The snapshot of the jar file or null if the plug-in is loaded from the jar file directly
+     */
+    public JarSnapshot getJarSnapshot()
+    {
+        return this.jarSnapshot;
+    }
+
+    /**
+     * Sets the index of the plug-in which was created at build time.
+     *
+     * @param pluginIndex
+     *         The index of the plug-in or null if the jar file does not contain an index
+     */
+    public void setPluginIndex(PluginIndex pluginIndex)
+    {
+        this.pluginIndex = pluginIndex;
+    }
+
+    /**
+     * Returns the index of the plug-in which was created at build time.
+     *
+     * @return The index of the plug-in or null if the jar file does not contain an index
+     */
+    public PluginIndex getPluginIndex()
+    {
+        return this.pluginIndex;
+    }
+
+    /**
+     * Sets the policy which specifies whether the classes of the plug-in are loaded parent-first or child-first.
+     *
+     * @param delegationPolicy
+     *         The delegation policy of the plug-in
+     */
+    public void setDelegationPolicy(DelegationPolicy delegationPolicy)
+    {
+        this.delegationPolicy = delegationPolicy;
+    }
+
+    /**
+     * Returns the policy which specifies whether the classes of the plug-in are loaded parent-first or child-first.
+     *
+     * @return The delegation policy of the plug-in
+     */
+    public DelegationPolicy getDelegationPolicy()
+    {
+        return this.delegationPolicy;
+    }
+
     /**
      * Sets the loaded class object of the class that implements the {@link IPlugin} interface.
      *
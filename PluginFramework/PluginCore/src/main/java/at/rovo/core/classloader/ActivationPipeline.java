@@ -0,0 +1,158 @@
+package at.rovo.core.classloader;
+
+import at.rovo.core.util.ClassFileInspector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prepares the classes of a plug-in concurrently before they get defined.
+ * <p/>
+ * Reading the bytes of a class and instrumenting them does not depend on any other class of the plug-in, so {@link
+ * #prepare(StrategyClassLoader, List)} hands these steps for all classes to a bounded pool of worker threads via {@link
+ * StrategyClassLoader#prepareClass(String)}. The classes are returned ordered by the depth of their super classes
+ * within the plug-in, so a super class gets defined before its subclasses when the classes are loaded in the returned
+ * order afterwards.
+ * <p/>
+ * The number of worker threads is configured via the system property <em>at.rovo.core.activation.threads</em> and
+ * defaults to the number of available processors. A value below 2 disables the concurrent preparation.
+ *
+ * @author Roman Vottner
+ */
+public final class ActivationPipeline
+{
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(ActivationPipeline.class.getName());
+    /** The number of worker threads preparing classes **/
+    private static final int THREADS =
+            Integer.getInteger("at.rovo.core.activation.threads", Runtime.getRuntime().availableProcessors());
+
+    private ActivationPipeline()
+    {
+
+    }
+
+    /**
+     * Prepares the given classes concurrently and returns them in the order they should be defined in.
+     * <p/>
+     * Classes which could not be prepared are left to the regular class loading process, which reports any failure on
+     * defining the class.
+     *
+     * @param loader
+     *         The class loader to prepare the classes for
+     * @param classNames
+     *         The fully qualified names of the classes to prepare
+     *
+     * @return The names of the classes ordered by the depth of their super classes within the given classes
+     */
+    public static List<String> prepare(StrategyClassLoader loader, List<String> classNames)
+    {
+        if (THREADS < 2 || classNames.size() < 2)
+        {
+            return classNames;
+        }
+
+        List<Future<String>> superClasses = new ArrayList<>(classNames.size());
+        for (String className : classNames)
+        {
+            superClasses.add(Workers.EXECUTOR.submit(() ->
+            {
+                byte[] classBytes = loader.prepareClass(className);
+                return classBytes != null ? ClassFileInspector.getSuperClassName(classBytes) : null;
+            }));
+        }
+
+        Map<String, String> superClassOf = new HashMap<>();
+        for (int i = 0; i < classNames.size(); i++)
+        {
+            try
+            {
+                superClassOf.put(classNames.get(i), superClasses.get(i).get());
+            }
+            catch (ExecutionException eEx)
+            {
+                LOGGER.log(Level.WARNING, "Could not prepare class {0}: {1}",
+                           new Object[] {classNames.get(i), eEx.getCause().getLocalizedMessage()});
+                superClassOf.put(classNames.get(i), null);
+            }
+            catch (InterruptedException iEx)
+            {
+                Thread.currentThread().interrupt();
+                for (Future<String> superClass : superClasses)
+                {
+                    superClass.cancel(false);
+                }
+                return classNames;
+            }
+        }
+
+        Map<String, Integer> depths = new HashMap<>();
+        for (String className : classNames)
+        {
+            depths.put(className, depth(className, superClassOf));
+        }
+        List<String> ordered = new ArrayList<>(classNames);
+        // the sort is stable, so classes of the same depth keep their original order
+        ordered.sort(Comparator.comparing(depths::get));
+        return ordered;
+    }
+
+    /**
+     * Returns the number of super classes of a class which are part of the prepared classes.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     * @param superClassOf
+     *         The direct super class of each prepared class
+     *
+     * @return The depth of the class within the hierarchy of the prepared classes
+     */
+    private static int depth(String className, Map<String, String> superClassOf)
+    {
+        int depth = 0;
+        String superClass = superClassOf.get(className);
+        // the hierarchy of valid classes is free of cycles, the limit only guards against broken class files
+        while (superClass != null && superClassOf.containsKey(superClass) && depth < superClassOf.size())
+        {
+            depth++;
+            superClass = superClassOf.get(superClass);
+        }
+        return depth;
+    }
+
+    /**
+     * Lazily creates the worker threads which are shared by all plug-ins. Idle workers terminate after a while, so no
+     * threads are kept once the plug-ins got activated.
+     */
+    private static final class Workers
+    {
+        private static final ExecutorService EXECUTOR = create();
+
+        private static ExecutorService create()
+        {
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor =
+                    new ThreadPoolExecutor(THREADS, THREADS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                           (Runnable runnable) ->
+                                           {
+                                               Thread thread = new Thread(runnable);
+                                               thread.setName("Plugin activation-" + count.incrementAndGet());
+                                               thread.setDaemon(true);
+                                               return thread;
+                                           });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
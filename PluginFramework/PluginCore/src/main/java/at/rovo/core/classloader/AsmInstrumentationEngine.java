@@ -0,0 +1,649 @@
+package at.rovo.core.classloader;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.injection.ComponentMetadata;
+import at.rovo.core.injection.IInjectionController;
+import at.rovo.core.injection.InjectionControllerImpl;
+import at.rovo.core.injection.Instrumented;
+import at.rovo.core.injection.SingletonHolder;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * An {@link InstrumentationEngine} which weaves components in a single streaming pass via ASM.
+ * <p/>
+ * The class is read event by event and written right away. As the writer is created from the reader, the constant pool
+ * is kept and every method which is not rewritten is copied as is without being parsed at all. Only the default
+ * constructor of prototype components and the <code>getInstance()</code> method and the static initializer of
+ * singleton components are rewritten, the generated code is emitted together with its stack map frames. Referenced
+ * classes are never resolved, so this engine needs neither a class pool nor access to the classes of a plug-in.
+ *
+ * @author Roman Vottner
+ */
+public class AsmInstrumentationEngine implements InstrumentationEngine
+{
+    /** The name of this engine **/
+    public static final String NAME = "asm";
+    /** The version of the bytecode emitted by this engine **/
+    public static final String FORMAT_VERSION = "3";
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(AsmInstrumentationEngine.class.getName());
+
+    /** The descriptor of the {@link Component} annotation **/
+    private static final String COMPONENT = Type.getDescriptor(Component.class);
+    /** The descriptor of the {@link ComponentId} annotation **/
+    private static final String COMPONENT_ID = Type.getDescriptor(ComponentId.class);
+    /** The descriptor of the {@link Inject} annotation **/
+    private static final String INJECT = Type.getDescriptor(Inject.class);
+    /** The descriptor of the {@link Instrumented} annotation **/
+    private static final String INSTRUMENTED = Type.getDescriptor(Instrumented.class);
+    /** The internal name of the injection controller implementation **/
+    private static final String CONTROLLER_IMPL = Type.getInternalName(InjectionControllerImpl.class);
+    /** The descriptor of the injection controller implementation **/
+    private static final String CONTROLLER_IMPL_DESC = Type.getDescriptor(InjectionControllerImpl.class);
+    /** The internal name of the injection controller interface **/
+    private static final String CONTROLLER = Type.getInternalName(IInjectionController.class);
+    /** The descriptor of the injection controller interface **/
+    private static final String CONTROLLER_DESC = Type.getDescriptor(IInjectionController.class);
+    /** The descriptor of {@link WeakReference} **/
+    private static final String WEAK_REFERENCE_DESC = Type.getDescriptor(WeakReference.class);
+    /** The internal name of {@link SingletonHolder} **/
+    private static final String HOLDER = Type.getInternalName(SingletonHolder.class);
+    /** The descriptor of {@link SingletonHolder} **/
+    private static final String HOLDER_DESC = Type.getDescriptor(SingletonHolder.class);
+    /** The descriptor of {@link IInjectionController#initialize(Object)} **/
+    private static final String INITIALIZE_DESC = "(Ljava/lang/Object;)Ljava/lang/Object;";
+    /** The descriptor of {@link IInjectionController#resolveInjection(Object, String)} **/
+    private static final String RESOLVE_INJECTION_DESC = "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;";
+    /** The descriptor of {@link Long} **/
+    private static final String LONG_DESC = Type.getDescriptor(Long.class);
+    /** The name of the static field holding the injection controller within singletons **/
+    private static final String CONTROLLER_FIELD = "ic";
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public String getFormatVersion()
+    {
+        return FORMAT_VERSION;
+    }
+
+    @Override
+    public InstrumentedClass instrument(String className, byte[] classBytes, boolean addInjector)
+            throws InjectionException
+    {
+        ClassReader reader = new ClassReader(classBytes);
+        // passing the reader to the writer copies the constant pool and all untouched methods as they are
+        ClassWriter writer = new ClassWriter(reader, 0);
+        ComponentVisitor visitor = new ComponentVisitor(writer, true, addInjector);
+        reader.accept(visitor, 0);
+        if (!visitor.isComponent() || visitor.instrumented)
+        {
+            return null;
+        }
+        LOGGER.log(Level.FINE, "Instrumented {0} as {1}", new Object[] {className, visitor.scope});
+        return new InstrumentedClass(writer.toByteArray(), visitor.createMetadata());
+    }
+
+    @Override
+    public ComponentMetadata readMetadata(String className, byte[] classBytes)
+    {
+        ComponentVisitor visitor = new ComponentVisitor(null, false, false);
+        new ClassReader(classBytes).accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG |
+                                                    ClassReader.SKIP_FRAMES);
+        return visitor.isComponent() ? visitor.createMetadata() : null;
+    }
+
+    /**
+     * Records the metadata of a component and, if requested, rewrites the component on its way to the delegate.
+     */
+    private static final class ComponentVisitor extends ClassVisitor
+    {
+        /** Whether the visited class should be instrumented **/
+        private final boolean weave;
+        /** Whether the injector method should be added to the visited class **/
+        private final boolean addInjector;
+        /** The internal name of the visited class **/
+        private String owner;
+        /** The internal name of the super class of the visited class **/
+        private String superName;
+        /** Whether the class file contains stack map frames **/
+        private boolean frames;
+        /** The scope of the component or null if the class is no component **/
+        private ScopeType scope = null;
+        /** Whether the class was instrumented before **/
+        private boolean instrumented = false;
+        /** The names of the fields annotated with {@link ComponentId} **/
+        private final List<String> componentIdFields = new ArrayList<>();
+        /** The names of the fields annotated with {@link Inject} **/
+        private final List<String> injectFields = new ArrayList<>();
+        /** The number of static fields which may hold the singleton instance **/
+        private int singletonFields = 0;
+        /** The name of the removed static field which held the singleton instance or null if there is none **/
+        private String singletonField = null;
+        /** Whether the class declares any constructor **/
+        private boolean hasConstructor = false;
+        /** Whether the class declares a default constructor **/
+        private boolean hasDefaultConstructor = false;
+        /** Whether the class declares a static initializer **/
+        private boolean hasStaticInitializer = false;
+        /** Whether the class declares a <code>getInstance()</code> method **/
+        private boolean hasGetInstance = false;
+        /** The descriptors of the instance fields declared by the class by the name of the field **/
+        private final Map<String, String> fieldDescriptors = new HashMap<>();
+        /** The descriptors of the public setters declared by the class by their name and parameter descriptor **/
+        private final Map<String, String> setters = new HashMap<>();
+
+        private ComponentVisitor(ClassVisitor delegate, boolean weave, boolean addInjector)
+        {
+            super(Opcodes.ASM9, delegate);
+            this.weave = weave;
+            this.addInjector = addInjector;
+        }
+
+        private boolean isComponent()
+        {
+            return this.scope != null;
+        }
+
+        private boolean isSingleton()
+        {
+            return ScopeType.SINGLETON.equals(this.scope);
+        }
+
+        /**
+         * Returns true if the class has to be rewritten.
+         */
+        private boolean isWeaving()
+        {
+            return this.weave && this.isComponent() && !this.instrumented;
+        }
+
+        private ComponentMetadata createMetadata()
+        {
+            String singletonField = this.isSingleton() ? SINGLETON_FIELD : null;
+            return new ComponentMetadata(this.owner.replace('/', '.'), this.scope, this.componentIdFields,
+                                         this.injectFields, singletonField);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces)
+        {
+            this.owner = name;
+            this.superName = superName;
+            this.frames = (version & 0xFFFF) >= Opcodes.V1_6;
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible)
+        {
+            AnnotationVisitor av = super.visitAnnotation(descriptor, visible);
+            if (INSTRUMENTED.equals(descriptor))
+            {
+                this.instrumented = true;
+            }
+            else if (COMPONENT.equals(descriptor))
+            {
+                this.scope = ScopeType.PROTOTYPE;
+                av = new AnnotationVisitor(Opcodes.ASM9, av)
+                {
+                    @Override
+                    public void visitEnum(String name, String enumDescriptor, String value)
+                    {
+                        if ("scope".equals(name))
+                        {
+                            scope = ScopeType.valueOf(value);
+                        }
+                        super.visitEnum(name, enumDescriptor, value);
+                    }
+                };
+            }
+            return av;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value)
+        {
+            FieldVisitor fv = null;
+            if ((access & Opcodes.ACC_STATIC) == 0)
+            {
+                this.fieldDescriptors.put(name, descriptor);
+            }
+            if (this.isWeaving() && this.isSingleton() && (access & Opcodes.ACC_STATIC) != 0 &&
+                (descriptor.equals("L" + this.owner + ";") || descriptor.equals(WEAK_REFERENCE_DESC)))
+            {
+                LOGGER.log(Level.INFO, "found singleton field to inject: {0}", new Object[] {name});
+                if (++this.singletonFields > 1)
+                {
+                    throw new InjectionException("Multiple fields found that could be appropriate for injection!");
+                }
+                this.singletonField = name;
+                // the field gets replaced by an own version, so it is not passed on
+            }
+            else
+            {
+                fv = super.visitField(access, name, descriptor, signature, value);
+            }
+            return new FieldVisitor(Opcodes.ASM9, fv)
+            {
+                @Override
+                public AnnotationVisitor visitAnnotation(String annotationDescriptor, boolean visible)
+                {
+                    if (COMPONENT_ID.equals(annotationDescriptor))
+                    {
+                        componentIdFields.add(name);
+                    }
+                    else if (INJECT.equals(annotationDescriptor))
+                    {
+                        injectFields.add(name);
+                    }
+                    return super.visitAnnotation(annotationDescriptor, visible);
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                         String[] exceptions)
+        {
+            if (!this.isWeaving())
+            {
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+            if ((access & Opcodes.ACC_PUBLIC) != 0 && (access & Opcodes.ACC_STATIC) == 0 && name.startsWith("set") &&
+                Type.getArgumentTypes(descriptor).length == 1)
+            {
+                this.setters.put(name + descriptor.substring(0, descriptor.indexOf(')') + 1), descriptor);
+            }
+            if ("<init>".equals(name))
+            {
+                this.hasConstructor = true;
+                if ("()V".equals(descriptor))
+                {
+                    this.hasDefaultConstructor = true;
+                    if (!this.isSingleton())
+                    {
+                        return new ConstructorAdapter(super.visitMethod(access, name, descriptor, signature,
+                                                                        exceptions));
+                    }
+                }
+            }
+            else if (this.isSingleton() && "<clinit>".equals(name))
+            {
+                this.hasStaticInitializer = true;
+                return new StaticInitializerAdapter(super.visitMethod(access, name, descriptor, signature,
+                                                                      exceptions), this.owner, this.singletonField);
+            }
+            else if (this.isSingleton() && "getInstance".equals(name) && descriptor.startsWith("()"))
+            {
+                LOGGER.log(Level.FINE, "Removing getInstance() method of {0}", new Object[] {this.owner});
+                // the method gets replaced by an own version, so it is not passed on
+                this.hasGetInstance = true;
+                return null;
+            }
+            return super.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+
+        @Override
+        public void visitEnd()
+        {
+            if (this.isWeaving())
+            {
+                // add an annotation to the class so we know that we already instrumented that class
+                super.visitAnnotation(INSTRUMENTED, true).visitEnd();
+                if (this.addInjector)
+                {
+                    this.addInjector();
+                }
+                if (this.isSingleton())
+                {
+                    this.addSingletonMembers();
+                }
+                else if (!this.hasConstructor)
+                {
+                    this.addDefaultConstructor();
+                }
+                else if (!this.hasDefaultConstructor)
+                {
+                    throw new InjectionException("no such constructor: " + this.owner.replace('/', '.') + "()");
+                }
+            }
+            super.visitEnd();
+        }
+
+        /**
+         * Adds the injector method, which is equivalent to:
+         * <pre>
+         * private void $inject(IInjectionController controller) {
+         *     Object value;
+         *     value = controller.resolveInjection(this, "field");
+         *     if (value != null) {
+         *         this.field = (F) value; // or this.setField((F) value);
+         *     }
+         *     ...
+         *     if (this.id == null) {
+         *         this.id = controller.createComponentId(); // or this.setId(controller.createComponentId());
+         *     }
+         * }
+         * </pre>
+         * Components without exactly one {@link ComponentId} field of type {@link Long} or with primitive fields to
+         * inject are left without injector method, so their fields are assigned and validated by the injection
+         * controller.
+         */
+        private void addInjector()
+        {
+            if (this.componentIdFields.size() != 1 ||
+                !LONG_DESC.equals(this.fieldDescriptors.get(this.componentIdFields.get(0))))
+            {
+                return;
+            }
+            for (String field : this.injectFields)
+            {
+                String descriptor = this.fieldDescriptors.get(field);
+                if (descriptor == null || (descriptor.charAt(0) != 'L' && descriptor.charAt(0) != '['))
+                {
+                    return;
+                }
+            }
+
+            MethodVisitor mv = super.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC, INJECTOR_METHOD,
+                                                 "(" + CONTROLLER_DESC + ")V", null, null);
+            mv.visitCode();
+            for (String field : this.injectFields)
+            {
+                String descriptor = this.fieldDescriptors.get(field);
+                Label skip = new Label();
+                // value = controller.resolveInjection(this, "field"); if (value != null)
+                mv.visitVarInsn(Opcodes.ALOAD, 1);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitLdcInsn(field);
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CONTROLLER, "resolveInjection", RESOLVE_INJECTION_DESC,
+                                   true);
+                mv.visitVarInsn(Opcodes.ASTORE, 2);
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.visitJumpInsn(Opcodes.IFNULL, skip);
+                // this.field = (F) value;
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getType(descriptor).getInternalName());
+                this.assignField(mv, field, descriptor);
+                mv.visitLabel(skip);
+                this.frame(mv, new Object[] {this.owner, CONTROLLER}, new Object[0]);
+            }
+
+            // if (this.id == null) this.id = controller.createComponentId();
+            Label assigned = new Label();
+            String componentId = this.componentIdFields.get(0);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.GETFIELD, this.owner, componentId, LONG_DESC);
+            mv.visitJumpInsn(Opcodes.IFNONNULL, assigned);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CONTROLLER, "createComponentId", "()" + LONG_DESC, true);
+            this.assignField(mv, componentId, LONG_DESC);
+            mv.visitLabel(assigned);
+            this.frame(mv, new Object[] {this.owner, CONTROLLER}, new Object[0]);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(3, 3);
+            mv.visitEnd();
+        }
+
+        /**
+         * Emits the assignment of the value on top of the stack to a field of the component on the stack below. The
+         * public setter of the field is invoked if the class declares one.
+         */
+        private void assignField(MethodVisitor mv, String field, String descriptor)
+        {
+            String setter = "set" + field.substring(0, 1).toUpperCase() + field.substring(1);
+            String setterDescriptor = this.setters.get(setter + "(" + descriptor + ")");
+            if (setterDescriptor == null)
+            {
+                mv.visitFieldInsn(Opcodes.PUTFIELD, this.owner, field, descriptor);
+                return;
+            }
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, this.owner, setter, setterDescriptor, false);
+            int returnSize = Type.getReturnType(setterDescriptor).getSize();
+            if (returnSize > 0)
+            {
+                mv.visitInsn(returnSize == 2 ? Opcodes.POP2 : Opcodes.POP);
+            }
+        }
+
+        /**
+         * Adds a public default constructor to a prototype component which does not declare any constructor.
+         */
+        private void addDefaultConstructor()
+        {
+            MethodVisitor mv = new ConstructorAdapter(super.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null,
+                                                                        null));
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, this.superName, "<init>", "()V", false);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(1, 1);
+            mv.visitEnd();
+        }
+
+        /**
+         * Adds the field holding the injection controller, the field holding the {@link SingletonHolder} of the instance
+         * and the replacement of the <code>getInstance()</code> method to a singleton component.
+         */
+        private void addSingletonMembers()
+        {
+            if (!this.hasGetInstance)
+            {
+                throw new InjectionException("getInstance() is not found in " + this.owner.replace('/', '.'));
+            }
+            if (!this.hasDefaultConstructor)
+            {
+                throw new InjectionException("no such constructor: " + this.owner.replace('/', '.') + "()");
+            }
+            if (this.singletonFields == 0)
+            {
+                LOGGER.log(Level.WARNING, "No static field found in {0} that could hold the singleton. " +
+                                          "Adding an appropriate field instead",
+                           new Object[] {this.owner.replace('/', '.')});
+            }
+            super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, CONTROLLER_FIELD, CONTROLLER_DESC, null, null)
+                 .visitEnd();
+            super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, SINGLETON_FIELD, HOLDER_DESC,
+                             null, null).visitEnd();
+
+            if (!this.hasStaticInitializer)
+            {
+                MethodVisitor mv = new StaticInitializerAdapter(
+                        super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null), this.owner, null);
+                mv.visitCode();
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+
+            this.addGetInstance(super.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "getInstance",
+                                                  "()L" + this.owner + ";", null, null));
+        }
+
+        /**
+         * Generates the replacement of the <code>getInstance()</code> method, which is equivalent to:
+         * <pre>
+         * public static T getInstance() {
+         *     T instance = (T) REFERENCE.get();
+         *     if (instance != null) {
+         *         return instance;
+         *     }
+         *     return (T) REFERENCE.publish(ic.initialize(new T()));
+         * }
+         * </pre>
+         *
+         * @param mv
+         *         The visitor of the method to generate
+         */
+        private void addGetInstance(MethodVisitor mv)
+        {
+            Label create = new Label();
+
+            mv.visitCode();
+            // T instance = (T) REFERENCE.get(); if (instance != null) return instance;
+            mv.visitFieldInsn(Opcodes.GETSTATIC, this.owner, SINGLETON_FIELD, HOLDER_DESC);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, HOLDER, "get", "()Ljava/lang/Object;", false);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, this.owner);
+            mv.visitVarInsn(Opcodes.ASTORE, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitJumpInsn(Opcodes.IFNULL, create);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitInsn(Opcodes.ARETURN);
+
+            // return (T) REFERENCE.publish(ic.initialize(new T()));
+            mv.visitLabel(create);
+            this.frame(mv, new Object[] {this.owner}, new Object[0]);
+            mv.visitFieldInsn(Opcodes.GETSTATIC, this.owner, SINGLETON_FIELD, HOLDER_DESC);
+            this.initializeInstance(mv);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, HOLDER, "publish", "(Ljava/lang/Object;)Ljava/lang/Object;",
+                               false);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, this.owner);
+            mv.visitInsn(Opcodes.ARETURN);
+
+            mv.visitMaxs(4, 1);
+            mv.visitEnd();
+        }
+
+        /**
+         * Emits <code>(T) ic.initialize(new T())</code>, which leaves the initialized instance on the stack.
+         */
+        private void initializeInstance(MethodVisitor mv)
+        {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, this.owner, CONTROLLER_FIELD, CONTROLLER_DESC);
+            mv.visitTypeInsn(Opcodes.NEW, this.owner);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, this.owner, "<init>", "()V", false);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CONTROLLER, "initialize", INITIALIZE_DESC, true);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, this.owner);
+        }
+
+        /**
+         * Emits a full stack map frame if the class file requires frames.
+         */
+        private void frame(MethodVisitor mv, Object[] locals, Object[] stack)
+        {
+            if (this.frames)
+            {
+                mv.visitFrame(Opcodes.F_NEW, locals.length, locals, stack.length, stack);
+            }
+        }
+    }
+
+    /**
+     * Invokes the injection controller with the constructed instance before each return of a constructor.
+     */
+    private static final class ConstructorAdapter extends MethodVisitor
+    {
+        private ConstructorAdapter(MethodVisitor delegate)
+        {
+            super(Opcodes.ASM9, delegate);
+        }
+
+        @Override
+        public void visitInsn(int opcode)
+        {
+            if (opcode == Opcodes.RETURN)
+            {
+                // InjectionControllerImpl.INSTANCE.initialize(this);
+                super.visitFieldInsn(Opcodes.GETSTATIC, CONTROLLER_IMPL, "INSTANCE", CONTROLLER_IMPL_DESC);
+                super.visitVarInsn(Opcodes.ALOAD, 0);
+                super.visitMethodInsn(Opcodes.INVOKEINTERFACE, CONTROLLER, "initialize", INITIALIZE_DESC, true);
+                super.visitInsn(Opcodes.POP);
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            super.visitMaxs(maxStack + 2, maxLocals);
+        }
+    }
+
+    /**
+     * Initializes the fields holding the injection controller and the {@link SingletonHolder} at the beginning of the
+     * static initializer. Assignments of the removed field which held the singleton instance before are dropped.
+     */
+    private static final class StaticInitializerAdapter extends MethodVisitor
+    {
+        /** The internal name of the class declaring the static initializer **/
+        private final String owner;
+
+        /** The name of the removed field which held the singleton instance or null if there is none **/
+        private final String removedField;
+
+        private StaticInitializerAdapter(MethodVisitor delegate, String owner, String removedField)
+        {
+            super(Opcodes.ASM9, delegate);
+            this.owner = owner;
+            this.removedField = removedField;
+        }
+
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+            // ic = InjectionControllerImpl.INSTANCE;
+            super.visitFieldInsn(Opcodes.GETSTATIC, CONTROLLER_IMPL, "INSTANCE", CONTROLLER_IMPL_DESC);
+            super.visitFieldInsn(Opcodes.PUTSTATIC, this.owner, CONTROLLER_FIELD, CONTROLLER_DESC);
+            // REFERENCE = new SingletonHolder();
+            super.visitTypeInsn(Opcodes.NEW, HOLDER);
+            super.visitInsn(Opcodes.DUP);
+            super.visitMethodInsn(Opcodes.INVOKESPECIAL, HOLDER, "<init>", "()V", false);
+            super.visitFieldInsn(Opcodes.PUTSTATIC, this.owner, SINGLETON_FIELD, HOLDER_DESC);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String fieldOwner, String name, String descriptor)
+        {
+            if (this.owner.equals(fieldOwner) && name.equals(this.removedField))
+            {
+                // the field is either of the singleton type or a weak reference, so it occupies a single slot
+                if (opcode == Opcodes.PUTSTATIC)
+                {
+                    super.visitInsn(Opcodes.POP);
+                    return;
+                }
+                if (opcode == Opcodes.GETSTATIC)
+                {
+                    super.visitInsn(Opcodes.ACONST_NULL);
+                    return;
+                }
+            }
+            super.visitFieldInsn(opcode, fieldOwner, name, descriptor);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            super.visitMaxs(Math.max(maxStack, 2), maxLocals);
+        }
+    }
+}
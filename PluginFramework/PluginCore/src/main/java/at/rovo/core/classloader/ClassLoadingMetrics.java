@@ -0,0 +1,238 @@
+package at.rovo.core.classloader;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects counters and timings of the class loading process.
+ * <p/>
+ * Metrics are aggregated per plug-in, via {@link #forPlugin(String)}, and per type of {@link IClassLoaderStrategy}, via
+ * {@link #forStrategy(Class)}. A {@link StrategyClassLoader} records the outcome of class loading requests, the time
+ * spent defining classes and the time spent inside its strategies into the metrics set via {@link
+ * StrategyClassLoader#setMetrics(ClassLoadingMetrics)}. The time recorded for a strategy which decorates a further
+ * strategy includes the time spent inside the decorated strategy.
+ * <p/>
+ * Recording a value does not allocate any objects, so metrics can be kept enabled in production.
+ *
+ * @author Roman Vottner
+ */
+public final class ClassLoadingMetrics
+{
+    /** The metrics of the loaded plug-ins by their names **/
+    private static final Map<String, ClassLoadingMetrics> PLUGINS = new ConcurrentHashMap<>();
+    /** The metrics of the strategies by the name of the strategy type **/
+    private static final Map<String, ClassLoadingMetrics> STRATEGIES = new ConcurrentHashMap<>();
+    /** Caches the metrics of a strategy type directly at the type **/
+    private static final ClassValue<ClassLoadingMetrics> STRATEGY_TYPES = new ClassValue<ClassLoadingMetrics>()
+    {
+        @Override
+        protected ClassLoadingMetrics computeValue(Class<?> type)
+        {
+            return STRATEGIES.computeIfAbsent(type.getName(), (String name) -> new ClassLoadingMetrics(name));
+        }
+    };
+
+    /** The name of the plug-in or strategy type these metrics are collected for **/
+    private final String name;
+    /** The number of class loading requests that returned a class **/
+    private final LongAdder loadHits = new LongAdder();
+    /** The number of class loading requests that could not return a class **/
+    private final LongAdder loadMisses = new LongAdder();
+    /** The number of defined classes **/
+    private final LongAdder classesDefined = new LongAdder();
+    /** The nanoseconds spent defining classes **/
+    private final LongAdder defineNanos = new LongAdder();
+    /** The number of requests for class bytes issued to strategies **/
+    private final LongAdder strategyCalls = new LongAdder();
+    /** The nanoseconds spent inside strategies **/
+    private final LongAdder strategyNanos = new LongAdder();
+    /** The number of class bytes returned by strategies **/
+    private final LongAdder bytesRead = new LongAdder();
+
+    private ClassLoadingMetrics(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Returns the metrics of the plug-in with the given name. The metrics are created if they do not exist yet.
+     *
+     * @param pluginName
+     *         The name of the plug-in
+     *
+     * @return The metrics of the plug-in
+     */
+    public static ClassLoadingMetrics forPlugin(String pluginName)
+    {
+        return PLUGINS.computeIfAbsent(pluginName, (String name) -> new ClassLoadingMetrics(name));
+    }
+
+    /**
+     * Returns the metrics of the given strategy type. The metrics are created if they do not exist yet.
+     *
+     * @param strategyType
+     *         The type of the strategy
+     *
+     * @return The metrics of the strategy type
+     */
+    public static ClassLoadingMetrics forStrategy(Class<? extends IClassLoaderStrategy> strategyType)
+    {
+        return STRATEGY_TYPES.get(strategyType);
+    }
+
+    /**
+     * Returns the metrics of all plug-ins by the name of the plug-in.
+     *
+     * @return The metrics of all plug-ins
+     */
+    public static Map<String, ClassLoadingMetrics> getPluginMetrics()
+    {
+        return Collections.unmodifiableMap(PLUGINS);
+    }
+
+    /**
+     * Returns the metrics of all strategy types by the fully qualified name of the strategy type.
+     *
+     * @return The metrics of all strategy types
+     */
+    public static Map<String, ClassLoadingMetrics> getStrategyMetrics()
+    {
+        return Collections.unmodifiableMap(STRATEGIES);
+    }
+
+    /**
+     * Records the outcome of a class loading request.
+     *
+     * @param hit
+     *         true if the request returned a class, false otherwise
+     */
+    public void recordLoad(boolean hit)
+    {
+        if (hit)
+        {
+            this.loadHits.increment();
+        }
+        else
+        {
+            this.loadMisses.increment();
+        }
+    }
+
+    /**
+     * Records the definition of a class.
+     *
+     * @param nanos
+     *         The nanoseconds spent defining the class
+     */
+    public void recordDefine(long nanos)
+    {
+        this.classesDefined.increment();
+        this.defineNanos.add(nanos);
+    }
+
+    /**
+     * Records a request for class bytes issued to a strategy.
+     *
+     * @param nanos
+     *         The nanoseconds spent inside the strategy
+     * @param bytes
+     *         The number of bytes returned by the strategy
+     */
+    public void recordStrategyCall(long nanos, int bytes)
+    {
+        this.strategyCalls.increment();
+        this.strategyNanos.add(nanos);
+        this.bytesRead.add(bytes);
+    }
+
+    /**
+     * Returns the name of the plug-in or strategy type these metrics are collected for.
+     *
+     * @return The name of the plug-in or strategy type
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Returns the number of class loading requests that returned a class.
+     *
+     * @return The number of successful class loading requests
+     */
+    public long getLoadHits()
+    {
+        return this.loadHits.sum();
+    }
+
+    /**
+     * Returns the number of class loading requests that could not return a class.
+     *
+     * @return The number of failed class loading requests
+     */
+    public long getLoadMisses()
+    {
+        return this.loadMisses.sum();
+    }
+
+    /**
+     * Returns the number of defined classes.
+     *
+     * @return The number of defined classes
+     */
+    public long getClassesDefined()
+    {
+        return this.classesDefined.sum();
+    }
+
+    /**
+     * Returns the nanoseconds spent defining classes.
+     *
+     * @return The time spent defining classes in nanoseconds
+     */
+    public long getDefineNanos()
+    {
+        return this.defineNanos.sum();
+    }
+
+    /**
+     * Returns the number of requests for class bytes issued to strategies.
+     *
+     * @return The number of strategy calls
+     */
+    public long getStrategyCalls()
+    {
+        return this.strategyCalls.sum();
+    }
+
+    /**
+     * Returns the nanoseconds spent inside strategies.
+     *
+     * @return The time spent inside strategies in nanoseconds
+     */
+    public long getStrategyNanos()
+    {
+        return this.strategyNanos.sum();
+    }
+
+    /**
+     * Returns the number of class bytes returned by strategies.
+     *
+     * @return The number of read class bytes
+     */
+    public long getBytesRead()
+    {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name + " [hits=" + this.getLoadHits() + ", misses=" + this.getLoadMisses() + ", defined=" +
+               this.getClassesDefined() + ", defineMillis=" + this.getDefineNanos() / 1000000 + ", strategyCalls=" +
+               this.getStrategyCalls() + ", strategyMillis=" + this.getStrategyNanos() / 1000000 + ", bytesRead=" +
+               this.getBytesRead() + "]";
+    }
+}
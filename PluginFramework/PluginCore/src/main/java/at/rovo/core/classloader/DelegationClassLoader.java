@@ -2,13 +2,15 @@ package at.rovo.core.classloader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,13 +19,27 @@ import java.util.logging.Logger;
  * classes that need to be shared among plug-ins. Therefore the plug-in has to contain an <code>export</code> entry in
  * the jars <em>MANIFEST.MF</em> file.
  * <p/>
- * Classes marked as <em>export</em> will get loaded before any other classes of the plug-in. Every class marked as
- * <em>export</em> will be added to a new composite {@link StrategyClassLoader} of this class loader  while loading the
- * class definition automatically. None exported classes will get loaded by a child class loader.
+ * Classes marked as <em>export</em> will get loaded before any other classes of the plug-in. All classes of a plug-in
+ * marked as <em>export</em> will be defined by a single composite {@link StrategyClassLoader} of this class loader
+ * which is registered with the name of the plug-in. None exported classes will get loaded by a child class loader.
+ * <p/>
+ * Every class defined by a composite class-loader is recorded in an index which maps the name of the class to the
+ * defining class-loader. Looking up an exported class does therefore not require to ask every composite class-loader
+ * whether it has loaded the requested class.
+ * <p/>
+ * As most requests passing this class-loader are for classes which are not exported at all, the names of classes
+ * neither the index nor the parent class-loader could provide are remembered in a bounded miss cache. The maximum
+ * number of cached misses can be specified via the system property <em>at.rovo.core.delegation.missCacheSize</em>
+ * (default 4096). The cache is invalidated whenever the set of exported classes changes.
+ * <p/>
+ * This class-loader is registered as parallel capable. Classes are loaded while holding a lock per class name only, so
+ * concurrent requests for different classes do not block each other.
  * <p/>
  * <em>Note:</em> The composite class-loaders managed by this delegation instance will be cached internally via
  * WeakReferences. If there is no strong reference pointing to the returned class-loader or to any resource loaded by
- * that class-loader it might get eligible for garbage collection.
+ * that class-loader it might get eligible for garbage collection. Collected class-loaders are reported via a {@link
+ * ReferenceQueue} and removed on the next modification of the composite class-loaders or on invoking {@link
+ * #expungeStaleLoaders()}.
  *
  * @author Roman Vottner
  */
@@ -32,12 +48,29 @@ public final class DelegationClassLoader extends ClassLoader
 {
     /** The logger of this class **/
     private static Logger LOGGER = Logger.getLogger(DelegationClassLoader.class.getName());
+    /** The maximum number of class names kept in the miss cache **/
+    private static final int MISS_CACHE_SIZE = Integer.getInteger("at.rovo.core.delegation.missCacheSize", 4096);
+
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
 
     /**
      * Caches the created composite class loaders, this class loader will act as parent for, with the name of the class
      * that was marked as <code>export</code>
      **/
-    private Map<String, WeakReference<StrategyClassLoader>> commonLoaders = new HashMap<>();
+    private final Map<String, LoaderReference> commonLoaders = new ConcurrentHashMap<>();
+    /** The queue the references of garbage collected composite class loaders are enqueued to **/
+    private final ReferenceQueue<StrategyClassLoader> collectedLoaders = new ReferenceQueue<>();
+    /** The number of composite class loaders which got garbage collected so far **/
+    private final AtomicLong clearedLoaders = new AtomicLong();
+
+    /** Maps the names of the classes defined by the composite class loaders to the respective class loader **/
+    private final Map<String, WeakReference<StrategyClassLoader>> classIndex = new ConcurrentHashMap<>();
+
+    /** The names of classes which could neither be found in the index nor by the parent class loader **/
+    private final Set<String> missCache = ConcurrentHashMap.newKeySet();
 
     /**
      * Creates a new instance of the class loader which adds the class-loader returned by {@link
@@ -60,11 +93,10 @@ public final class DelegationClassLoader extends ClassLoader
     }
 
     /**
-     * On invoking this method a new composite {@link StrategyClassLoader} with the given <em>strategy</em> will be
-     * created for the given <em>name</em>.
+     * Registers the given composite {@link StrategyClassLoader} under the given <em>name</em>.
      * <p/>
-     * <code>name</code> should therefore be the name of a class that is marked as exported within the plug-ins manifest
-     * file.
+     * <code>name</code> should be the name of the plug-in whose exported classes are defined by the class loader, as
+     * the same name is used on unloading the plug-in via {@link #unload(String)}.
      * <p/>
      * Note that the created class-loader will be cached internally using WeakReferences. This means if the reference to
      * the returned object is lost either through setting the object to null or as it was defined within a code-block
@@ -72,15 +104,87 @@ public final class DelegationClassLoader extends ClassLoader
      * eligible for garbage collection.
      *
      * @param name
-     *         The name of the exported class a composite class loader should be created for calls will be delegated to
+     *         The name of the plug-in the composite class loader defines the exported classes for
      * @param loader
      *         The strategy class loader to register with the given name
      */
     public void addLoaderForName(String name, StrategyClassLoader loader)
     {
+        this.expungeStaleLoaders();
         loader.setName("Composite classloader for: " + name);
-        WeakReference<StrategyClassLoader> ref = new WeakReference<>(loader);
+        LoaderReference ref = new LoaderReference(name, loader, this.collectedLoaders);
         this.commonLoaders.put(name, ref);
+        // keep track of every class the loader defines from now on
+        loader.setClassIndex(this);
+        // the set of exported classes changed
+        this.missCache.clear();
+    }
+
+    /**
+     * Records that the given composite class loader defined a class with the provided name.
+     * <p/>
+     * This method is invoked by the composite {@link StrategyClassLoader}s registered via {@link
+     * #addLoaderForName(String, StrategyClassLoader)} whenever they define a new class.
+     *
+     * @param className
+     *         The name of the defined class
+     * @param loader
+     *         The class loader which defined the class
+     */
+    void classDefined(String className, StrategyClassLoader loader)
+    {
+        if (LOGGER.isLoggable(Level.FINE))
+        {
+            LOGGER.log(Level.FINE, "Indexing class {0} defined by {1}", new Object[] {className, loader.getName()});
+        }
+        this.classIndex.put(className, new WeakReference<>(loader));
+        this.missCache.remove(className);
+    }
+
+    /**
+     * Remembers that neither a composite class loader nor the parent class loader is able to provide the class with the
+     * given name. If the cache is full, all cached misses are discarded.
+     *
+     * @param className
+     *         The name of the class that could not be found
+     */
+    private void cacheMiss(String className)
+    {
+        if (this.missCache.size() >= MISS_CACHE_SIZE)
+        {
+            this.missCache.clear();
+        }
+        this.missCache.add(className);
+        // a composite class loader might have defined the class concurrently
+        if (this.classIndex.containsKey(className))
+        {
+            this.missCache.remove(className);
+        }
+    }
+
+    /**
+     * Returns the class with the given name if it was defined by one of the composite class loaders.
+     *
+     * @param className
+     *         The name of the class to look up
+     *
+     * @return The class defined by a composite class loader or null if no composite class loader defined the class
+     */
+    private Class<?> findIndexedClass(String className)
+    {
+        WeakReference<StrategyClassLoader> ref = this.classIndex.get(className);
+        if (ref == null)
+        {
+            return null;
+        }
+        StrategyClassLoader loader = ref.get();
+        if (loader == null)
+        {
+            // the defining class loader got garbage collected in the meantime
+            this.classIndex.remove(className, ref);
+            return null;
+        }
+        return loader.hasLoadedClass(className);
     }
 
     /**
@@ -94,166 +198,173 @@ public final class DelegationClassLoader extends ClassLoader
      */
     public void unload(String name)
     {
-        if (this.commonLoaders.containsKey(name))
+        this.expungeStaleLoaders();
+        LoaderReference ref = this.commonLoaders.remove(name);
+        if (ref != null)
         {
             LOGGER.log(Level.INFO, "Unloading class {0}", new Object[] {name});
-            this.commonLoaders.remove(name);
+            // drop all classes defined by the unloaded class loader from the index
+            StrategyClassLoader loader = ref.get();
+            this.classIndex.values().removeIf((WeakReference<StrategyClassLoader> indexed) -> indexed.get() == null ||
+                                                                                              indexed.get() == loader);
+            // the set of exported classes changed
+            this.missCache.clear();
         }
     }
 
-    @Override
-    public Class<?> loadClass(String name)
+    /**
+     * Removes all composite class loaders which got garbage collected in the meantime as well as the classes they
+     * defined from the index.
+     * <p/>
+     * This method is invoked on adding or unloading a composite class loader, so lookups do not need to check for
+     * collected class loaders.
+     */
+    public void expungeStaleLoaders()
     {
-        LOGGER.log(Level.INFO, "Delegagion Loader - Request to load class {0}", new Object[] {name});
-        try
+        boolean cleared = false;
+        Reference<? extends StrategyClassLoader> ref;
+        while ((ref = this.collectedLoaders.poll()) != null)
         {
-            Class<?> foundClass = null;
-            List<String> removeLoader = new ArrayList<>();
-            for (String loaderName : this.commonLoaders.keySet())
-            {
-                WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(loaderName);
-                StrategyClassLoader loader = ref.get();
-                if (loader != null && foundClass == null)
-                {
-                    LOGGER.log(Level.INFO,
-                               "Delegagion Loader - Request to load class {0} - delegating to composit classloaders {1}",
-                               new Object[] {name, loader.getName()});
-                    Class<?> _foundClass = loader.hasLoadedClass(name);
-                    if (_foundClass != null)
-                    {
-                        LOGGER.log(Level.INFO, "Delegation: {0} - already loaded class {1}",
-                                   new Object[] {loader.getName(), name});
-                        foundClass = _foundClass;
-                    }
-                }
+            LoaderReference loaderRef = (LoaderReference) ref;
+            this.commonLoaders.remove(loaderRef.name, loaderRef);
+            this.clearedLoaders.incrementAndGet();
+            cleared = true;
+            LOGGER.log(Level.FINE, "Composite classloader for {0} got garbage collected",
+                       new Object[] {loaderRef.name});
+        }
+        if (cleared)
+        {
+            this.classIndex.values().removeIf((WeakReference<StrategyClassLoader> indexed) -> indexed.get() == null);
+        }
+    }
 
-                if (loader == null)
-                {
-                    removeLoader.add(loaderName);
-                }
-            }
+    /**
+     * Returns the number of composite class loaders which got garbage collected since this instance was created.
+     * Loaders which got collected but were not yet noticed are expunged first.
+     *
+     * @return The number of garbage collected composite class loaders
+     */
+    public long getClearedLoaderCount()
+    {
+        this.expungeStaleLoaders();
+        return this.clearedLoaders.get();
+    }
 
-            for (String loaderName : removeLoader)
+    /**
+     * Returns true if the class file of the class with the given name is visible to the parent of this class loader.
+     * <p/>
+     * Unlike {@link #loadClass(String)}, this method does not cause the parent class loader to throw an exception if
+     * it can't provide the class.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return true if the parent class loader is able to load the class
+     */
+    boolean isProvidedByParent(String className)
+    {
+        String classFile = className.replace('.', '/') + ".class";
+        ClassLoader parent = this.getParent();
+        if (parent != null)
+        {
+            return parent.getResource(classFile) != null;
+        }
+        return ClassLoader.getSystemResource(classFile) != null;
+    }
+
+    @Override
+    public Class<?> loadClass(String name)
+    {
+        synchronized (this.getClassLoadingLock(name))
+        {
+            if (LOGGER.isLoggable(Level.FINER))
             {
-                this.commonLoaders.remove(loaderName);
+                LOGGER.log(Level.FINER, "Delegagion Loader - Request to load class {0}", new Object[] {name});
             }
-            if (foundClass != null)
+            if (this.missCache.contains(name))
             {
-                return foundClass;
+                if (LOGGER.isLoggable(Level.FINER))
+                {
+                    LOGGER.log(Level.FINER, "Delegation: {0} is known to be not exported", new Object[] {name});
+                }
+                return null;
             }
-
-            LOGGER.log(Level.INFO, "Asking parent to load class {0}. ", new Object[] {name});
-
             try
             {
-                if (this.getParent() != null)
+                Class<?> foundClass = this.findIndexedClass(name);
+                if (foundClass != null)
                 {
-                    foundClass = this.getParent().loadClass(name);
+                    if (LOGGER.isLoggable(Level.FINER))
+                    {
+                        LOGGER.log(Level.FINER, "Delegation: {0} - already loaded class {1}",
+                                   new Object[] {foundClass.getClassLoader(), name});
+                    }
+                    return foundClass;
                 }
-                else
+
+                if (LOGGER.isLoggable(Level.FINER))
                 {
-                    foundClass = super.loadClass(name);
+                    LOGGER.log(Level.FINER, "Asking parent to load class {0}. ", new Object[] {name});
                 }
-            }
-            catch (ClassNotFoundException cnfEx)
-            {
-                LOGGER.log(Level.INFO, "Parent classloader didn't know how to load class {0}. Starting delegation.",
-                           new Object[] {name});
-            }
-
-            if (foundClass == null)
-            {
-                LOGGER.log(Level.INFO, "Delegation: Parent didn't find class {0} either! Invoking find",
-                           new Object[] {name});
-                foundClass = this.findClass(name);
-            }
 
-            return foundClass;
-        }
-        catch (ClassNotFoundException e)
-        {
-            LOGGER.log(Level.SEVERE, "Could not find class: {0}", new Object[] {name});
-            // throw new PluginException("StrategyClassLoader.loadClass("
-            // + name + "): " + e.getLocalizedMessage());
-        }
-        return null;
-    }
-
-    @Override
-    protected Class<?> findClass(String className) throws ClassNotFoundException
-    {
-        LOGGER.log(Level.INFO, "Delegagion Loader - Request to find class {0}", new Object[] {className});
-
-        // propagate the call to the registered strategies
-        List<String> removeLoader = new ArrayList<>();
-        Class<?> foundClass = null;
-        boolean foundRequestor = false;
-        for (String loaderName : this.commonLoaders.keySet())
-        {
-            WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(loaderName);
-            StrategyClassLoader loader = ref.get();
-            if (loader != null && foundClass == null)
-            {
                 try
                 {
-                    Class<?> loadedClass = loader.hasLoadedClass(className);
-                    if (loadedClass != null)
+                    if (this.getParent() != null)
                     {
-                        LOGGER.log(Level.INFO, "Delegation: {0} - already loaded class {1}",
-                                   new Object[] {loader.getName(), className});
-                        foundClass = loadedClass;
-                        foundRequestor = true;
+                        foundClass = this.getParent().loadClass(name);
                     }
                     else
                     {
-                        LOGGER.log(Level.INFO, "Delegation: {0} - Didn't load class {1}",
-                                   new Object[] {loader.getName(), className});
+                        foundClass = super.loadClass(name);
                     }
+                }
+                catch (ClassNotFoundException cnfEx)
+                {
+                    LOGGER.log(Level.FINER,
+                               "Parent classloader didn't know how to load class {0}. Starting delegation.",
+                               new Object[] {name});
+                }
 
-//                    if (loader.getRequestedClassToLoad() != null && loader.getRequestedClassToLoad().equals(className))
-//                    {
-//                        LOGGER.log(Level.INFO, "Delegation: {0} - Requested to find class {1}",
-//                                   new Object[] {loader.getName(), className});
-//                        Class<?> _foundClass = loader.findClass(className);
-//                        foundRequestor = true;
-//
-//                        if (_foundClass != null)
-//                        {
-//                            foundClass = _foundClass;
-//
-//                            LOGGER.log(Level.FINE, "found bytes for class {0} - defining class",
-//                                       new Object[] {className});
-//                        }
-//                    }
-//                    else
-//                    {
-//                        LOGGER.log(Level.INFO, "Delegation: {0} - Didn't request to find class {1}",
-//                                   new Object[] {loader.getName(), className});
-//                    }
+                if (foundClass == null)
+                {
+                    if (LOGGER.isLoggable(Level.FINER))
+                    {
+                        LOGGER.log(Level.FINER, "Delegation: Parent didn't find class {0} either! Invoking find",
+                                   new Object[] {name});
+                    }
+                    foundClass = this.findClass(name);
                 }
-//                catch(ClassNotFoundException cnfEx)
-                catch (Exception cnfEx)
+
+                if (foundClass == null)
                 {
-                    LOGGER.log(Level.SEVERE, "Could not find bytes for class {0}", new Object[] {className});
+                    this.cacheMiss(name);
                 }
+                return foundClass;
             }
-
-            if (loader == null)
+            catch (ClassNotFoundException e)
             {
-                removeLoader.add(loaderName);
+                LOGGER.log(Level.SEVERE, "Could not find class: {0}", new Object[] {name});
+                // throw new PluginException("StrategyClassLoader.loadClass("
+                // + name + "): " + e.getLocalizedMessage());
             }
+            return null;
         }
+    }
 
-        for (String loader : removeLoader)
+    @Override
+    protected Class<?> findClass(String className) throws ClassNotFoundException
+    {
+        if (LOGGER.isLoggable(Level.FINER))
         {
-            this.commonLoaders.remove(loader);
+            LOGGER.log(Level.FINER, "Delegagion Loader - Request to find class {0}", new Object[] {className});
         }
 
-        if (!foundRequestor)
+        // look up the composite class loader which defined the class
+        Class<?> foundClass = this.findIndexedClass(className);
+        if (foundClass == null && LOGGER.isLoggable(Level.FINER))
         {
-            LOGGER.log(Level.INFO, "Delegation: Child obviously request to find class {0}", new Object[] {className});
+            LOGGER.log(Level.FINER, "Delegation: Child obviously request to find class {0}", new Object[] {className});
         }
-
         return foundClass;
     }
 
@@ -261,96 +372,64 @@ public final class DelegationClassLoader extends ClassLoader
     public URL getResource(String name)
     {
         // propagate the task to the strategies
-        URL resource = null;
-        List<String> removeLoader = new ArrayList<>();
-        for (String loaderName : this.commonLoaders.keySet())
+        for (LoaderReference ref : this.commonLoaders.values())
         {
-            WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(loaderName);
             StrategyClassLoader loader = ref.get();
-
-            // if we already found a resource don't look any further - just
-            // keep iterating through the loaders and check if one got unloaded
-            if (loader != null && resource == null)
+            if (loader != null)
             {
-                URL _resource = loader.getResource(name);
-                if (_resource != null)
+                URL resource = loader.findResource(name);
+                if (resource != null)
                 {
-                    resource = _resource;
+                    return resource;
                 }
             }
-
-            if (loader == null)
-            {
-                removeLoader.add(loaderName);
-            }
         }
-        // now cleanup the cache if any loaders got unloaded
-        removeLoader.forEach((String loaderName) -> this.unload(loaderName));
-        return resource;
+        return null;
     }
 
     @Override
     public Enumeration<URL> getResources(String name) throws IOException
     {
         // propagate the task to the strategies
-        Enumeration<URL> enumerationEnum = null;
-        List<String> removeLoader = new ArrayList<>();
-        for (String loaderName : this.commonLoaders.keySet())
+        for (LoaderReference ref : this.commonLoaders.values())
         {
-            WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(loaderName);
             StrategyClassLoader loader = ref.get();
-
-            // if we already found a resource don't look any further - just
-            // keep iterating through the loaders and check if one got unloaded
-            if (loader != null && enumerationEnum == null)
+            if (loader != null)
             {
-                Enumeration<URL> _enumerationEnum = loader.getResources(name);
-                if (_enumerationEnum != null)
+                Enumeration<URL> enumerationEnum = loader.findResources(name);
+                if (enumerationEnum != null)
                 {
-                    enumerationEnum = _enumerationEnum;
+                    return enumerationEnum;
                 }
             }
-
-            if (loader == null)
-            {
-                removeLoader.add(loaderName);
-            }
-
         }
-        // now cleanup the cache if any loaders got unloaded
-        removeLoader.forEach((String loaderName) -> this.unload(loaderName));
-        return enumerationEnum;
+        return null;
     }
 
     @Override
     public InputStream getResourceAsStream(String source)
     {
         // propagate the task to the strategies
-        InputStream stream = null;
-        List<String> removeLoader = new ArrayList<>();
-        for (String name : this.commonLoaders.keySet())
+        for (LoaderReference ref : this.commonLoaders.values())
         {
-            WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(name);
             StrategyClassLoader loader = ref.get();
-
-            // if we already found a resource don't look any further - just
-            // keep iterating through the loaders and check if one got unloaded
-            if (loader != null && stream == null)
+            if (loader != null)
             {
-                InputStream _stream = getResourceAsStream(source);
-                if (_stream != null)
+                try
+                {
+                    InputStream stream = loader.findResourceAsStream(source);
+                    if (stream != null)
+                    {
+                        return stream;
+                    }
+                }
+                catch (IOException ioEx)
                 {
-                    stream = _stream;
+                    LOGGER.log(Level.WARNING, "Could not read resource {0} from {1}: {2}",
+                               new Object[] {source, loader.getName(), ioEx.getLocalizedMessage()});
                 }
             }
-
-            if (loader == null)
-            {
-                removeLoader.add(name);
-            }
         }
-        // now cleanup the cache if any loaders got unloaded
-        removeLoader.forEach((String loaderName) -> this.unload(loaderName));
         return null;
     }
 
@@ -365,31 +444,21 @@ public final class DelegationClassLoader extends ClassLoader
      */
     public boolean containsClass(String className)
     {
-        boolean hasLoadedClass = false;
-        List<String> removeLoader = new ArrayList<>();
-        for (String name : this.commonLoaders.keySet())
-        {
-            WeakReference<StrategyClassLoader> ref = this.commonLoaders.get(name);
-            StrategyClassLoader loader = ref.get();
+        return this.findIndexedClass(className) != null;
+    }
 
-            // if we already found a classloader that loaded the requested class
-            // just keep iterating through the loaders and check if one got
-            // unloaded
-            if (loader != null && !hasLoadedClass)
-            {
-                if (null != loader.hasLoadedClass(className))
-                {
-                    hasLoadedClass = true;
-                }
-            }
+    /**
+     * A weak reference to a composite class loader which remembers the name the class loader was registered with.
+     */
+    private static final class LoaderReference extends WeakReference<StrategyClassLoader>
+    {
+        /** The name the referenced class loader was registered with **/
+        private final String name;
 
-            if (loader == null)
-            {
-                removeLoader.add(name);
-            }
+        private LoaderReference(String name, StrategyClassLoader loader, ReferenceQueue<StrategyClassLoader> queue)
+        {
+            super(loader, queue);
+            this.name = name;
         }
-        // now cleanup the cache if any loaders got unloaded
-        removeLoader.forEach((String loaderName) -> this.unload(loaderName));
-        return hasLoadedClass;
     }
 }
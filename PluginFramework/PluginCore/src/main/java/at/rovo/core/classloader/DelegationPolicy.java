@@ -0,0 +1,157 @@
+package at.rovo.core.classloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+
+/**
+ * Defines whether a {@link StrategyClassLoader} asks its parent class loader first (parent-first) or tries to define a
+ * class on its own first (child-first).
+ * <p/>
+ * The policy of a plug-in is specified within the jar's <em>MANIFEST.MF</em> file. The <code>Class-Loading</code>
+ * attribute accepts either <code>parent-first</code> (default) or <code>child-first</code>. Alternatively, the
+ * <code>Child-First-Packages</code> attribute lists the packages, separated by white spaces, whose classes should be
+ * loaded child-first while all other classes are loaded parent-first.
+ * <p/>
+ * Classes of the Java runtime as well as of the plug-in framework are always loaded parent-first, as plug-ins and the
+ * framework have to share the very same class definitions.
+ *
+ * @author Roman Vottner
+ */
+public final class DelegationPolicy
+{
+    /** The manifest attribute specifying the delegation mode of a plug-in **/
+    public static final Attributes.Name CLASS_LOADING = new Attributes.Name("Class-Loading");
+    /** The manifest attribute listing the packages to load child-first **/
+    public static final Attributes.Name CHILD_FIRST_PACKAGES = new Attributes.Name("Child-First-Packages");
+
+    /** The policy which always asks the parent class loader first **/
+    public static final DelegationPolicy PARENT_FIRST = new DelegationPolicy(false, Collections.emptyList());
+    /** The policy which always tries to define a class on its own first **/
+    public static final DelegationPolicy CHILD_FIRST = new DelegationPolicy(true, Collections.emptyList());
+
+    /** The package prefixes which are always loaded parent-first **/
+    private static final String[] SHARED_PACKAGES = {"java.", "javax.", "sun.", "at.rovo.common.", "at.rovo.core."};
+
+    /** Specifies if all classes should be loaded child-first **/
+    private final boolean childFirst;
+    /** The package prefixes of classes to load child-first **/
+    private final List<String> childFirstPackages;
+
+    private DelegationPolicy(boolean childFirst, List<String> childFirstPackages)
+    {
+        this.childFirst = childFirst;
+        this.childFirstPackages = childFirstPackages;
+    }
+
+    /**
+     * Creates a policy which loads the classes of the given packages child-first and all other classes parent-first.
+     *
+     * @param packages
+     *         The names of the packages to load child-first. Sub-packages are included
+     *
+     * @return The policy for the given packages
+     */
+    public static DelegationPolicy childFirst(List<String> packages)
+    {
+        if (packages.isEmpty())
+        {
+            return PARENT_FIRST;
+        }
+        List<String> prefixes = new ArrayList<>(packages.size());
+        for (String pkg : packages)
+        {
+            prefixes.add(pkg.endsWith(".") ? pkg : pkg + ".");
+        }
+        return new DelegationPolicy(false, Collections.unmodifiableList(prefixes));
+    }
+
+    /**
+     * Creates the policy specified by the main attributes of a plug-in's manifest.
+     *
+     * @param attributes
+     *         The main attributes of the manifest
+     *
+     * @return The specified policy or {@link #PARENT_FIRST} if the manifest does not specify any policy
+     *
+     * @throws IllegalArgumentException
+     *         If the <code>Class-Loading</code> attribute contains an unknown value
+     */
+    public static DelegationPolicy fromManifest(Attributes attributes)
+    {
+        String mode = attributes.getValue(CLASS_LOADING);
+        if (mode != null && "child-first".equalsIgnoreCase(mode.trim()))
+        {
+            return CHILD_FIRST;
+        }
+        if (mode != null && !"parent-first".equalsIgnoreCase(mode.trim()))
+        {
+            throw new IllegalArgumentException("Unknown value '" + mode + "' of manifest attribute " + CLASS_LOADING);
+        }
+
+        String packages = attributes.getValue(CHILD_FIRST_PACKAGES);
+        if (packages == null)
+        {
+            return PARENT_FIRST;
+        }
+        List<String> childFirstPackages = new ArrayList<>();
+        for (String pkg : packages.trim().split("\\s+"))
+        {
+            if (!pkg.isEmpty())
+            {
+                childFirstPackages.add(pkg);
+            }
+        }
+        return childFirst(childFirstPackages);
+    }
+
+    /**
+     * Returns true if the class with the given name should be loaded child-first.
+     *
+     * @param className
+     *         The fully qualified name of the class to load
+     *
+     * @return true if the class should be defined by the child before asking the parent class loader
+     */
+    public boolean isChildFirst(String className)
+    {
+        if (!this.childFirst && this.childFirstPackages.isEmpty())
+        {
+            return false;
+        }
+        for (String shared : SHARED_PACKAGES)
+        {
+            if (className.startsWith(shared))
+            {
+                return false;
+            }
+        }
+        if (this.childFirst)
+        {
+            return true;
+        }
+        for (String pkg : this.childFirstPackages)
+        {
+            if (className.startsWith(pkg))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (this.childFirst)
+        {
+            return "child-first";
+        }
+        if (this.childFirstPackages.isEmpty())
+        {
+            return "parent-first";
+        }
+        return "child-first for " + this.childFirstPackages;
+    }
+}
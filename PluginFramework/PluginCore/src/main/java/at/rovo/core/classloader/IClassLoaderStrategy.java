@@ -31,6 +31,22 @@ public interface IClassLoaderStrategy
      */
     byte[] findClassBytes(String name) throws IOException;
 
+    /**
+     * Returns false if this strategy is definitely not able to provide the bytes of the class with the given name.
+     * <p/>
+     * This allows the {@link StrategyClassLoader} to skip a strategy without performing any I/O. The default
+     * implementation can't rule out any class and therefore always returns true.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return false if the strategy can't provide the class, true if it might be able to provide the class
+     */
+    default boolean containsClass(String className)
+    {
+        return true;
+    }
+
     /**
      * Return URL for resource given by resourceName.
      *
@@ -1,51 +1,50 @@
 package at.rovo.core.classloader;
 
 import at.rovo.common.annotations.Component;
-import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.IComponentInjector;
+import at.rovo.core.injection.ComponentMetadata;
 import at.rovo.core.injection.Instrumented;
-import at.rovo.common.plugin.InjectionException;
-import java.io.File;
+import at.rovo.core.util.ClassFileInspector;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
-import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javassist.ByteArrayClassPath;
-import javassist.CannotCompileException;
-import javassist.ClassClassPath;
-import javassist.ClassPath;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtConstructor;
-import javassist.CtField;
-import javassist.CtMethod;
-import javassist.CtNewConstructor;
-import javassist.Modifier;
-import javassist.NotFoundException;
-import javassist.bytecode.AnnotationsAttribute;
-import javassist.bytecode.ClassFile;
-import javassist.bytecode.ConstPool;
-import javassist.bytecode.annotation.Annotation;
 
 /**
  * <code>InjectionLoaderStrategyDecorator</code> is a decorator for {@link IClassLoaderStrategy} objects. It uses bytes
  * retrieved by the decorated strategy and modifies these with additional lines of code which will be written into the
- * byte array using Javassist therefore. The resulting bytes of the modified class are then sent to the invoking class
- * of the strategy.
- * <p/>
- * To be able to instrument the byte array returned by the decorated strategy, the jar file that includes the .class
- * file of the class to manipulate needs to be set via {@link #setJarFile(File)}.
+ * byte array using an {@link InstrumentationEngine} therefore. The resulting bytes of the modified class are then sent
+ * to the invoking class of the strategy.
  * <p/>
  * This decorator only decorates {@link Component} annotated classes which do NOT match any of the following packages:
  * <code> <ul> <li>java</li> <li>javax</li> <li>sun</li> <li>com.sun</li> <li>org.jdom</li> <li>org.apache</li> </ul>
  * </code>
  * <p/>
  * Further it keeps track of already instrumented classes which will get skipped on additional calls.
+ * <p/>
+ * Before a class is handed to the engine, its constant pool is scanned via {@link ClassFileInspector}. Classes which
+ * do not reference the {@link Component} annotation at all, or which are already marked as {@link Instrumented}, are
+ * returned untouched without being parsed by the engine.
+ * <p/>
+ * Instrumented bytes are stored in the {@link InstrumentedClassCache} under the digest of the bytes returned by the
+ * decorated strategy. Unchanged classes are therefore served from the cache on the next start or reload without being
+ * instrumented again, no matter which version of a plug-in they got read from.
+ * <p/>
+ * While a component gets instrumented, served from the cache or found to be instrumented already, its
+ * {@link ComponentMetadata} is recorded, which is available afterwards via {@link #getComponentMetadata(Class)} without
+ * inspecting the class again.
+ * <p/>
+ * Components whose plug-in contains an {@link IComponentInjector} generated at compile time don't get an injector
+ * method woven into them, as their fields are assigned by the generated injector.
  *
  * @author Roman Vottner
  */
@@ -53,12 +52,21 @@ public class InjectionLoaderStrategyDecorator implements IClassLoaderStrategy
 {
     /** The logger of this class **/
     private final static Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+    /** The descriptor of the {@link Component} annotation as found in the constant pool of a class **/
+    private static final String COMPONENT_DESCRIPTOR = ClassFileInspector.toDescriptor(Component.class.getName());
+    /** The descriptor of the {@link Instrumented} annotation as found in the constant pool of a class **/
+    private static final String INSTRUMENTED_DESCRIPTOR =
+            ClassFileInspector.toDescriptor(Instrumented.class.getName());
     /** The strategy to decorate **/
     private IClassLoaderStrategy strategy = null;
-    /** The jar file to load the class bytes from for class modifications **/
-    private File jarFile = null;
     /** A list of class prefixes that should not be instrumented */
     private final List<String> classesToSkip = new ArrayList<>();
+    /** The cache of instrumented class bytes or null if instrumented classes should not be cached **/
+    private InstrumentedClassCache cache = InstrumentedClassCache.getDefault();
+    /** The engine which instruments the components of the decorated strategy **/
+    private InstrumentationEngine engine;
+    /** The metadata of the components of the decorated strategy by the name of the component **/
+    private final Map<String, ComponentMetadata> metadata = new ConcurrentHashMap<>();
 
     /**
      * Creates a new instance of this class and sets the strategy of an {@link StrategyClassLoader} to decorate.
@@ -69,6 +77,7 @@ public class InjectionLoaderStrategyDecorator implements IClassLoaderStrategy
     public InjectionLoaderStrategyDecorator(IClassLoaderStrategy strategy)
     {
         this.strategy = strategy;
+        this.engine = InstrumentationEngine.create(strategy);
 
         // Build the list of class prefixes to skip
         classesToSkip.add("javax.");
@@ -80,14 +89,25 @@ public class InjectionLoaderStrategyDecorator implements IClassLoaderStrategy
     }
 
     /**
-     * Sets the jar file which contains the class definition of the {@link Component}s to modify.
+     * Sets the cache instrumented class bytes should be stored in.
+     *
+     * @param cache
+     *         The cache of instrumented class bytes or null to disable caching
+     */
+    public void setCache(InstrumentedClassCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the engine which instruments the components of the decorated strategy.
      *
-     * @param jarFile
-     *         The JAR file to use for this decorator
+     * @param engine
+     *         The instrumentation engine to use
      */
-    public void setJarFile(File jarFile)
+    public void setInstrumentationEngine(InstrumentationEngine engine)
     {
-        this.jarFile = jarFile;
+        this.engine = engine;
     }
 
     @Override
@@ -103,285 +123,208 @@ public class InjectionLoaderStrategyDecorator implements IClassLoaderStrategy
         }
 
         // get class bytes from the class loader strategy we are decorating
+        long start = System.nanoTime();
         byte[] strategyBytes = this.strategy.findClassBytes(className);
+        long nanos = System.nanoTime() - start;
+        int bytesRead = strategyBytes != null ? strategyBytes.length : 0;
+        ClassLoadingMetrics.forStrategy(this.strategy.getClass()).recordStrategyCall(nanos, bytesRead);
         if (strategyBytes != null)
         {
-            // Javassist part starts here
-            ClassPool cp = ClassPool.getDefault();
-            cp.insertClassPath(new ClassClassPath(this.getClass()));
-            ClassPath cp1;
-            ClassPath cp2;
-            try
-            {
-                cp1 = cp.insertClassPath(this.jarFile.getAbsolutePath());
-            }
-            catch (NotFoundException e1)
+            // the vast majority of classes are no components - these are returned as they are
+            if (!this.requiresInstrumentation(className, strategyBytes))
             {
-                e1.printStackTrace();
-                return null;
+                return strategyBytes;
             }
-            cp2 = cp.appendClassPath(new ByteArrayClassPath(className, strategyBytes));
 
-            try
+            // components with an injector generated at compile time don't need an injector method
+            boolean addInjector = !this.hasGeneratedInjector(className);
+
+            // classes of an unchanged plug-in got already instrumented before
+            String cacheKey = this.getCacheKey(className, strategyBytes, addInjector);
+            if (cacheKey != null)
             {
-                CtClass cc = cp.get(className);
-                // skip instrumentation if the class is frozen and therefore can't be modified
-                if (!cc.isFrozen())
+                byte[] cachedBytes = this.cache.get(cacheKey, strategyBytes);
+                if (cachedBytes != null)
                 {
-                    // skip the injection if either the class is not a component or already got instrumented
-                    if (cc.hasAnnotation(Component.class) && !cc.hasAnnotation(Instrumented.class))
-                    {
-                        // add an annotation to the class bytes so we know that we already instrumented that class
-                        this.addAnnotationToClass(cc, Instrumented.class, cp);
-
-                        LOGGER.log(Level.FINE, "Class {0} has annotation {1}: {2}",
-                                   new Object[] {cc.getName(), Instrumented.class.getName(),
-                                                 cc.hasAnnotation(Instrumented.class)});
-                        LOGGER.log(Level.FINE, "Class {0} has annotation {1}: {2}",
-                                   new Object[] {cc.getName(), Component.class.getName(),
-                                                 cc.hasAnnotation(Component.class)});
-
-                        // treat singleton components differently to prototype components as they require an
-                        // initialization method as the constructor is private
-                        Object o = cc.getAnnotation(Component.class);
-                        Component comp = null;
-                        if (o.toString().contains(Component.class.getName()))
-                        {
-                            comp = (Component) o;
-                        }
-                        if (comp != null && comp.scope().equals(ScopeType.SINGLETON))
-                        {
-                            // the component is a singleton!
-                            // fetch the instance field we want to inject the call to
-                            this.findSingletonFieldsAndInjectCode(cc);
-                        }
-                        else if (comp != null)
-                        {
-                            // the component is a prototype object which means a call of its constructor is safe
-                            CtConstructor constructor;
-                            if (cc.getConstructors().length == 0)
-                            {
-                                constructor = CtNewConstructor.defaultConstructor(cc);
-                                cc.addConstructor(constructor);
-                            }
-                            else
-                            {
-                                constructor = cc.getDeclaredConstructor(null);
-                            }
-
-                            // Only instrument the default constructor in this
-                            // class, not in the super class because the super
-                            // class will be instrumented separately
-                            if (constructor.getLongName().startsWith(className))
-                            {
-                                String code  = "at.rovo.core.injection.IInjectionController ic = " +
-                                                   "at.rovo.core.injection.InjectionControllerImpl.INSTANCE; " +
-                                               "ic.initialize(this);";
-
-                                constructor.insertAfter(code);
-                            }
-                        }
-                    }
+                    LOGGER.log(Level.FINE, "Serving instrumented class {0} from cache", new Object[] {className});
+                    this.recordMetadata(className, strategyBytes);
+                    return cachedBytes;
                 }
-
-                strategyBytes = cc.toBytecode();
             }
-            catch (NotFoundException | IOException | CannotCompileException | ClassNotFoundException e)
+
+            InstrumentedClass instrumented = this.engine.instrument(className, strategyBytes, addInjector);
+            if (instrumented != null)
             {
-                throw new InjectionException(e.getLocalizedMessage());
+                this.metadata.put(className, instrumented.getMetadata());
+                strategyBytes = instrumented.getBytes();
             }
 
-            // free the locked resource files
-            cp.removeClassPath(cp1);
-            cp.removeClassPath(cp2);
+            if (cacheKey != null)
+            {
+                this.cache.put(cacheKey, instrumented != null ? strategyBytes : null);
+            }
         }
         return strategyBytes;
     }
 
     /**
-     * Adds a annotation at class level to the provided class.
+     * Checks via a scan of the class file if the given class is a {@link Component} which was not yet instrumented. A
+     * class which does not reference the {@link Component} annotation in its constant pool can't be annotated with it.
+     * The metadata of a component which got instrumented already is recorded on the way.
      *
-     * @param cc
-     *         The class to inject the annotation into
-     * @param annotation
-     *         The annotation to inject
+     * @param className
+     *         The fully qualified name of the class
+     * @param classBytes
+     *         The bytes of the class as returned by the decorated strategy
      *
-     * @throws NotFoundException
+     * @return true if the class needs to be instrumented, false if it can be returned untouched
      */
-    private void addAnnotationToClass(CtClass cc, Class<?> annotation, ClassPool cp) throws NotFoundException
+    private boolean requiresInstrumentation(String className, byte[] classBytes)
     {
-        if (!annotation.isAnnotation())
+        try
         {
-            LOGGER.log(Level.WARNING, "Failed to add class {0} as annotation to {1} as it is not an annotation",
-                       new Object[] {annotation.getName(), cc.getName()});
-            return;
+            if (!ClassFileInspector.containsUtf8(classBytes, COMPONENT_DESCRIPTOR))
+            {
+                return false;
+            }
+            if (ClassFileInspector.containsUtf8(classBytes, INSTRUMENTED_DESCRIPTOR))
+            {
+                List<String> annotations = ClassFileInspector.getClassAnnotations(classBytes);
+                if (!annotations.contains(COMPONENT_DESCRIPTOR))
+                {
+                    return false;
+                }
+                if (annotations.contains(INSTRUMENTED_DESCRIPTOR))
+                {
+                    this.recordMetadata(className, classBytes);
+                    return false;
+                }
+                return true;
+            }
+            return true;
         }
-
-        ClassFile ccFile = cc.getClassFile();
-        ConstPool constPool = ccFile.getConstPool();
-
-        // check if there are already annotations available
-        AnnotationsAttribute attr = (AnnotationsAttribute) ccFile.getAttribute(AnnotationsAttribute.visibleTag);
-        if (attr == null)
+        catch (IllegalArgumentException iaEx)
         {
-            // no annotations found so create one
-            LOGGER.log(Level.WARNING,
-                       "fetching annotation attributes from class file of {0} failed. Creating new one instead",
-                       new Object[] {cc.getName()});
-            attr = new AnnotationsAttribute(constPool, AnnotationsAttribute.visibleTag);
+            // let the engine deal with class files the inspector does not understand
+            LOGGER.log(Level.FINE, "Could not inspect class file of {0}: {1}",
+                       new Object[] {className, iaEx.getLocalizedMessage()});
+            return true;
         }
-        Annotation annot = new Annotation(constPool, cp.get(annotation.getName()));
-        attr.addAnnotation(annot);
-        ccFile.addAttribute(attr);
+    }
 
-        LOGGER.log(Level.FINE, "Added {0} as annotation at class level to {1}",
-                   new Object[] {annotation.getName(), cc.getName()});
+    /**
+     * Records the metadata of a component which is not instrumented by this decorator from the bytes of the class
+     * already at hand.
+     *
+     * @param className
+     *         The fully qualified name of the component
+     * @param classBytes
+     *         The bytes of the component as returned by the decorated strategy
+     */
+    private void recordMetadata(String className, byte[] classBytes)
+    {
+        ComponentMetadata componentMetadata = this.engine.readMetadata(className, classBytes);
+        if (componentMetadata != null)
+        {
+            this.metadata.put(className, componentMetadata);
+        }
     }
 
     /**
-     * Iterates through defined fields of the provided class and injects necessary code for singleton classes.
-     * <p/>
-     * The method looks for a field that is static and has either the same type as the class it is defined in or is of
-     * type {@link WeakReference}.
-     * <p/>
-     * If multiple fields match the given name an {@link InjectionException} will be thrown indicating the ambiguity
-     * found. If no matching field could be found one will be generated automatically. Note further that a method with
-     * name <code>getInstance()</code> will be looked which will be replaced by an own implementation.
+     * Checks if the decorated strategy provides an {@link IComponentInjector} generated at compile time for the given
+     * component.
      *
-     * @param cc
-     *         The class to inject code into
+     * @param className
+     *         The fully qualified name of the component
      *
-     * @throws NotFoundException
-     * @throws CannotCompileException
+     * @return true if the strategy contains the generated injector of the component, false otherwise
      */
-    private void findSingletonFieldsAndInjectCode(CtClass cc) throws CannotCompileException, NotFoundException
+    private boolean hasGeneratedInjector(String className)
     {
-        int count = 0;
-        for (CtField field : cc.getDeclaredFields())
+        String injectorName = className + IComponentInjector.INJECTOR_SUFFIX;
+        if (!this.strategy.containsClass(injectorName))
         {
-            // the field holding the singleton reference is obviously a static
-            // field.
-            if (Modifier.isStatic(field.getModifiers()))
-            {
-                CtClass retType = field.getType();
-                // the type of the field has to either match the class name
-                // or WeakReference
-                if (retType.getName().equals(cc.getName()) || retType.getName().equals("java.lang.ref.WeakReference"))
-                {
-                    LOGGER.log(Level.INFO, "found singleton field to inject: {0}", new Object[] {field.getName()});
-
-                    count++;
-                    if (count > 1)
-                    {
-                        throw new InjectionException("Multiple fields found that could be appropriate for injection!");
-                    }
-
-                    this.injectIntoSingletonField(cc, field);
-                }
-            }
+            return false;
         }
-
-        // no static field available so call the injection method without a
-        // field. It uses the field just to delete it and replace it with its
-        // own version
-        if (count == 0)
+        try
         {
-            LOGGER.log(Level.WARNING,
-                       "No static field found in {0} that could hold the singleton. Adding an appropriate field instead",
-                       new Object[] {cc.getName()});
-            this.injectIntoSingletonField(cc, null);
+            return this.strategy.findResource(injectorName.replace('.', '/') + ".class") != null;
+        }
+        catch (IOException ioEx)
+        {
+            return false;
         }
     }
 
     /**
-     * This method removes the field holding the singleton instance and a the corresponding getInstance() method and
-     * replaces it with its own version.
+     * Discards the state the instrumentation engine keeps for instrumenting further classes.
      * <p/>
-     * The code injected will make use of the <em>WeakSingleton</em> pattern which unloads the singleton if no strong
-     * reference is pointing to the singleton. This might lead to flaws as if no plugin-global reference is kept to the
-     * singleton it might get eligible for garbage collection.
+     * This method should be invoked once all classes of the plug-in got loaded or the plug-in gets unloaded.
+     */
+    public void close()
+    {
+        this.engine.close();
+    }
+
+    /**
+     * Returns the key of the cache entry for the given class.
      *
-     * @param cc
-     *         The class to inject code into
-     * @param instance
-     *         The field which declares the static singleton instance
+     * @param className
+     *         The fully qualified name of the class
+     * @param classBytes
+     *         The bytes of the class as returned by the decorated strategy
+     * @param addInjector
+     *         Whether the injector method gets added to the class
      *
-     * @throws CannotCompileException
-     * @throws NotFoundException
+     * @return The key of the cache entry or null if classes should not be cached
      */
-    private void injectIntoSingletonField(CtClass cc, CtField instance) throws CannotCompileException, NotFoundException
+    private String getCacheKey(String className, byte[] classBytes, boolean addInjector)
     {
-        // removing the old instance field
-        if (instance != null)
+        if (this.cache == null)
         {
-            LOGGER.log(Level.FINE, "removing field {0} from {1}", new Object[] {instance.getName(), cc.getName()});
-            cc.removeField(instance);
+            return null;
         }
+        return this.cache.createKey(classBytes, className, this.engine, addInjector);
+    }
 
-        // adding the controller as a private field to
-        // the class
-        CtField controller = CtField.make("private static at.rovo.core.injection.IInjectionController ic " +
-                                          "= at.rovo.core.injection.InjectionControllerImpl.INSTANCE;", cc);
-        cc.addField(controller);
-        LOGGER.log(Level.FINE, "added field to {0}", new Object[] {cc.getName()});
-
-        // adding the new instance field
-        String code = "private static java.lang.ref.WeakReference REFERENCE;";
-        LOGGER.log(Level.FINE, "adding field {0} to {1}", new Object[] {code, cc.getName()});
-        CtField newInstance = CtField.make(code, cc);
-        cc.addField(newInstance);
-
-        // remove any existing getInstance() method of singletons
-
-        CtMethod getInstance = cc.getDeclaredMethod("getInstance", new CtClass[] {});
-        if (getInstance != null)
+    /**
+     * Returns the metadata of a component of the decorated strategy. If the metadata was not recorded while loading
+     * the class, f.e. as the class was not loaded via this decorator, it is extracted from the class once and kept
+     * afterwards.
+     *
+     * @param clazz
+     *         The component to return the metadata for
+     *
+     * @return The metadata of the component or null if the class is no component
+     */
+    public ComponentMetadata getComponentMetadata(Class<?> clazz)
+    {
+        ComponentMetadata componentMetadata = this.metadata.get(clazz.getName());
+        if (componentMetadata == null)
         {
-            LOGGER.log(Level.FINE, "Removing getInstance() method of {0}", new Object[] {cc.getName()});
-            cc.removeMethod(getInstance);
+            componentMetadata = ComponentMetadata.fromClass(clazz);
+            if (componentMetadata != null)
+            {
+                this.metadata.putIfAbsent(clazz.getName(), componentMetadata);
+            }
         }
+        return componentMetadata;
+    }
 
-        // add a new version of the singletons getInstance() method to the class
-        StringBuilder sb = new StringBuilder();
-        sb.append("public static ");
-        sb.append(cc.getName());
-        sb.append(" getInstance() {\n");
-        sb.append("if (REFERENCE == null) {\n");
-        sb.append("synchronized(");
-        sb.append(cc.getName());
-        sb.append(".class) {\n");
-        sb.append("if (REFERENCE == null) {\n");
-        sb.append("final ");
-        sb.append(cc.getName());
-        sb.append(" instance = (");
-        sb.append(cc.getName());
-        sb.append(")ic.initialize(new ");
-        sb.append(cc.getName());
-        sb.append("());\n");
-        sb.append("REFERENCE = new java.lang.ref.WeakReference(instance);\n");
-        sb.append("}\n}\n}\n");
-        sb.append(cc.getName());
-        sb.append(" instance = (");
-        sb.append(cc.getName());
-        sb.append(")REFERENCE.get();\n");
-        sb.append("if (instance != null)\n");
-        sb.append("return instance;\n");
-        sb.append("synchronized(");
-        sb.append(cc.getName());
-        sb.append(".class) {\n");
-        sb.append("instance = (");
-        sb.append(cc.getName());
-        sb.append(")ic.initialize(new ");
-        sb.append(cc.getName());
-        sb.append("());\n");
-        sb.append("REFERENCE = new java.lang.ref.WeakReference(instance);\n");
-        sb.append("return instance;\n");
-        sb.append("}\n}");
-
-        LOGGER.log(Level.FINE, "Adding modified version of getInstance() to {0} - content is:\n{1}",
-                   new Object[] {cc.getName(), sb.toString()});
+    /**
+     * Returns the metadata of all components whose metadata is known so far.
+     *
+     * @return The metadata of the known components of the decorated strategy
+     */
+    public Collection<ComponentMetadata> getComponentMetadata()
+    {
+        return Collections.unmodifiableCollection(this.metadata.values());
+    }
 
-        getInstance = CtMethod.make(sb.toString(), cc);
-        cc.addMethod(getInstance);
+    @Override
+    public boolean containsClass(String className)
+    {
+        return strategy.containsClass(className);
     }
 
     @Override
@@ -407,40 +350,4 @@ public class InjectionLoaderStrategyDecorator implements IClassLoaderStrategy
     {
         return strategy.findLibraryPath(libraryName);
     }
-
-    /**
-     * Checks if a specified fully-qualified class name is a {@link Component} with {@link ScopeType#SINGLETON}.
-     *
-     * @param name
-     *         Fully qualified name of the class to check for being a {@link ScopeType#SINGLETON} {@link Component}
-     *
-     * @return true if the <code>name</code> could be inferred to a {@link ScopeType#SINGLETON} {@link Component}
-     *
-     * @throws IOException
-     *         If during loading a resource an exception occurred
-     */
-    public boolean isSingleton(String name) throws IOException
-    {
-        byte[] strategyBytes = this.strategy.findClassBytes(name);
-        ClassPool cp = ClassPool.getDefault();
-        cp.insertClassPath(new ByteArrayClassPath(name, strategyBytes));
-
-        try
-        {
-            CtClass cc = cp.get(name);
-            if (cc.hasAnnotation(Component.class))
-            {
-                Component comp = (Component) cc.getAnnotation(Component.class);
-                if (comp.scope().equals(ScopeType.SINGLETON))
-                {
-                    return true;
-                }
-            }
-        }
-        catch (NotFoundException | ClassNotFoundException e)
-        {
-            e.printStackTrace();
-        }
-        return false;
-    }
 }
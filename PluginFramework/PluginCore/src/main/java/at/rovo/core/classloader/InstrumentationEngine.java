@@ -0,0 +1,150 @@
+package at.rovo.core.classloader;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.injection.ComponentMetadata;
+
+/**
+ * Weaves the calls to the {@link at.rovo.core.injection.IInjectionController} into the bytes of {@link Component}
+ * annotated classes.
+ * <p/>
+ * Prototype components get the controller invoked at the end of their default constructor, while the
+ * <code>getInstance()</code> method of singleton components is replaced by one which initializes the singleton via the
+ * controller and keeps it in a {@link at.rovo.core.injection.SingletonHolder}. Components also get an injector
+ * method named {@link #INJECTOR_METHOD}, which assigns the instances resolved by the controller to the fields of the
+ * component via plain field writes or setter calls, unless an {@link at.rovo.common.plugin.IComponentInjector} got
+ * generated for the component at compile time of its plug-in. Every instrumented class is further marked with the {@link
+ * at.rovo.core.injection.Instrumented} annotation.
+ * <p/>
+ * An engine is used by a single {@link InjectionLoaderStrategyDecorator} but may be invoked by multiple threads
+ * concurrently. The engine to use is selected via the system property <em>at.rovo.core.instrumentation.engine</em>,
+ * which is either <em>asm</em> (default) for the {@link AsmInstrumentationEngine} or <em>javassist</em> for the {@link
+ * JavassistInstrumentationEngine}.
+ *
+ * @author Roman Vottner
+ */
+public interface InstrumentationEngine
+{
+    /** The name of the static field which holds the {@link at.rovo.core.injection.SingletonHolder} of a singleton **/
+    String SINGLETON_FIELD = "REFERENCE";
+    /** The name of the method which assigns the fields of a component via the injection controller **/
+    String INJECTOR_METHOD = "$inject";
+
+    /**
+     * Returns the name of this engine. The name is part of the key of instrumented classes in the {@link
+     * InstrumentedClassCache}, as different engines produce different bytes.
+     *
+     * @return The name of the engine
+     */
+    String getName();
+
+    /**
+     * Returns the version of the bytecode emitted by this engine. The version is part of the key of instrumented
+     * classes in the {@link InstrumentedClassCache} and has to be increased whenever the engine changes the bytes it
+     * weaves into a component, so that classes instrumented by a previous version are not served from the cache
+     * anymore.
+     *
+     * @return The version of the emitted bytecode
+     */
+    String getFormatVersion();
+
+    /**
+     * Instruments the given class if it is a {@link Component} which was not instrumented before. The component gets an
+     * injector method added.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     * @param classBytes
+     *         The bytes of the class to instrument
+     *
+     * @return The instrumented class or null if the class was left untouched
+     *
+     * @throws InjectionException
+     *         If the component can't be instrumented
+     */
+    default InstrumentedClass instrument(String className, byte[] classBytes) throws InjectionException
+    {
+        return this.instrument(className, classBytes, true);
+    }
+
+    /**
+     * Instruments the given class if it is a {@link Component} which was not instrumented before.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     * @param classBytes
+     *         The bytes of the class to instrument
+     * @param addInjector
+     *         Whether the injector method should be added to the component, which is not required if an {@link
+     *         at.rovo.common.plugin.IComponentInjector} got generated for the component at compile time
+     *
+     * @return The instrumented class or null if the class was left untouched
+     *
+     * @throws InjectionException
+     *         If the component can't be instrumented
+     */
+    InstrumentedClass instrument(String className, byte[] classBytes, boolean addInjector) throws InjectionException;
+
+    /**
+     * Reads the metadata of a component without instrumenting it.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     * @param classBytes
+     *         The bytes of the class
+     *
+     * @return The metadata of the component or null if the class is not annotated with {@link Component}
+     */
+    ComponentMetadata readMetadata(String className, byte[] classBytes);
+
+    /**
+     * Releases any state kept for instrumenting further classes.
+     */
+    default void close()
+    {
+
+    }
+
+    /**
+     * Creates the engine selected via the system property <em>at.rovo.core.instrumentation.engine</em>.
+     *
+     * @param strategy
+     *         The strategy providing the classes to instrument and the classes referenced by them
+     *
+     * @return The selected instrumentation engine
+     *
+     * @throws IllegalArgumentException
+     *         If the system property names an unknown engine
+     */
+    static InstrumentationEngine create(IClassLoaderStrategy strategy)
+    {
+        return create(System.getProperty("at.rovo.core.instrumentation.engine", AsmInstrumentationEngine.NAME),
+                      strategy);
+    }
+
+    /**
+     * Creates the engine with the given name.
+     *
+     * @param engine
+     *         The name of the engine, which is either <em>asm</em> or <em>javassist</em>
+     * @param strategy
+     *         The strategy providing the classes to instrument and the classes referenced by them
+     *
+     * @return The named instrumentation engine
+     *
+     * @throws IllegalArgumentException
+     *         If the name denotes an unknown engine
+     */
+    static InstrumentationEngine create(String engine, IClassLoaderStrategy strategy)
+    {
+        if (AsmInstrumentationEngine.NAME.equalsIgnoreCase(engine))
+        {
+            return new AsmInstrumentationEngine();
+        }
+        if (JavassistInstrumentationEngine.NAME.equalsIgnoreCase(engine))
+        {
+            return new JavassistInstrumentationEngine(strategy);
+        }
+        throw new IllegalArgumentException("Unknown instrumentation engine: " + engine);
+    }
+}
@@ -0,0 +1,51 @@
+package at.rovo.core.classloader;
+
+import at.rovo.core.injection.ComponentMetadata;
+
+/**
+ * The outcome of instrumenting a component via an {@link InstrumentationEngine}: the instrumented bytes and the
+ * metadata of the component recorded in the same pass.
+ *
+ * @author Roman Vottner
+ */
+public final class InstrumentedClass
+{
+    /** The bytes of the instrumented class **/
+    private final byte[] bytes;
+    /** The metadata of the component **/
+    private final ComponentMetadata metadata;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param bytes
+     *         The bytes of the instrumented class
+     * @param metadata
+     *         The metadata of the component
+     */
+    public InstrumentedClass(byte[] bytes, ComponentMetadata metadata)
+    {
+        this.bytes = bytes;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns the bytes of the instrumented class.
+     *
+     * @return The instrumented bytes
+     */
+    public byte[] getBytes()
+    {
+        return this.bytes;
+    }
+
+    /**
+     * Returns the metadata of the component.
+     *
+     * @return The metadata of the component
+     */
+    public ComponentMetadata getMetadata()
+    {
+        return this.metadata;
+    }
+}
@@ -0,0 +1,344 @@
+package at.rovo.core.classloader;
+
+import at.rovo.core.util.Digest;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent, content-addressed cache of instrumented class bytes.
+ * <p/>
+ * Entries are keyed by the digest of the original bytes of the class, the name of the class, the engine along with the
+ * version of the bytecode it emits, whether an injector method got added and the version of the framework which
+ * instrumented the class. As the key is derived from the very bytes which get instrumented, an entry can never be
+ * served for a different version of the class, while an unchanged class gets the very same bytes on every start or
+ * reload without being instrumented again. An empty entry marks a class which was left untouched by the
+ * instrumentation.
+ * <p/>
+ * Entries are written to a temporary file first which is then moved into place, so concurrent readers and other
+ * processes sharing the cache directory never see partially written entries. Once the total size of the cache exceeds
+ * its limit, the least recently used entries are removed.
+ * <p/>
+ * The shared cache is configured via the system properties <em>at.rovo.core.weaveCache.dir</em> (default
+ * <em>plugin-weave-cache</em> inside the temporary directory), <em>at.rovo.core.weaveCache.maxBytes</em> (default 64
+ * MB) and <em>at.rovo.core.weaveCache.enabled</em> (default true).
+ *
+ * @author Roman Vottner
+ */
+public final class InstrumentedClassCache
+{
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(InstrumentedClassCache.class.getName());
+    /**
+     * The version of the layout of the cache entries. Changes of the instrumented bytecode are covered by {@link
+     * InstrumentationEngine#getFormatVersion()} instead
+     **/
+    private static final String FORMAT_VERSION = "3";
+    /** The marker of an unmodified class **/
+    private static final byte[] UNCHANGED = new byte[0];
+    /** The suffix of the cache entries **/
+    private static final String SUFFIX = ".class";
+
+    /** The directory the entries are stored in **/
+    private final Path directory;
+    /** The maximum number of bytes to keep in the cache **/
+    private final long maxBytes;
+    /** The version of the framework which instruments the classes **/
+    private final String frameworkVersion;
+    /** The current size of the cache in bytes or -1 if the cache directory has not been scanned yet **/
+    private final AtomicLong size = new AtomicLong(-1L);
+
+    /**
+     * Creates a new cache storing its entries in the given directory.
+     *
+     * @param directory
+     *         The directory to store the entries in
+     * @param maxBytes
+     *         The maximum number of bytes to keep in the cache
+     */
+    public InstrumentedClassCache(Path directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        String version = InstrumentedClassCache.class.getPackage().getImplementationVersion();
+        this.frameworkVersion = (version != null ? version : "unknown") + "/" + FORMAT_VERSION;
+    }
+
+    /**
+     * Returns the cache shared by all plug-ins.
+     *
+     * @return The shared cache or null if caching is disabled
+     */
+    public static InstrumentedClassCache getDefault()
+    {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Creates the key of the entry of a class.
+     *
+     * @param classBytes
+     *         The bytes of the class before instrumentation
+     * @param className
+     *         The fully qualified name of the class
+     * @param engine
+     *         The {@link InstrumentationEngine} which instruments the class
+     * @param addInjector
+     *         Whether the engine adds an injector method to the class
+     *
+     * @return The key of the cache entry
+     */
+    public String createKey(byte[] classBytes, String className, InstrumentationEngine engine, boolean addInjector)
+    {
+        return Digest.sha256(Digest.sha256(classBytes), className, engine.getName(), engine.getFormatVersion(),
+                             String.valueOf(addInjector), this.frameworkVersion);
+    }
+
+    /**
+     * Returns the cached bytes for the given key.
+     *
+     * @param key
+     *         The key of the entry
+     * @param originalBytes
+     *         The bytes of the class before instrumentation, which are returned if the instrumentation left the class
+     *         untouched
+     *
+     * @return The instrumented bytes, the original bytes if the class was not modified or null if the cache does not
+     * contain an entry for the key
+     */
+    public byte[] get(String key, byte[] originalBytes)
+    {
+        Path entry = this.getEntry(key);
+        try
+        {
+            byte[] bytes = Files.readAllBytes(entry);
+            if (bytes.length == 0)
+            {
+                return originalBytes;
+            }
+            if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xCA || (bytes[1] & 0xFF) != 0xFE ||
+                (bytes[2] & 0xFF) != 0xBA || (bytes[3] & 0xFF) != 0xBE)
+            {
+                LOGGER.log(Level.WARNING, "Removing corrupt cache entry {0}", new Object[] {entry});
+                this.remove(entry);
+                return null;
+            }
+            // keep track of the usage for evicting the least recently used entries
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return bytes;
+        }
+        catch (NoSuchFileException nsfEx)
+        {
+            return null;
+        }
+        catch (IOException ioEx)
+        {
+            LOGGER.log(Level.WARNING, "Could not read cache entry {0}: {1}",
+                       new Object[] {entry, ioEx.getLocalizedMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Stores the instrumented bytes of a class.
+     *
+     * @param key
+     *         The key of the entry
+     * @param bytes
+     *         The instrumented bytes of the class or null if the instrumentation left the class untouched
+     */
+    public void put(String key, byte[] bytes)
+    {
+        byte[] content = bytes != null ? bytes : UNCHANGED;
+        Path entry = this.getEntry(key);
+        Path temp = null;
+        try
+        {
+            Files.createDirectories(entry.getParent());
+            temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            Files.write(temp, content);
+            try
+            {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException amnsEx)
+            {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        }
+        catch (IOException ioEx)
+        {
+            LOGGER.log(Level.WARNING, "Could not write cache entry {0}: {1}",
+                       new Object[] {entry, ioEx.getLocalizedMessage()});
+            return;
+        }
+        finally
+        {
+            if (temp != null)
+            {
+                this.remove(temp);
+            }
+        }
+
+        if (this.size.get() < 0)
+        {
+            this.size.compareAndSet(-1L, this.scanSize());
+        }
+        else if (this.size.addAndGet(content.length) > this.maxBytes)
+        {
+            this.evict();
+        }
+    }
+
+    /**
+     * Returns the file of the entry with the given key. Entries are spread among sub-directories named after the first
+     * two characters of the key.
+     *
+     * @param key
+     *         The key of the entry
+     *
+     * @return The file of the entry
+     */
+    private Path getEntry(String key)
+    {
+        return this.directory.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * Returns all entries of the cache.
+     *
+     * @return The files of all entries
+     */
+    private List<Path> listEntries()
+    {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(this.directory))
+        {
+            return entries;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.directory))
+        {
+            for (Path dir : dirs)
+            {
+                if (Files.isDirectory(dir))
+                {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX))
+                    {
+                        files.forEach((Path file) -> entries.add(file));
+                    }
+                }
+            }
+        }
+        catch (IOException ioEx)
+        {
+            LOGGER.log(Level.WARNING, "Could not list the entries of {0}: {1}",
+                       new Object[] {this.directory, ioEx.getLocalizedMessage()});
+        }
+        return entries;
+    }
+
+    /**
+     * Calculates the total size of all entries and evicts entries if the limit is exceeded.
+     *
+     * @return The size of the cache after eviction
+     */
+    private long scanSize()
+    {
+        long total = 0L;
+        for (Path entry : this.listEntries())
+        {
+            total += entry.toFile().length();
+        }
+        if (total > this.maxBytes)
+        {
+            total = this.evict(this.listEntries(), total);
+        }
+        return total;
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is reduced to three quarters of its limit.
+     */
+    private synchronized void evict()
+    {
+        if (this.size.get() <= this.maxBytes)
+        {
+            // another thread evicted the entries in the meantime
+            return;
+        }
+        List<Path> entries = this.listEntries();
+        long total = 0L;
+        for (Path entry : entries)
+        {
+            total += entry.toFile().length();
+        }
+        this.size.set(this.evict(entries, total));
+    }
+
+    private long evict(List<Path> entries, long total)
+    {
+        entries.sort((Path p1, Path p2) -> Long.compare(p1.toFile().lastModified(), p2.toFile().lastModified()));
+        long target = this.maxBytes / 4 * 3;
+        for (Path entry : entries)
+        {
+            if (total <= target)
+            {
+                break;
+            }
+            long length = entry.toFile().length();
+            if (this.remove(entry))
+            {
+                total -= length;
+            }
+        }
+        LOGGER.log(Level.FINE, "Reduced the size of {0} to {1} bytes", new Object[] {this.directory, total});
+        return total;
+    }
+
+    private boolean remove(Path file)
+    {
+        try
+        {
+            return Files.deleteIfExists(file);
+        }
+        catch (IOException ioEx)
+        {
+            LOGGER.log(Level.WARNING, "Could not remove {0}: {1}", new Object[] {file, ioEx.getLocalizedMessage()});
+            return false;
+        }
+    }
+
+    /**
+     * Lazily initializes the shared cache instance.
+     */
+    private static final class Holder
+    {
+        private static final InstrumentedClassCache INSTANCE = create();
+
+        private static InstrumentedClassCache create()
+        {
+            if (!Boolean.parseBoolean(System.getProperty("at.rovo.core.weaveCache.enabled", "true")))
+            {
+                return null;
+            }
+            String dir = System.getProperty("at.rovo.core.weaveCache.dir",
+                                            new File(System.getProperty("java.io.tmpdir"), "plugin-weave-cache")
+                                                    .getPath());
+            long maxBytes = Long.getLong("at.rovo.core.weaveCache.maxBytes", 64L * 1024 * 1024);
+            return new InstrumentedClassCache(Paths.get(dir), maxBytes);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package at.rovo.core.classloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An in-memory index of the entries contained in a certain version of a jar file.
+ * <p/>
+ * The index is built once per version of the jar file and maps the name of each entry to its uncompressed size. This
+ * allows to answer whether an entry exists without opening the jar file and to read the content of an entry into a
+ * correctly sized buffer. The fully qualified names of the contained classes are kept as well, so a request for a class
+ * is answered by a single lookup without building an entry name first.
+ *
+ * @author Roman Vottner
+ */
+public final class JarEntryIndex
+{
+    /** The entry names mapped to their uncompressed sizes **/
+    private final Map<String, Long> entries;
+    /** The fully qualified names of the contained classes **/
+    private final Set<String> classNames;
+    /** The last modification timestamp of the indexed jar file **/
+    private final long lastModified;
+    /** The length of the indexed jar file **/
+    private final long length;
+
+    /**
+     * Creates a new index for the entries of the provided jar file.
+     *
+     * @param jarFile
+     *         The jar file to index
+     * @param lastModified
+     *         The last modification timestamp of the jar file
+     * @param length
+     *         The length of the jar file
+     */
+    public JarEntryIndex(JarFile jarFile, long lastModified, long length)
+    {
+        Map<String, Long> entries = new HashMap<>();
+        Enumeration<JarEntry> iter = jarFile.entries();
+        while (iter.hasMoreElements())
+        {
+            JarEntry entry = iter.nextElement();
+            if (!entry.isDirectory())
+            {
+                entries.put(entry.getName(), entry.getSize());
+            }
+        }
+        this.entries = entries;
+        this.classNames = getClassNames(entries.keySet());
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Returns true if the indexed jar file contains an entry with the given name.
+     *
+     * @param name
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return true if the entry is contained in the jar file
+     */
+    public boolean contains(String name)
+    {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Returns true if the indexed jar file contains a class with the given name.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return true if the class is contained in the jar file
+     */
+    public boolean containsClass(String className)
+    {
+        return this.classNames.contains(className);
+    }
+
+    /**
+     * Returns the uncompressed size of the entry with the given name.
+     *
+     * @param name
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return The uncompressed size of the entry or -1 if either the entry is not contained or its size is unknown
+     */
+    public long getSize(String name)
+    {
+        Long size = this.entries.get(name);
+        return size != null ? size : -1L;
+    }
+
+    /**
+     * Returns all entry names which end with the given name.
+     *
+     * @param name
+     *         The suffix of the entries to return
+     *
+     * @return The names of the matching entries
+     */
+    public List<String> findEntries(String name)
+    {
+        List<String> found = new ArrayList<>();
+        for (String entry : this.entries.keySet())
+        {
+            if (entry.endsWith(name))
+            {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the names of all entries of the indexed jar file.
+     *
+     * @return The names of all contained entries
+     */
+    public Iterable<String> getEntryNames()
+    {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * Returns true if this index was built for the specified version of the jar file.
+     *
+     * @param lastModified
+     *         The last modification timestamp of the jar file
+     * @param length
+     *         The length of the jar file
+     *
+     * @return true if the index matches the given version of the jar file
+     */
+    public boolean isVersion(long lastModified, long length)
+    {
+        return this.lastModified == lastModified && this.length == length;
+    }
+
+    /**
+     * Returns the fully qualified names of the classes among the provided entry names.
+     *
+     * @param entryNames
+     *         The names of the entries of a jar file
+     *
+     * @return The names of all classes
+     */
+    private static Set<String> getClassNames(Iterable<String> entryNames)
+    {
+        Set<String> classNames = new HashSet<>();
+        for (String name : entryNames)
+        {
+            if (name.endsWith(".class"))
+            {
+                classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+            }
+        }
+        return classNames;
+    }
+}
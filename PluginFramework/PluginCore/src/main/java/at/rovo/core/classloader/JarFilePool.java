@@ -0,0 +1,392 @@
+package at.rovo.core.classloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of open {@link JarFile} handles which are shared among all {@link PluginLoaderStrategy} instances.
+ * <p/>
+ * Opening a jar file requires the central directory of the archive to be parsed, which is a rather costly operation if
+ * it is repeated for every single class of a plug-in. This pool therefore keeps a limited number of handles open and
+ * evicts the least recently used idle handle once the open-file budget is exceeded.
+ * <p/>
+ * To keep the promise of not holding any locks on jar files, handles which have not been used for a certain amount of
+ * time are closed automatically by a background timer. A handle can further be released explicitly via {@link
+ * #release(File)}, f.e. if the plug-in finished loading or the jar file got removed. A handle of a jar file which got
+ * modified since it was opened is never handed out again, instead the modified file is opened on acquiring it.
+ * <p/>
+ * The budget and the idle timeout can be specified via the system properties <em>at.rovo.core.jarPool.maxOpen</em>
+ * (default 16) and <em>at.rovo.core.jarPool.idleTimeout</em> (in milliseconds, default 2000).
+ *
+ * @author Roman Vottner
+ */
+public final class JarFilePool
+{
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(JarFilePool.class.getName());
+
+    /** The maximum number of idle handles kept open at the same time **/
+    private final int maxOpen;
+    /** The time in milliseconds after which an idle handle gets closed **/
+    private final long idleTimeout;
+    /** The currently open handles in least-recently-used order **/
+    private final Map<File, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    /** The timer closing idle handles. It is only running while handles are open **/
+    private Timer timer = null;
+
+    /**
+     * Creates a new pool which keeps at most <em>maxOpen</em> idle handles open and closes handles after they have been
+     * idle for <em>idleTimeout</em> milliseconds.
+     *
+     * @param maxOpen
+     *         The open-file budget of this pool
+     * @param idleTimeout
+     *         The time in milliseconds an unused handle is kept open
+     */
+    public JarFilePool(int maxOpen, long idleTimeout)
+    {
+        if (maxOpen < 1)
+        {
+            throw new IllegalArgumentException("At least one jar file handle has to be allowed");
+        }
+        this.maxOpen = maxOpen;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the pool shared by all plug-ins.
+     *
+     * @return The shared jar file pool
+     */
+    public static JarFilePool getInstance()
+    {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Acquires a handle for the given jar file. If the pool does not contain an open handle for the current version of
+     * the file, a new one is opened and a handle of an outdated version is closed. The returned handle has to be closed
+     * after usage, which however only returns it to the pool.
+     *
+     * @param file
+     *         The jar file to acquire a handle for
+     *
+     * @return The acquired handle
+     *
+     * @throws IOException
+     *         If the jar file could not be opened
+     */
+    public Handle acquire(File file) throws IOException
+    {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Handle handle = this.acquirePooled(file, lastModified, length);
+        if (handle != null)
+        {
+            return handle;
+        }
+
+        // parsing the central directory may take a while, so the jar file is opened without holding the pool's lock
+        Handle opened = new Handle(this, file, new JarFile(file), lastModified, length);
+        synchronized (this.handles)
+        {
+            handle = this.acquirePooled(file, lastModified, length);
+            if (handle == null)
+            {
+                opened.users++;
+                this.handles.put(file, opened);
+                LOGGER.log(Level.FINE, "Opened jar file {0} - {1} handles open", new Object[] {file, this.handles.size()});
+                this.evictExceedingHandles();
+                this.startTimer();
+                return opened;
+            }
+        }
+        // another thread opened the same version of the file meanwhile
+        opened.closeIfUnused();
+        return handle;
+    }
+
+    /**
+     * Acquires the pooled handle of the given version of a jar file. A pooled handle of a different version of the file
+     * is removed from the pool and closed as soon as it is not used anymore.
+     *
+     * @param file
+     *         The jar file to acquire a handle for
+     * @param lastModified
+     *         The current last modification timestamp of the file
+     * @param length
+     *         The current length of the file
+     *
+     * @return The acquired handle or null if the pool does not contain a handle for this version of the file
+     */
+    private Handle acquirePooled(File file, long lastModified, long length)
+    {
+        synchronized (this.handles)
+        {
+            Handle handle = this.handles.get(file);
+            if (handle == null)
+            {
+                return null;
+            }
+            if (!handle.isVersion(lastModified, length))
+            {
+                LOGGER.log(Level.FINE, "Jar file {0} changed since it was opened", new Object[] {file});
+                this.handles.remove(file);
+                handle.retire();
+                return null;
+            }
+            handle.users++;
+            return handle;
+        }
+    }
+
+    /**
+     * Closes the pooled handle of the given jar file. If the handle is currently in use it will be closed as soon as the
+     * last user returns it.
+     *
+     * @param file
+     *         The jar file whose handle should be closed
+     */
+    public void release(File file)
+    {
+        synchronized (this.handles)
+        {
+            Handle handle = this.handles.remove(file);
+            if (handle != null)
+            {
+                handle.retire();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of handles currently kept open by this pool.
+     *
+     * @return The number of open handles
+     */
+    public int getOpenHandles()
+    {
+        synchronized (this.handles)
+        {
+            return this.handles.size();
+        }
+    }
+
+    /**
+     * Closes the least recently used idle handles until the open-file budget is met again. Handles which are in use
+     * can't be closed, so the budget might be exceeded temporarily if all handles are in use.
+     */
+    private void evictExceedingHandles()
+    {
+        Iterator<Handle> iter = this.handles.values().iterator();
+        while (this.handles.size() > this.maxOpen && iter.hasNext())
+        {
+            Handle handle = iter.next();
+            if (handle.users == 0)
+            {
+                iter.remove();
+                handle.retire();
+            }
+        }
+    }
+
+    /**
+     * Closes all handles that have not been used within the idle timeout.
+     */
+    private void closeIdleHandles()
+    {
+        synchronized (this.handles)
+        {
+            long now = System.currentTimeMillis();
+            List<Handle> idle = new ArrayList<>();
+            for (Handle handle : this.handles.values())
+            {
+                if (handle.users == 0 && now - handle.lastUsed >= this.idleTimeout)
+                {
+                    idle.add(handle);
+                }
+            }
+            for (Handle handle : idle)
+            {
+                this.handles.remove(handle.file);
+                handle.retire();
+            }
+            if (this.handles.isEmpty())
+            {
+                this.stopTimer();
+            }
+        }
+    }
+
+    private void startTimer()
+    {
+        if (this.timer == null)
+        {
+            this.timer = new Timer("JarFilePool", true);
+            long period = Math.max(100L, this.idleTimeout / 2);
+            this.timer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    closeIdleHandles();
+                }
+            }, period, period);
+        }
+    }
+
+    private void stopTimer()
+    {
+        if (this.timer != null)
+        {
+            this.timer.cancel();
+            this.timer = null;
+        }
+    }
+
+    /**
+     * A pooled reference to an open {@link JarFile}. Closing the handle returns it to the pool.
+     */
+    public static final class Handle implements AutoCloseable
+    {
+        /** The pool this handle belongs to **/
+        private final JarFilePool pool;
+        /** The file this handle was opened for **/
+        private final File file;
+        /** The open jar file **/
+        private final JarFile jarFile;
+        /** The last modification timestamp of the file when the handle was opened **/
+        private final long lastModified;
+        /** The length of the file when the handle was opened **/
+        private final long length;
+        /** The number of current users of this handle. Guarded by the pools lock **/
+        private int users = 0;
+        /** The time this handle was returned the last time. Guarded by the pools lock **/
+        private long lastUsed = System.currentTimeMillis();
+        /** Marks this handle as removed from the pool. Guarded by the pools lock **/
+        private boolean retired = false;
+
+        private Handle(JarFilePool pool, File file, JarFile jarFile, long lastModified, long length)
+        {
+            this.pool = pool;
+            this.file = file;
+            this.jarFile = jarFile;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Returns the open jar file of this handle.
+         *
+         * @return The open jar file
+         */
+        public JarFile getJarFile()
+        {
+            return this.jarFile;
+        }
+
+        /**
+         * Returns true if the jar file did not change between opening this handle and the given state of the file.
+         *
+         * @param lastModified
+         *         The last modification timestamp of the file to compare
+         * @param length
+         *         The length of the file to compare
+         *
+         * @return true if this handle was opened for the specified version of the file
+         */
+        public boolean isVersion(long lastModified, long length)
+        {
+            return this.lastModified == lastModified && this.length == length;
+        }
+
+        /**
+         * Returns the last modification timestamp of the file at the time this handle was opened.
+         *
+         * @return The last modification timestamp of the opened jar file
+         */
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+
+        /**
+         * Returns the length of the file at the time this handle was opened.
+         *
+         * @return The length of the opened jar file
+         */
+        public long getLength()
+        {
+            return this.length;
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (this.pool.handles)
+            {
+                if (this.users == 0)
+                {
+                    // the handle got closed more often than it was acquired
+                    return;
+                }
+                this.users--;
+                this.lastUsed = System.currentTimeMillis();
+                if (this.retired)
+                {
+                    this.closeIfUnused();
+                }
+                else
+                {
+                    this.pool.evictExceedingHandles();
+                }
+            }
+        }
+
+        /**
+         * Marks this handle as removed from the pool and closes the jar file if no one is using it currently.
+         */
+        private void retire()
+        {
+            this.retired = true;
+            this.closeIfUnused();
+        }
+
+        private void closeIfUnused()
+        {
+            if (this.users == 0)
+            {
+                try
+                {
+                    this.jarFile.close();
+                    LOGGER.log(Level.FINE, "Closed jar file {0}", new Object[] {this.file});
+                }
+                catch (IOException ioEx)
+                {
+                    LOGGER.log(Level.WARNING, "Could not close jar file {0}: {1}",
+                               new Object[] {this.file, ioEx.getLocalizedMessage()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Lazily initializes the shared pool instance.
+     */
+    private static final class Holder
+    {
+        private static final JarFilePool INSTANCE =
+                new JarFilePool(Integer.getInteger("at.rovo.core.jarPool.maxOpen", 16),
+                                Long.getLong("at.rovo.core.jarPool.idleTimeout", 2000L));
+    }
+}
@@ -0,0 +1,351 @@
+package at.rovo.core.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A private, immutable copy of the content of a jar file.
+ * <p/>
+ * On creating a snapshot the jar file is read exactly once and the uncompressed content of every entry is copied into
+ * an off-heap buffer. Any later access to the content of the jar is served from this buffer and does therefore not
+ * require any file system access. As the jar file is not kept open, no lock is kept on the file either.
+ * <p/>
+ * As the snapshot is taken at once, classes loaded from it are guaranteed to originate from the same version of the
+ * jar file, even if the jar gets overwritten while the plug-in is still loading. This includes the {@link URL}s of its
+ * entries, which are opened against the snapshot rather than the jar file (see {@link #getUrl(String)}).
+ *
+ * @author Roman Vottner
+ */
+public final class JarSnapshot
+{
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(JarSnapshot.class.getName());
+    /** The number of attempts to take a consistent copy of a jar file which is currently written **/
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** The file the snapshot was taken from **/
+    private final File file;
+    /** The off-heap buffer containing the uncompressed content of all entries **/
+    private final ByteBuffer content;
+    /** The entry names mapped to their position (index 0) and length (index 1) within the content buffer **/
+    private final Map<String, int[]> entries;
+    /** The fully qualified names of the classes contained in the snapshot **/
+    private final List<String> classNames;
+    /** The fully qualified names of the contained classes for fast lookups **/
+    private final Set<String> classNameSet;
+    /** Opens the URLs of the entries against the content of this snapshot **/
+    private final URLStreamHandler handler = new SnapshotStreamHandler();
+
+    private JarSnapshot(File file, ByteBuffer content, Map<String, int[]> entries, List<String> classNames)
+    {
+        this.file = file;
+        this.content = content;
+        this.entries = entries;
+        this.classNames = Collections.unmodifiableList(classNames);
+        this.classNameSet = new HashSet<>(classNames);
+    }
+
+    /**
+     * Takes a snapshot of the content of the given jar file.
+     * <p/>
+     * If the file is modified while it is read, reading is retried a couple of times before giving up.
+     *
+     * @param file
+     *         The jar file to take a snapshot of
+     *
+     * @return The snapshot of the jar file
+     *
+     * @throws IOException
+     *         If the file could not be read or did not change while reading it
+     */
+    public static JarSnapshot create(File file) throws IOException
+    {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++)
+        {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            byte[] raw = Files.readAllBytes(file.toPath());
+            if (raw.length == length && file.lastModified() == lastModified && file.length() == length)
+            {
+                return create(file, raw);
+            }
+            LOGGER.log(Level.INFO, "{0} changed while taking a snapshot - attempt {1} of {2}",
+                       new Object[] {file, attempt, MAX_ATTEMPTS});
+        }
+        throw new IOException("Could not take a consistent snapshot of " + file + " as it is modified constantly");
+    }
+
+    /**
+     * Creates a snapshot of the provided raw jar file content.
+     *
+     * @param file
+     *         The file the content was read from
+     * @param raw
+     *         The raw content of the jar file
+     *
+     * @return The snapshot of the jar file content
+     *
+     * @throws IOException
+     *         If the content is no valid jar archive
+     */
+    private static JarSnapshot create(File file, byte[] raw) throws IOException
+    {
+        Map<String, int[]> entries = new HashMap<>();
+        List<String> classNames = new ArrayList<>();
+        // the entries are inflated straight into the off-heap buffer, which grows if the compressed size underestimated
+        // the content
+        ByteBuffer content = ByteBuffer.allocateDirect(Math.max(raw.length * 2, 8192));
+        byte[] buffer = new byte[8192];
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(raw)))
+        {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null)
+            {
+                if (entry.isDirectory())
+                {
+                    continue;
+                }
+                int start = content.position();
+                int read;
+                while ((read = zis.read(buffer)) != -1)
+                {
+                    content = ensureRemaining(content, read);
+                    content.put(buffer, 0, read);
+                }
+                String name = entry.getName();
+                entries.put(name, new int[] {start, content.position() - start});
+                if (name.endsWith(".class"))
+                {
+                    classNames.add(name.substring(0, name.length() - ".class".length()).replace("/", "."));
+                }
+            }
+        }
+        content.flip();
+        if (content.limit() < content.capacity())
+        {
+            // don't keep the unused part of the buffer alive as long as the snapshot
+            ByteBuffer trimmed = ByteBuffer.allocateDirect(content.limit());
+            trimmed.put(content);
+            trimmed.flip();
+            content = trimmed;
+        }
+
+        LOGGER.log(Level.FINE, "Took snapshot of {0} containing {1} entries with {2} bytes",
+                   new Object[] {file, entries.size(), content.capacity()});
+        return new JarSnapshot(file, content.asReadOnlyBuffer(), entries, classNames);
+    }
+
+    /**
+     * Returns a buffer which is able to take the given number of further bytes. If the provided buffer is too small, its
+     * content is copied into a new off-heap buffer of at least twice the capacity.
+     *
+     * @param buffer
+     *         The buffer to write to
+     * @param required
+     *         The number of bytes which are about to be written
+     *
+     * @return The buffer to write the bytes to
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int required)
+    {
+        if (buffer.remaining() >= required)
+        {
+            return buffer;
+        }
+        long capacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + required);
+        if (capacity > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Content of jar file exceeds the maximum snapshot size");
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Returns the file this snapshot was taken from.
+     *
+     * @return The file of this snapshot
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Returns true if the snapshot contains an entry with the given name.
+     *
+     * @param name
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return true if the snapshot contains the entry
+     */
+    public boolean contains(String name)
+    {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Returns true if the snapshot contains a class with the given name.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return true if the class is contained in the snapshot
+     */
+    public boolean containsClass(String className)
+    {
+        return this.classNameSet.contains(className);
+    }
+
+    /**
+     * Returns a copy of the content of the entry with the given name.
+     *
+     * @param name
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return The content of the entry or null if the snapshot does not contain such an entry
+     */
+    public byte[] read(String name)
+    {
+        int[] entry = this.entries.get(name);
+        if (entry == null)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[entry[1]];
+        // a duplicate has its own position, so concurrent reads do not interfere with each other
+        ByteBuffer view = this.content.duplicate();
+        view.position(entry[0]);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the {@link URL} of the entry with the given name. The URL has the form of a <em>jar:</em> URL pointing
+     * into the jar file the snapshot was taken from, though opening it serves the content of the snapshot and does
+     * not access the jar file at all.
+     *
+     * @param name
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return The URL of the entry
+     *
+     * @throws MalformedURLException
+     *         If no URL could be created for the entry
+     */
+    public URL getUrl(String name) throws MalformedURLException
+    {
+        return new URL("jar", null, -1, this.file.toURI() + "!/" + name, this.handler);
+    }
+
+    /**
+     * Returns the names of all entries which end with the given name.
+     *
+     * @param name
+     *         The suffix of the entries to return
+     *
+     * @return The names of the matching entries
+     */
+    public List<String> findEntries(String name)
+    {
+        List<String> found = new ArrayList<>();
+        for (String entry : this.entries.keySet())
+        {
+            if (entry.endsWith(name))
+            {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the fully qualified names of all classes contained in the snapshot.
+     *
+     * @return The names of the contained classes
+     */
+    public List<String> getClassNames()
+    {
+        return this.classNames;
+    }
+
+    /**
+     * Returns the manifest of the jar file this snapshot was taken from.
+     *
+     * @return The manifest of the jar or null if the jar does not contain a manifest
+     *
+     * @throws IOException
+     *         If the manifest could not be parsed
+     */
+    public Manifest getManifest() throws IOException
+    {
+        byte[] manifest = this.read(JarFile.MANIFEST_NAME);
+        if (manifest == null)
+        {
+            return null;
+        }
+        return new Manifest(new ByteArrayInputStream(manifest));
+    }
+
+    /**
+     * Serves the content of the entries of the snapshot for the URLs created by {@link #getUrl(String)}.
+     */
+    private final class SnapshotStreamHandler extends URLStreamHandler
+    {
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException
+        {
+            String path = url.getFile();
+            String name = path.substring(path.indexOf("!/") + "!/".length());
+            byte[] content = read(name);
+            if (content == null)
+            {
+                throw new FileNotFoundException("Could not find " + name + " inside of the snapshot of " + file);
+            }
+            return new URLConnection(url)
+            {
+                @Override
+                public void connect()
+                {
+                    this.connected = true;
+                }
+
+                @Override
+                public long getContentLengthLong()
+                {
+                    return content.length;
+                }
+
+                @Override
+                public InputStream getInputStream()
+                {
+                    return new ByteArrayInputStream(content);
+                }
+            };
+        }
+    }
+}
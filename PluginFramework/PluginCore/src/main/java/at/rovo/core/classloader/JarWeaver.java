@@ -0,0 +1,187 @@
+package at.rovo.core.classloader;
+
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.injection.Instrumented;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Weaves the components of a plug-in jar file ahead of time.
+ * <p/>
+ * Every class of the jar file is passed through an {@link InjectionLoaderStrategyDecorator}, so the components are
+ * instrumented exactly as they would be on loading the plug-in and get marked as {@link Instrumented}. On loading a
+ * pre-woven plug-in the decorator recognizes the marker and defines the classes as they are, so activating the plug-in
+ * neither requires parsing nor instrumenting its classes.
+ * <p/>
+ * Unless disabled via {@link #setIndexing(boolean)}, a {@link PluginIndex} of the jar file is added as well, so the jar
+ * file neither has to be scanned for classes nor has its manifest to be parsed on loading the plug-in.
+ * <p/>
+ * All further entries of the jar file, including its manifest, are copied unchanged.
+ *
+ * @author Roman Vottner
+ */
+public final class JarWeaver
+{
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(JarWeaver.class.getName());
+
+    /** The name of the engine to instrument the components with **/
+    private final String engine;
+    /** Whether an index of the plug-in should be added to the woven jar file **/
+    private boolean indexing = true;
+
+    /**
+     * Creates a new instance of this class which instruments components with the given engine.
+     *
+     * @param engine
+     *         The name of the {@link InstrumentationEngine} to use, which is either <em>asm</em> or <em>javassist</em>
+     */
+    public JarWeaver(String engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Specifies whether a {@link PluginIndex} should be added to the woven jar file. Indexing is enabled by default.
+     *
+     * @param indexing
+     *         true if the woven jar file should contain an index of the plug-in
+     */
+    public void setIndexing(boolean indexing)
+    {
+        this.indexing = indexing;
+    }
+
+    /**
+     * Weaves the components of the given jar file and replaces the jar file with the woven one.
+     *
+     * @param jarFile
+     *         The jar file of the plug-in to weave
+     *
+     * @return The number of woven components
+     *
+     * @throws IOException
+     *         If the jar file could not be read or written
+     * @throws InjectionException
+     *         If a component can't be instrumented
+     */
+    public int weave(File jarFile) throws IOException
+    {
+        File wovenFile = File.createTempFile(jarFile.getName(), ".woven", jarFile.getAbsoluteFile().getParentFile());
+        try
+        {
+            int woven = this.weave(jarFile, wovenFile);
+            Files.move(wovenFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return woven;
+        }
+        finally
+        {
+            Files.deleteIfExists(wovenFile.toPath());
+        }
+    }
+
+    /**
+     * Weaves the components of the given jar file and writes the result to a further jar file.
+     *
+     * @param source
+     *         The jar file of the plug-in to weave
+     * @param target
+     *         The jar file to write the woven plug-in to
+     *
+     * @return The number of woven components
+     *
+     * @throws IOException
+     *         If a jar file could not be read or written
+     * @throws InjectionException
+     *         If a component can't be instrumented
+     */
+    public int weave(File source, File target) throws IOException
+    {
+        // serve the classes from a snapshot, so no pooled handle of the source is left open once weaving finished
+        JarSnapshot snapshot = JarSnapshot.create(source);
+        PluginLoaderStrategy strategy = new PluginLoaderStrategy(source.toURI().toURL(), snapshot);
+        InjectionLoaderStrategyDecorator decorator = new InjectionLoaderStrategyDecorator(strategy);
+        decorator.setCache(null);
+        decorator.setInstrumentationEngine(InstrumentationEngine.create(this.engine, strategy));
+
+        int woven = 0;
+        try (JarFile jar = new JarFile(source);
+             JarOutputStream jos = new JarOutputStream(Files.newOutputStream(target.toPath())))
+        {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements())
+            {
+                JarEntry entry = entries.nextElement();
+                if (PluginIndex.ENTRY_NAME.equals(entry.getName()))
+                {
+                    // an index of a previous build is replaced by the current one
+                    continue;
+                }
+                JarEntry copy = new JarEntry(entry.getName());
+                copy.setTime(entry.getTime());
+                copy.setComment(entry.getComment());
+                copy.setExtra(entry.getExtra());
+                jos.putNextEntry(copy);
+                if (!entry.isDirectory() && entry.getName().endsWith(".class"))
+                {
+                    String className = entry.getName().substring(0, entry.getName().length() - 6).replace('/', '.');
+                    // classes which are no components or got woven before are returned as they are
+                    byte[] original = snapshot.read(entry.getName());
+                    byte[] classBytes = decorator.findClassBytes(className);
+                    if (classBytes != null && !Arrays.equals(original, classBytes))
+                    {
+                        woven++;
+                        jos.write(classBytes);
+                    }
+                    else
+                    {
+                        jos.write(original);
+                    }
+                }
+                else if (!entry.isDirectory())
+                {
+                    try (InputStream is = jar.getInputStream(entry))
+                    {
+                        copy(is, jos);
+                    }
+                }
+                jos.closeEntry();
+            }
+            if (this.indexing)
+            {
+                PluginIndex index = PluginIndex.create(snapshot);
+                jos.putNextEntry(new JarEntry(PluginIndex.ENTRY_NAME));
+                jos.write(index.toByteArray());
+                jos.closeEntry();
+                LOGGER.log(Level.FINE, "Added {0} to {1}", new Object[] {index, target});
+            }
+        }
+        finally
+        {
+            decorator.close();
+        }
+        LOGGER.log(Level.INFO, "Wove {0} components of {1}", new Object[] {woven, source});
+        return woven;
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1)
+        {
+            os.write(buffer, 0, read);
+        }
+    }
+}
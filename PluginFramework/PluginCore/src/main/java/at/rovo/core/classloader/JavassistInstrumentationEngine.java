@@ -0,0 +1,560 @@
+package at.rovo.core.classloader;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.injection.ComponentMetadata;
+import at.rovo.core.injection.Instrumented;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.annotation.Annotation;
+import javassist.expr.ExprEditor;
+import javassist.expr.FieldAccess;
+
+/**
+ * An {@link InstrumentationEngine} which builds a complete model of each component via Javassist and compiles the
+ * injected code from source.
+ * <p/>
+ * Classes referenced by the class to manipulate are looked up via the strategy which provides the components, so
+ * Javassist reads the plug-in classes from the same source as the class loader does and never accesses the jar file on
+ * its own.
+ *
+ * @author Roman Vottner
+ */
+public class JavassistInstrumentationEngine implements InstrumentationEngine
+{
+    /** The name of this engine **/
+    public static final String NAME = "javassist";
+    /** The version of the bytecode emitted by this engine **/
+    public static final String FORMAT_VERSION = "3";
+    /** The logger of this class **/
+    private static final Logger LOGGER = Logger.getLogger(JavassistInstrumentationEngine.class.getName());
+
+    /** The strategy providing the classes referenced by the instrumented classes **/
+    private final IClassLoaderStrategy strategy;
+    /** The idle pools used to instrument the classes of the strategy, each used by one thread at a time **/
+    private final Queue<ClassPool> classPools = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param strategy
+     *         The strategy which provides the classes to instrument and the classes referenced by them
+     */
+    public JavassistInstrumentationEngine(IClassLoaderStrategy strategy)
+    {
+        this.strategy = strategy;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public String getFormatVersion()
+    {
+        return FORMAT_VERSION;
+    }
+
+    @Override
+    public InstrumentedClass instrument(String className, byte[] classBytes, boolean addInjector)
+            throws InjectionException
+    {
+        // concurrent threads instrument their classes with pools of their own
+        ClassPool cp = this.acquireClassPool();
+        try
+        {
+            // create the class from the bytes read, as the pool might contain an outdated version of the class
+            CtClass cc = cp.makeClass(new ByteArrayInputStream(classBytes));
+            try
+            {
+                // skip instrumentation if the class is frozen and therefore can't be modified and skip the injection
+                // if either the class is not a component or already got instrumented
+                if (cc.isFrozen() || !cc.hasAnnotation(Component.class) || cc.hasAnnotation(Instrumented.class))
+                {
+                    return null;
+                }
+
+                // add an annotation to the class bytes so we know that we already instrumented that class
+                this.addAnnotationToClass(cc, Instrumented.class, cp);
+
+                LOGGER.log(Level.FINE, "Class {0} has annotation {1}: {2}",
+                           new Object[] {cc.getName(), Instrumented.class.getName(),
+                                         cc.hasAnnotation(Instrumented.class)});
+                LOGGER.log(Level.FINE, "Class {0} has annotation {1}: {2}",
+                           new Object[] {cc.getName(), Component.class.getName(), cc.hasAnnotation(Component.class)});
+
+                // treat singleton components differently to prototype components as they require an
+                // initialization method as the constructor is private
+                Component comp = (Component) cc.getAnnotation(Component.class);
+                ComponentMetadata metadata = this.createMetadata(cc, comp.scope());
+                if (addInjector)
+                {
+                    this.addInjector(cc, metadata);
+                }
+                if (comp.scope().equals(ScopeType.SINGLETON))
+                {
+                    // the component is a singleton!
+                    // fetch the instance field we want to inject the call to
+                    this.findSingletonFieldsAndInjectCode(cc);
+                }
+                else
+                {
+                    // the component is a prototype object which means a call of its constructor is safe
+                    CtConstructor constructor;
+                    if (cc.getConstructors().length == 0)
+                    {
+                        constructor = CtNewConstructor.defaultConstructor(cc);
+                        cc.addConstructor(constructor);
+                    }
+                    else
+                    {
+                        constructor = cc.getDeclaredConstructor(null);
+                    }
+
+                    // Only instrument the default constructor in this
+                    // class, not in the super class because the super
+                    // class will be instrumented separately
+                    if (constructor.getLongName().startsWith(className))
+                    {
+                        String code  = "at.rovo.core.injection.IInjectionController ic = " +
+                                           "at.rovo.core.injection.InjectionControllerImpl.INSTANCE; " +
+                                       "ic.initialize(this);";
+
+                        constructor.insertAfter(code);
+                    }
+                }
+                return new InstrumentedClass(cc.toBytecode(), metadata);
+            }
+            finally
+            {
+                // the class is not needed any longer, so don't keep it in the pool
+                cc.detach();
+            }
+        }
+        catch (NotFoundException | IOException | CannotCompileException | ClassNotFoundException e)
+        {
+            throw new InjectionException(e.getLocalizedMessage());
+        }
+        finally
+        {
+            this.releaseClassPool(cp);
+        }
+    }
+
+    @Override
+    public ComponentMetadata readMetadata(String className, byte[] classBytes)
+    {
+        ClassPool cp = this.acquireClassPool();
+        try
+        {
+            CtClass cc = cp.makeClass(new ByteArrayInputStream(classBytes));
+            try
+            {
+                if (cc.hasAnnotation(Component.class))
+                {
+                    Component comp = (Component) cc.getAnnotation(Component.class);
+                    return this.createMetadata(cc, comp.scope());
+                }
+            }
+            finally
+            {
+                cc.detach();
+            }
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            LOGGER.log(Level.WARNING, "Could not read the metadata of {0}: {1}",
+                       new Object[] {className, e.getLocalizedMessage()});
+        }
+        finally
+        {
+            this.releaseClassPool(cp);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a class pool used to instrument the classes of the strategy exclusively for the calling thread
+     * until it is handed back via {@link #releaseClassPool(ClassPool)}. Idle pools are reused, otherwise a new pool is
+     * created which looks up referenced classes via the strategy and the class path of the framework.
+     *
+     * @return A class pool of this decorator
+     */
+    private ClassPool acquireClassPool()
+    {
+        ClassPool cp = this.classPools.poll();
+        if (cp == null)
+        {
+            cp = new ClassPool(null);
+            cp.appendSystemPath();
+            cp.insertClassPath(new ClassClassPath(this.getClass()));
+            cp.insertClassPath(new StrategyClassPath(this.strategy));
+        }
+        return cp;
+    }
+
+    /**
+     * Hands a class pool obtained via {@link #acquireClassPool()} back for reuse.
+     *
+     * @param cp
+     *         The class pool which is not used anymore by the calling thread
+     */
+    private void releaseClassPool(ClassPool cp)
+    {
+        this.classPools.offer(cp);
+    }
+
+    /**
+     * Discards the class pools used to instrument classes along with all classes they contain. A new pool is created if
+     * further classes need to be instrumented afterwards.
+     */
+    @Override
+    public void close()
+    {
+        this.classPools.clear();
+    }
+
+    /**
+     * Records the metadata of a component before it gets instrumented.
+     *
+     * @param cc
+     *         The component to record the metadata for
+     * @param scope
+     *         The scope declared by the {@link Component} annotation of the class
+     *
+     * @return The metadata of the component
+     */
+    private ComponentMetadata createMetadata(CtClass cc, ScopeType scope)
+    {
+        List<String> componentIdFields = new ArrayList<>();
+        List<String> injectFields = new ArrayList<>();
+        for (CtField field : cc.getDeclaredFields())
+        {
+            if (field.hasAnnotation(ComponentId.class))
+            {
+                componentIdFields.add(field.getName());
+            }
+            if (field.hasAnnotation(Inject.class))
+            {
+                injectFields.add(field.getName());
+            }
+        }
+        // singletons get their instance field replaced on instrumentation
+        String singletonField = ScopeType.SINGLETON.equals(scope) ? SINGLETON_FIELD : null;
+        return new ComponentMetadata(cc.getName(), scope, componentIdFields, injectFields, singletonField);
+    }
+
+    /**
+     * Adds the injector method to a component, which assigns the instances resolved by the injection controller to the
+     * fields annotated with {@link Inject} and a new id to the field annotated with {@link ComponentId}. Fields which
+     * declare a public setter are assigned via their setter.
+     * <p/>
+     * Components without exactly one {@link ComponentId} field of type {@link Long}, with primitive fields to inject or
+     * with fields whose types can't be resolved via the class pool, f.e. as they are provided by a further plug-in, are
+     * left without injector method. Their fields are assigned and validated by the injection controller instead.
+     *
+     * @param cc
+     *         The component to add the injector method to
+     * @param metadata
+     *         The metadata of the component
+     *
+     * @throws NotFoundException
+     */
+    private void addInjector(CtClass cc, ComponentMetadata metadata) throws NotFoundException
+    {
+        if (metadata.getComponentIdFields().size() != 1)
+        {
+            return;
+        }
+        CtField componentId = cc.getDeclaredField(metadata.getComponentIdFields().get(0));
+        if (!"Ljava/lang/Long;".equals(componentId.getFieldInfo().getDescriptor()))
+        {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("private void ");
+        sb.append(INJECTOR_METHOD);
+        sb.append("(at.rovo.core.injection.IInjectionController controller) {\n");
+        sb.append("Object value;\n");
+        for (String fieldName : metadata.getInjectFields())
+        {
+            CtField field = cc.getDeclaredField(fieldName);
+            // the type of the field is not resolved as it might not be available via the class pool
+            String descriptor = field.getFieldInfo().getDescriptor();
+            if (descriptor.charAt(0) != 'L' && descriptor.charAt(0) != '[')
+            {
+                return;
+            }
+            sb.append("value = controller.resolveInjection(this, \"");
+            sb.append(fieldName);
+            sb.append("\");\n");
+            sb.append("if (value != null) {\n");
+            sb.append(this.assignField(cc, field, "(" + Descriptor.toClassName(descriptor) + ")value"));
+            sb.append("}\n");
+        }
+        sb.append("if (this.");
+        sb.append(componentId.getName());
+        sb.append(" == null) {\n");
+        sb.append(this.assignField(cc, componentId, "controller.createComponentId()"));
+        sb.append("}\n}");
+
+        LOGGER.log(Level.FINE, "Adding injector method to {0} - content is:\n{1}",
+                   new Object[] {cc.getName(), sb.toString()});
+
+        try
+        {
+            CtMethod injector = CtMethod.make(sb.toString(), cc);
+            MethodInfo methodInfo = injector.getMethodInfo();
+            methodInfo.setAccessFlags(methodInfo.getAccessFlags() | AccessFlag.SYNTHETIC);
+            cc.addMethod(injector);
+        }
+        catch (CannotCompileException ccEx)
+        {
+            LOGGER.log(Level.FINE, "Could not add injector method to {0}: {1}",
+                       new Object[] {cc.getName(), ccEx.getLocalizedMessage()});
+        }
+    }
+
+    /**
+     * Returns the statement assigning a value to a field of the given class, which invokes the public setter of the
+     * field if the class declares one.
+     *
+     * @param cc
+     *         The class declaring the field
+     * @param field
+     *         The field to assign
+     * @param value
+     *         The expression of the value to assign
+     *
+     * @return The assignment statement
+     */
+    private String assignField(CtClass cc, CtField field, String value)
+    {
+        String setter = "set" + field.getName().substring(0, 1).toUpperCase() + field.getName().substring(1);
+        String parameters = "(" + field.getFieldInfo().getDescriptor() + ")";
+        for (CtMethod method : cc.getDeclaredMethods())
+        {
+            if (method.getName().equals(setter) && Modifier.isPublic(method.getModifiers()) &&
+                !Modifier.isStatic(method.getModifiers()) && method.getSignature().startsWith(parameters))
+            {
+                return "this." + setter + "(" + value + ");\n";
+            }
+        }
+        return "this." + field.getName() + " = " + value + ";\n";
+    }
+
+    /**
+     * Adds a annotation at class level to the provided class.
+     *
+     * @param cc
+     *         The class to inject the annotation into
+     * @param annotation
+     *         The annotation to inject
+     *
+     * @throws NotFoundException
+     */
+    private void addAnnotationToClass(CtClass cc, Class<?> annotation, ClassPool cp) throws NotFoundException
+    {
+        if (!annotation.isAnnotation())
+        {
+            LOGGER.log(Level.WARNING, "Failed to add class {0} as annotation to {1} as it is not an annotation",
+                       new Object[] {annotation.getName(), cc.getName()});
+            return;
+        }
+
+        ClassFile ccFile = cc.getClassFile();
+        ConstPool constPool = ccFile.getConstPool();
+
+        // check if there are already annotations available
+        AnnotationsAttribute attr = (AnnotationsAttribute) ccFile.getAttribute(AnnotationsAttribute.visibleTag);
+        if (attr == null)
+        {
+            // no annotations found so create one
+            LOGGER.log(Level.WARNING,
+                       "fetching annotation attributes from class file of {0} failed. Creating new one instead",
+                       new Object[] {cc.getName()});
+            attr = new AnnotationsAttribute(constPool, AnnotationsAttribute.visibleTag);
+        }
+        Annotation annot = new Annotation(constPool, cp.get(annotation.getName()));
+        attr.addAnnotation(annot);
+        ccFile.addAttribute(attr);
+
+        LOGGER.log(Level.FINE, "Added {0} as annotation at class level to {1}",
+                   new Object[] {annotation.getName(), cc.getName()});
+    }
+
+    /**
+     * Iterates through defined fields of the provided class and injects necessary code for singleton classes.
+     * <p/>
+     * The method looks for a field that is static and has either the same type as the class it is defined in or is of
+     * type {@link WeakReference}.
+     * <p/>
+     * If multiple fields match the given name an {@link InjectionException} will be thrown indicating the ambiguity
+     * found. If no matching field could be found one will be generated automatically. Note further that a method with
+     * name <code>getInstance()</code> will be looked which will be replaced by an own implementation.
+     *
+     * @param cc
+     *         The class to inject code into
+     *
+     * @throws NotFoundException
+     * @throws CannotCompileException
+     */
+    private void findSingletonFieldsAndInjectCode(CtClass cc) throws CannotCompileException, NotFoundException
+    {
+        int count = 0;
+        for (CtField field : cc.getDeclaredFields())
+        {
+            // the field holding the singleton reference is obviously a static
+            // field.
+            if (Modifier.isStatic(field.getModifiers()))
+            {
+                CtClass retType = field.getType();
+                // the type of the field has to either match the class name
+                // or WeakReference
+                if (retType.getName().equals(cc.getName()) || retType.getName().equals("java.lang.ref.WeakReference"))
+                {
+                    LOGGER.log(Level.INFO, "found singleton field to inject: {0}", new Object[] {field.getName()});
+
+                    count++;
+                    if (count > 1)
+                    {
+                        throw new InjectionException("Multiple fields found that could be appropriate for injection!");
+                    }
+
+                    this.injectIntoSingletonField(cc, field);
+                }
+            }
+        }
+
+        // no static field available so call the injection method without a
+        // field. It uses the field just to delete it and replace it with its
+        // own version
+        if (count == 0)
+        {
+            LOGGER.log(Level.WARNING,
+                       "No static field found in {0} that could hold the singleton. Adding an appropriate field instead",
+                       new Object[] {cc.getName()});
+            this.injectIntoSingletonField(cc, null);
+        }
+    }
+
+    /**
+     * This method removes the field holding the singleton instance and a the corresponding getInstance() method and
+     * replaces it with its own version.
+     * <p/>
+     * The instance is kept by a {@link at.rovo.core.injection.SingletonHolder}, so the injected method reads the
+     * instance without acquiring any lock and publishes a newly created instance via a compare-and-set. Unless strong
+     * retention is enabled, the holder uses the <em>WeakSingleton</em> pattern which unloads the singleton if no strong
+     * reference is pointing to the singleton.
+     *
+     * @param cc
+     *         The class to inject code into
+     * @param instance
+     *         The field which declares the static singleton instance
+     *
+     * @throws CannotCompileException
+     * @throws NotFoundException
+     */
+    private void injectIntoSingletonField(CtClass cc, CtField instance) throws CannotCompileException, NotFoundException
+    {
+        // removing the old instance field
+        if (instance != null)
+        {
+            // the static initializer must not access the removed field anymore
+            CtConstructor initializer = cc.getClassInitializer();
+            if (initializer != null)
+            {
+                final String fieldName = instance.getName();
+                initializer.instrument(new ExprEditor()
+                {
+                    @Override
+                    public void edit(FieldAccess access) throws CannotCompileException
+                    {
+                        if (fieldName.equals(access.getFieldName()) && access.getClassName().equals(cc.getName()))
+                        {
+                            access.replace(access.isWriter() ? "{ }" : "{ $_ = null; }");
+                        }
+                    }
+                });
+            }
+            LOGGER.log(Level.FINE, "removing field {0} from {1}", new Object[] {instance.getName(), cc.getName()});
+            cc.removeField(instance);
+        }
+
+        // adding the controller as a private field to
+        // the class
+        CtField controller = CtField.make("private static at.rovo.core.injection.IInjectionController ic " +
+                                          "= at.rovo.core.injection.InjectionControllerImpl.INSTANCE;", cc);
+        cc.addField(controller);
+        LOGGER.log(Level.FINE, "added field to {0}", new Object[] {cc.getName()});
+
+        // adding the holder of the instance as new instance field
+        String code = "private static final at.rovo.core.injection.SingletonHolder " + SINGLETON_FIELD +
+                      " = new at.rovo.core.injection.SingletonHolder();";
+        LOGGER.log(Level.FINE, "adding field {0} to {1}", new Object[] {code, cc.getName()});
+        CtField newInstance = CtField.make(code, cc);
+        cc.addField(newInstance);
+
+        // remove any existing getInstance() method of singletons
+
+        CtMethod getInstance = cc.getDeclaredMethod("getInstance", new CtClass[] {});
+        if (getInstance != null)
+        {
+            LOGGER.log(Level.FINE, "Removing getInstance() method of {0}", new Object[] {cc.getName()});
+            cc.removeMethod(getInstance);
+        }
+
+        // add a new version of the singletons getInstance() method to the class
+        StringBuilder sb = new StringBuilder();
+        sb.append("public static ");
+        sb.append(cc.getName());
+        sb.append(" getInstance() {\n");
+        sb.append(cc.getName());
+        sb.append(" instance = (");
+        sb.append(cc.getName());
+        sb.append(")REFERENCE.get();\n");
+        sb.append("if (instance != null)\n");
+        sb.append("return instance;\n");
+        sb.append("return (");
+        sb.append(cc.getName());
+        sb.append(")REFERENCE.publish(ic.initialize(new ");
+        sb.append(cc.getName());
+        sb.append("()));\n");
+        sb.append("}");
+
+        LOGGER.log(Level.FINE, "Adding modified version of getInstance() to {0} - content is:\n{1}",
+                   new Object[] {cc.getName(), sb.toString()});
+
+        getInstance = CtMethod.make(sb.toString(), cc);
+        cc.addMethod(getInstance);
+    }
+}
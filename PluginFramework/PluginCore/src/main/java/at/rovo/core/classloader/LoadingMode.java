@@ -0,0 +1,43 @@
+package at.rovo.core.classloader;
+
+/**
+ * Defines how a {@link PluginLoaderStrategy} accesses the content of a plug-in's jar file.
+ *
+ * @author Roman Vottner
+ */
+public enum LoadingMode
+{
+    /**
+     * Every class or resource is read from the jar file on the file system when it is requested. Open jar files are
+     * shared via the {@link JarFilePool}.
+     */
+    DIRECT,
+    /**
+     * The jar file is copied once into an off-heap {@link JarSnapshot} when the plug-in gets loaded. Every class or
+     * resource is afterwards served from this private copy without accessing the file system.
+     */
+    SNAPSHOT;
+
+    /**
+     * Returns the mode with the given name. Case and surrounding whitespace of the name are ignored.
+     *
+     * @param name
+     *         The name of the mode, f.e. the value of the system property <em>at.rovo.core.loadingMode</em>
+     *
+     * @return The mode with the given name or {@link #DIRECT} if the name is null or does not name any mode
+     */
+    public static LoadingMode parse(String name)
+    {
+        if (name != null)
+        {
+            for (LoadingMode mode : values())
+            {
+                if (mode.name().equalsIgnoreCase(name.trim()))
+                {
+                    return mode;
+                }
+            }
+        }
+        return DIRECT;
+    }
+}
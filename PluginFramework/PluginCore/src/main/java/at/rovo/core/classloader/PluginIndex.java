@@ -0,0 +1,491 @@
+package at.rovo.core.classloader;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.IPlugin;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * A compact description of the content of a plug-in jar file, which is created at build time and stored as {@link
+ * #ENTRY_NAME} inside of the jar file.
+ * <p/>
+ * The index lists every class of the plug-in together with its super class, its directly implemented interfaces and
+ * its component scope. It further contains the plug-in related attributes of the manifest, namely the entry point of
+ * the plug-in as well as the exported and required classes and the class loading policy. If the manifest does not
+ * declare an entry point, the sole {@link IPlugin} implementation of the jar file is recorded as entry point.
+ * <p/>
+ * If a plug-in contains an index, neither the manifest has to be parsed nor has the jar file to be scanned for its
+ * classes or the implementations of an interface on loading the plug-in. Note that only the type hierarchy within the
+ * plug-in is known to the index. A class which inherits an interface from a super type of a further jar file is
+ * therefore not listed as implementation of that interface.
+ * <p/>
+ * The index starts with a magic number and a format version, followed by a table of all strings used by the index.
+ * Attributes and classes refer to the strings via their position within the table.
+ *
+ * @author Roman Vottner
+ */
+public final class PluginIndex
+{
+    /** The name of the entry containing the index inside a plug-in jar file **/
+    public static final String ENTRY_NAME = "META-INF/plugin-index";
+    /** The manifest attribute naming the entry point of a plug-in **/
+    public static final Attributes.Name PLUGIN_CLASS = new Attributes.Name("Plugin-Class");
+    /** The manifest attribute listing the exported classes of a plug-in **/
+    public static final Attributes.Name EXPORT = new Attributes.Name("Export");
+    /** The manifest attribute listing the classes required by a plug-in **/
+    public static final Attributes.Name REQUIRES = new Attributes.Name("Requires");
+
+    /** The magic number every index starts with **/
+    private static final int MAGIC = 0x504C4958;
+    /** The version of the index format **/
+    private static final int VERSION = 1;
+    /** The manifest attributes which are copied into the index **/
+    private static final Attributes.Name[] PLUGIN_ATTRIBUTES =
+            {PLUGIN_CLASS, EXPORT, REQUIRES, DelegationPolicy.CLASS_LOADING, DelegationPolicy.CHILD_FIRST_PACKAGES};
+    /** The type descriptor of the component annotation **/
+    private static final String COMPONENT = Type.getDescriptor(Component.class);
+    /** The scopes in the order they are stored within the index, a class without scope is no component **/
+    private static final ScopeType[] SCOPES = {null, ScopeType.PROTOTYPE, ScopeType.SINGLETON};
+
+    /** The plug-in related attributes of the manifest **/
+    private final Attributes attributes;
+    /** The indexed classes mapped to their fully qualified name in the order they are contained in the jar file **/
+    private final Map<String, IndexedClass> classes;
+    /** The fully qualified names of the indexed classes **/
+    private final List<String> classNames;
+    /** The names of types mapped to the indexed classes directly extending or implementing them **/
+    private final Map<String, List<String>> subtypes = new HashMap<>();
+
+    private PluginIndex(Attributes attributes, Map<String, IndexedClass> classes)
+    {
+        this.attributes = attributes;
+        this.classes = classes;
+        this.classNames = Collections.unmodifiableList(new ArrayList<>(classes.keySet()));
+        for (IndexedClass indexedClass : classes.values())
+        {
+            if (indexedClass.superName != null)
+            {
+                this.subtypes.computeIfAbsent(indexedClass.superName, k -> new ArrayList<>()).add(indexedClass.name);
+            }
+            for (String iface : indexedClass.interfaces)
+            {
+                this.subtypes.computeIfAbsent(iface, k -> new ArrayList<>()).add(indexedClass.name);
+            }
+        }
+    }
+
+    /**
+     * Creates the index of the jar file the given snapshot was taken from.
+     *
+     * @param snapshot
+     *         The snapshot of the plug-in jar file to index
+     *
+     * @return The index of the plug-in
+     *
+     * @throws IOException
+     *         If the manifest of the jar file could not be parsed
+     */
+    public static PluginIndex create(JarSnapshot snapshot) throws IOException
+    {
+        Map<String, IndexedClass> classes = new LinkedHashMap<>();
+        for (String className : snapshot.getClassNames())
+        {
+            ClassReader reader = new ClassReader(snapshot.read(className.replace('.', '/') + ".class"));
+            ScopeVisitor visitor = new ScopeVisitor();
+            reader.accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+            String superName = reader.getSuperName() != null ? reader.getSuperName().replace('/', '.') : null;
+            List<String> interfaces = new ArrayList<>();
+            for (String iface : reader.getInterfaces())
+            {
+                interfaces.add(iface.replace('/', '.'));
+            }
+            classes.put(className, new IndexedClass(className, superName, interfaces, visitor.scope));
+        }
+
+        Attributes attributes = new Attributes();
+        Manifest manifest = snapshot.getManifest();
+        if (manifest != null)
+        {
+            for (Attributes.Name name : PLUGIN_ATTRIBUTES)
+            {
+                String value = manifest.getMainAttributes().getValue(name);
+                if (value != null)
+                {
+                    attributes.put(name, value);
+                }
+            }
+        }
+
+        PluginIndex index = new PluginIndex(attributes, classes);
+        if (!attributes.containsKey(PLUGIN_CLASS))
+        {
+            List<String> plugins = index.findSubtypes(IPlugin.class.getName());
+            if (plugins.size() == 1)
+            {
+                attributes.put(PLUGIN_CLASS, plugins.get(0));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads an index from its binary representation.
+     *
+     * @param content
+     *         The content of the {@link #ENTRY_NAME} entry of a plug-in jar file
+     *
+     * @return The read index
+     *
+     * @throws IOException
+     *         If the content is no valid index or was written in an unsupported format
+     */
+    public static PluginIndex read(byte[] content) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content)))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("Content is no plug-in index");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported plug-in index version " + version);
+            }
+
+            String[] strings = new String[readVarInt(in)];
+            for (int i = 0; i < strings.length; i++)
+            {
+                strings[i] = in.readUTF();
+            }
+
+            Attributes attributes = new Attributes();
+            int attributeCount = readVarInt(in);
+            for (int i = 0; i < attributeCount; i++)
+            {
+                attributes.putValue(strings[readVarInt(in)], strings[readVarInt(in)]);
+            }
+
+            int classCount = readVarInt(in);
+            Map<String, IndexedClass> classes = new LinkedHashMap<>(classCount * 2);
+            for (int i = 0; i < classCount; i++)
+            {
+                String name = strings[readVarInt(in)];
+                // the position of the super class is stored incremented by one as java.lang.Object has none
+                int superName = readVarInt(in);
+                String[] interfaces = new String[readVarInt(in)];
+                for (int j = 0; j < interfaces.length; j++)
+                {
+                    interfaces[j] = strings[readVarInt(in)];
+                }
+                ScopeType scope = SCOPES[in.readUnsignedByte()];
+                classes.put(name, new IndexedClass(name, superName > 0 ? strings[superName - 1] : null,
+                                                   Arrays.asList(interfaces), scope));
+            }
+            return new PluginIndex(attributes, classes);
+        }
+        catch (ArrayIndexOutOfBoundsException aioobEx)
+        {
+            throw new IOException("Plug-in index is corrupted", aioobEx);
+        }
+    }
+
+    /**
+     * Returns the binary representation of this index which can be read via {@link #read(byte[])}.
+     *
+     * @return The binary representation of the index
+     */
+    public byte[] toByteArray()
+    {
+        // collect all strings first so they can be referenced by their position in the table
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (Map.Entry<Object, Object> attribute : this.attributes.entrySet())
+        {
+            table.putIfAbsent(attribute.getKey().toString(), table.size());
+            table.putIfAbsent(attribute.getValue().toString(), table.size());
+        }
+        for (IndexedClass indexedClass : this.classes.values())
+        {
+            table.putIfAbsent(indexedClass.name, table.size());
+            if (indexedClass.superName != null)
+            {
+                table.putIfAbsent(indexedClass.superName, table.size());
+            }
+            for (String iface : indexedClass.interfaces)
+            {
+                table.putIfAbsent(iface, table.size());
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            writeVarInt(out, table.size());
+            for (String string : table.keySet())
+            {
+                out.writeUTF(string);
+            }
+
+            writeVarInt(out, this.attributes.size());
+            for (Map.Entry<Object, Object> attribute : this.attributes.entrySet())
+            {
+                writeVarInt(out, table.get(attribute.getKey().toString()));
+                writeVarInt(out, table.get(attribute.getValue().toString()));
+            }
+
+            writeVarInt(out, this.classes.size());
+            for (IndexedClass indexedClass : this.classes.values())
+            {
+                writeVarInt(out, table.get(indexedClass.name));
+                writeVarInt(out, indexedClass.superName != null ? table.get(indexedClass.superName) + 1 : 0);
+                writeVarInt(out, indexedClass.interfaces.size());
+                for (String iface : indexedClass.interfaces)
+                {
+                    writeVarInt(out, table.get(iface));
+                }
+                out.writeByte(Arrays.asList(SCOPES).indexOf(indexedClass.scope));
+            }
+        }
+        catch (IOException ioEx)
+        {
+            // writing to a byte array does not fail
+            throw new IllegalStateException(ioEx);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the plug-in related attributes of the manifest of the indexed jar file, which are the entry point of the
+     * plug-in, the exported and required classes and the class loading policy.
+     *
+     * @return A copy of the plug-in related manifest attributes
+     */
+    public Attributes getAttributes()
+    {
+        return new Attributes(this.attributes);
+    }
+
+    /**
+     * Returns the fully qualified name of the entry point of the plug-in.
+     *
+     * @return The name of the {@link IPlugin} implementation of the plug-in or null if the jar file does not contain an
+     * entry point
+     */
+    public String getPluginClass()
+    {
+        return this.attributes.getValue(PLUGIN_CLASS);
+    }
+
+    /**
+     * Returns the fully qualified names of all classes of the plug-in in the order they are contained in the jar file.
+     *
+     * @return The names of the indexed classes
+     */
+    public List<String> getClassNames()
+    {
+        return this.classNames;
+    }
+
+    /**
+     * Returns true if the index contains the class with the given name.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return true if the class is part of the indexed plug-in
+     */
+    public boolean containsClass(String className)
+    {
+        return this.classes.containsKey(className);
+    }
+
+    /**
+     * Returns the super class of an indexed class.
+     *
+     * @param className
+     *         The fully qualified name of the indexed class
+     *
+     * @return The fully qualified name of the super class or null if the class is not indexed or has no super class
+     */
+    public String getSuperclass(String className)
+    {
+        IndexedClass indexedClass = this.classes.get(className);
+        return indexedClass != null ? indexedClass.superName : null;
+    }
+
+    /**
+     * Returns the interfaces directly implemented by an indexed class.
+     *
+     * @param className
+     *         The fully qualified name of the indexed class
+     *
+     * @return The fully qualified names of the implemented interfaces
+     */
+    public List<String> getInterfaces(String className)
+    {
+        IndexedClass indexedClass = this.classes.get(className);
+        return indexedClass != null ? Collections.unmodifiableList(indexedClass.interfaces)
+                                    : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns the scope of an indexed component.
+     *
+     * @param className
+     *         The fully qualified name of the indexed class
+     *
+     * @return The scope of the component or null if the class is not indexed or is no component
+     */
+    public ScopeType getScope(String className)
+    {
+        IndexedClass indexedClass = this.classes.get(className);
+        return indexedClass != null ? indexedClass.scope : null;
+    }
+
+    /**
+     * Returns all indexed classes and interfaces which directly or indirectly extend or implement the given type.
+     *
+     * @param typeName
+     *         The fully qualified name of the super class or interface
+     *
+     * @return The fully qualified names of the indexed sub types of the given type
+     */
+    public List<String> findSubtypes(String typeName)
+    {
+        List<String> found = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(typeName);
+        while (!pending.isEmpty())
+        {
+            List<String> direct = this.subtypes.get(pending.poll());
+            if (direct != null)
+            {
+                for (String subtype : direct)
+                {
+                    if (visited.add(subtype))
+                    {
+                        found.add(subtype);
+                        pending.add(subtype);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PluginIndex[pluginClass=" + this.getPluginClass() + ", classes=" + this.classes.size() + "]";
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Plug-in index is corrupted");
+    }
+
+    /**
+     * The type hierarchy and scope of a single class of the plug-in.
+     */
+    private static final class IndexedClass
+    {
+        /** The fully qualified name of the class **/
+        private final String name;
+        /** The fully qualified name of the super class or null for java.lang.Object **/
+        private final String superName;
+        /** The fully qualified names of the directly implemented interfaces **/
+        private final List<String> interfaces;
+        /** The scope of the component or null if the class is no component **/
+        private final ScopeType scope;
+
+        private IndexedClass(String name, String superName, List<String> interfaces, ScopeType scope)
+        {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * Reads the scope of a component from its {@link Component} annotation.
+     */
+    private static final class ScopeVisitor extends ClassVisitor
+    {
+        /** The scope of the component or null if the class is no component **/
+        private ScopeType scope = null;
+
+        private ScopeVisitor()
+        {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible)
+        {
+            if (!COMPONENT.equals(descriptor))
+            {
+                return null;
+            }
+            this.scope = ScopeType.PROTOTYPE;
+            return new AnnotationVisitor(Opcodes.ASM9)
+            {
+                @Override
+                public void visitEnum(String name, String enumDescriptor, String value)
+                {
+                    if ("scope".equals(name))
+                    {
+                        scope = ScopeType.valueOf(value);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -2,6 +2,9 @@ package at.rovo.core.classloader;
 
 import at.rovo.core.util.ClassFinder;
 import at.rovo.core.util.IteratorEnumeration;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -21,6 +24,9 @@ import java.util.zip.ZipEntry;
 /**
  * Implements a strategy for loading plug-ins and all of their required classes either as class files located directly
  * in the plugin directory or contained within a jar file.
+ * <p/>
+ * If a {@link JarSnapshot} of the jar file is provided, classes and resources are served from the snapshot instead of
+ * the jar file on the file system (see {@link LoadingMode#SNAPSHOT}).
  *
  * @author Roman Vottner
  */
@@ -30,6 +36,14 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
 
     /** The URL the class files could be found **/
     private URL urlClassPath = null;
+    /** The file or directory the class path is pointing to **/
+    private volatile File file = null;
+    /** Specifies if the class path is a directory rather than an archive **/
+    private volatile Boolean directory = null;
+    /** The index of the entries of the jar file the class path is pointing to **/
+    private volatile JarEntryIndex index = null;
+    /** The private copy of the jar file to serve classes and resources from, if any **/
+    private volatile JarSnapshot snapshot = null;
 
     /**
      * Creates a new instance of this class.
@@ -50,6 +64,21 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
         this.urlClassPath = jarFile;
     }
 
+    /**
+     * Creates a new instance of this class which serves the classes and resources of the jar file located at the given
+     * {@link URL} from the provided snapshot of the jar file.
+     *
+     * @param jarFile
+     *         The location of the jar file the snapshot was taken from
+     * @param snapshot
+     *         The snapshot of the jar file or null if the jar file should be accessed directly
+     */
+    public PluginLoaderStrategy(URL jarFile, JarSnapshot snapshot)
+    {
+        this.urlClassPath = jarFile;
+        this.snapshot = snapshot;
+    }
+
     /**
      * Sets the file or location the .class files can be found in.
      *
@@ -59,6 +88,10 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
     public void setClassPath(URL newClassPath)
     {
         this.urlClassPath = newClassPath;
+        this.file = null;
+        this.directory = null;
+        this.index = null;
+        this.snapshot = null;
     }
 
     /**
@@ -71,6 +104,62 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
         return urlClassPath;
     }
 
+    /**
+     * Sets the snapshot of the jar file classes and resources should be served from. If null is provided, the jar file
+     * located at the class path will be accessed directly.
+     *
+     * @param snapshot
+     *         The snapshot of the jar file the class path is pointing to
+     */
+    public void setSnapshot(JarSnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Returns the snapshot of the jar file classes and resources are served from.
+     *
+     * @return The snapshot of the jar file or null if the jar file is accessed directly
+     */
+    public JarSnapshot getSnapshot()
+    {
+        return this.snapshot;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Classes contained in a jar file are looked up in the index of the jar file or in the snapshot of the jar file,
+     * both of which provide a filter of the contained class names. The jar file is only read if no index was built yet.
+     */
+    @Override
+    public boolean containsClass(String className)
+    {
+        JarSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+        {
+            return snapshot.containsClass(className);
+        }
+        if (this.urlClassPath == null)
+        {
+            return true;
+        }
+        File file = this.getFile();
+        if (this.isDirectory(file))
+        {
+            return true;
+        }
+        try
+        {
+            return this.getIndex(file).containsClass(className);
+        }
+        catch (IOException ioEx)
+        {
+            // let findClassBytes report the failure
+            return true;
+        }
+    }
+
     @Override
     public byte[] findClassBytes(String className) throws IOException
     {
@@ -84,12 +173,25 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
         // load the class bytes from a jar file
         if (this.urlClassPath != null)
         {
-            try (InputStream fis = this.findResourceAsStream(className.replace(".", "/") + ".class");)
+            // a definite miss does not need to touch the jar file at all
+            if (!this.containsClass(className))
+            {
+                return null;
+            }
+            String resourceName = className.replace(".", "/") + ".class";
+            File file = this.getFile();
+            if (this.snapshot == null && this.isDirectory(file))
+            {
+                try (InputStream fis = this.findResourceAsStream(resourceName))
+                {
+                    classBytes = readFully(fis, -1L);
+                }
+            }
+            else
             {
-                classBytes = new byte[fis.available()];
-                int read = fis.read(classBytes);
-                LOGGER.log(Level.FINEST, "Read {0} bytes of class {1} within JAR file", new Object[] {read, className});
+                classBytes = this.readEntry(file, resourceName);
             }
+            LOGGER.log(Level.FINEST, "Read {0} bytes of class {1}", new Object[] {classBytes.length, className});
         }
         else if (className.endsWith(".class"))
         {
@@ -104,15 +206,201 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
 
             try (FileInputStream fis = new FileInputStream(file))
             {
-                classBytes = new byte[fis.available()];
-                int read = fis.read(classBytes);
-                LOGGER.log(Level.FINEST, "Read {0} bytes of class {1}", new Object[] {read, className});
+                classBytes = readFully(fis, file.length());
+                LOGGER.log(Level.FINEST, "Read {0} bytes of class {1}", new Object[] {classBytes.length, className});
             }
         }
 
         return classBytes;
     }
 
+    /**
+     * Closes the pooled handle of the jar file this strategy reads from. The handle is reopened transparently on the
+     * next access to the jar file. This should be invoked once a plug-in finished loading or the jar file got modified
+     * or removed in order to not keep a lock on the jar file.
+     */
+    public void release()
+    {
+        if (this.urlClassPath != null && this.snapshot == null)
+        {
+            File file = this.getFile();
+            if (!this.isDirectory(file))
+            {
+                JarFilePool.getInstance().release(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the file or directory the class path of this strategy is pointing to.
+     *
+     * @return The file or directory of the class path
+     */
+    private File getFile()
+    {
+        File file = this.file;
+        if (file == null)
+        {
+            file = new File(this.urlToFileName(this.urlClassPath.toString()));
+            this.file = file;
+        }
+        return file;
+    }
+
+    /**
+     * Returns true if the class path of this strategy points to a directory instead of an archive.
+     *
+     * @param file
+     *         The file the class path is pointing to
+     *
+     * @return true if the class path is a directory
+     */
+    private boolean isDirectory(File file)
+    {
+        Boolean directory = this.directory;
+        if (directory == null)
+        {
+            directory = file.isDirectory();
+            this.directory = directory;
+        }
+        return directory;
+    }
+
+    /**
+     * Returns the index of the entries of the jar file this strategy reads from. The index is only rebuilt if no index
+     * has been built before or the jar file was modified since.
+     *
+     * @param file
+     *         The jar file to return the index for
+     *
+     * @return The index of the jar file entries
+     *
+     * @throws IOException
+     *         If the jar file could not be opened
+     */
+    private JarEntryIndex getIndex(File file) throws IOException
+    {
+        JarEntryIndex index = this.index;
+        if (index == null || !index.isVersion(file.lastModified(), file.length()))
+        {
+            if (!file.exists())
+            {
+                throw new FileNotFoundException("Could not find: '" + this.urlClassPath + "'");
+            }
+            try (JarFilePool.Handle handle = JarFilePool.getInstance().acquire(file))
+            {
+                index = this.getIndex(handle);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the entries for the version of the jar file the handle was opened for. If the jar file was
+     * modified since the index got built, the index is rebuilt.
+     *
+     * @param handle
+     *         The pooled handle of the jar file
+     *
+     * @return The index matching the version of the opened jar file
+     */
+    private JarEntryIndex getIndex(JarFilePool.Handle handle)
+    {
+        JarEntryIndex index = this.index;
+        if (index == null || !index.isVersion(handle.getLastModified(), handle.getLength()))
+        {
+            LOGGER.log(Level.FINE, "Indexing entries of {0}", new Object[] {this.urlClassPath});
+            index = new JarEntryIndex(handle.getJarFile(), handle.getLastModified(), handle.getLength());
+            this.index = index;
+        }
+        return index;
+    }
+
+    /**
+     * Reads the content of an entry of the jar file this strategy reads from.
+     *
+     * @param file
+     *         The jar file to read the entry from
+     * @param resourceName
+     *         The name of the entry including its path inside the jar file
+     *
+     * @return The content of the entry
+     *
+     * @throws IOException
+     *         If the entry could not be found or read
+     */
+    private byte[] readEntry(File file, String resourceName) throws IOException
+    {
+        JarSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+        {
+            byte[] bytes = snapshot.read(resourceName);
+            if (bytes == null)
+            {
+                throw new FileNotFoundException("Could not find " + resourceName + " inside of " + this.urlClassPath);
+            }
+            return bytes;
+        }
+
+        try (JarFilePool.Handle handle = JarFilePool.getInstance().acquire(file))
+        {
+            JarEntryIndex index = this.getIndex(handle);
+            JarFile jarFile = handle.getJarFile();
+            // lets get a reference to our .class-file
+            ZipEntry zipEntry = index.contains(resourceName) ? jarFile.getEntry(resourceName) : null;
+            if (zipEntry == null)
+            {
+                throw new FileNotFoundException("Could not find " + resourceName + " inside of " + this.urlClassPath);
+            }
+            // with our valid reference, we are now able to get the bytes out of the jar-archive
+            try (InputStream stream = jarFile.getInputStream(zipEntry))
+            {
+                return readFully(stream, index.getSize(resourceName));
+            }
+        }
+    }
+
+    /**
+     * Reads all bytes of the provided stream.
+     *
+     * @param stream
+     *         The stream to read
+     * @param size
+     *         The number of bytes the stream will provide or -1 if the size is unknown
+     *
+     * @return The bytes read from the stream
+     *
+     * @throws IOException
+     *         If reading from the stream failed
+     */
+    private static byte[] readFully(InputStream stream, long size) throws IOException
+    {
+        if (size >= 0 && size <= Integer.MAX_VALUE)
+        {
+            byte[] bytes = new byte[(int) size];
+            int pos = 0;
+            while (pos < bytes.length)
+            {
+                int read = stream.read(bytes, pos, bytes.length - pos);
+                if (read < 0)
+                {
+                    throw new EOFException("Unexpected end of stream after " + pos + " of " + size + " bytes");
+                }
+                pos += read;
+            }
+            return bytes;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * Converts the {@link URL} of the specified class-path to an absolute filename.
      *
@@ -261,6 +549,15 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
             throw new IllegalArgumentException("Name of resource to load is null or empty");
         }
 
+        JarSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+        {
+            if (!snapshot.contains(resourceName))
+            {
+                throw new FileNotFoundException("Could not find " + resourceName + " inside of " + urlClassPath);
+            }
+            return snapshot.getUrl(resourceName);
+        }
 
         if (this.urlClassPath != null)
         {
@@ -292,16 +589,9 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
             else
             {
                 // we are inside a jar-File
-                try (JarFile jarFile = new JarFile(file))
+                if (!this.getIndex(file).contains(resourceName))
                 {
-                    // lets get a reference to our .class-file
-                    ZipEntry zipEntry = jarFile.getEntry(resourceName);
-                    if (zipEntry == null)
-                    {
-                        jarFile.close();
-                        throw new FileNotFoundException(
-                                "Could not find " + resourceName + " inside of " + urlClassPath);
-                    }
+                    throw new FileNotFoundException("Could not find " + resourceName + " inside of " + urlClassPath);
                 }
 
                 return this.createUrlOfEntry(fileName, resourceName);
@@ -324,7 +614,15 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
             throw new IllegalArgumentException("Name of resource to load is null or empty");
         }
 
-        if (this.urlClassPath != null)
+        JarSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+        {
+            for (String entry : snapshot.findEntries(resourceName))
+            {
+                foundItems.add(snapshot.getUrl(entry));
+            }
+        }
+        else if (this.urlClassPath != null)
         {
             String fileName = this.urlToFileName(urlClassPath.toString());
 
@@ -348,7 +646,7 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
             else
             {
                 // we are inside a jar-File
-                List<String> foundFiles = ClassFinder.scanJarFileForFiles(file, resourceName);
+                List<String> foundFiles = this.getIndex(file).findEntries(resourceName);
                 for (String _file : foundFiles)
                 {
                     foundItems.add(this.createUrlOfEntry(fileName, _file));
@@ -359,79 +657,37 @@ public class PluginLoaderStrategy implements IClassLoaderStrategy
         return new IteratorEnumeration<>(foundItems.iterator());
     }
 
-    @SuppressWarnings("resource")
     @Override
     public InputStream findResourceAsStream(String resourceName) throws IOException
     {
+        if (this.snapshot != null)
+        {
+            return new ByteArrayInputStream(this.readEntry(null, resourceName));
+        }
         if (this.urlClassPath != null)
         {
-            String fileName = this.urlToFileName(urlClassPath.toString());
-
-            InputStream stream;
-            JarFile jarFile = null;
-            try
+            File file = this.getFile();
+            if (!file.exists())
             {
-                File file = new File(fileName);
-                if (!file.exists())
-                {
-                    throw new FileNotFoundException("Could not find: '" + urlClassPath + "'");
-                }
+                throw new FileNotFoundException("Could not find: '" + urlClassPath + "'");
+            }
 
-                // check if our class path is a archive or a directory
-                if (file.isDirectory())
-                {
-                    String name = fileName;
-                    if (!resourceName.startsWith("/") || !resourceName.startsWith("\\"))
-                    {
-                        name = name + "/";
-                    }
-                    stream = new FileInputStream(name + resourceName);
-                    return stream;
-                }
-                else
+            // check if our class path is a archive or a directory
+            if (this.isDirectory(file))
+            {
+                String name = file.getPath();
+                if (!resourceName.startsWith("/") || !resourceName.startsWith("\\"))
                 {
-                    // we are inside a jar-File
-                    jarFile = new JarFile(file);
-                    // lets get a reference to our .class-file
-                    ZipEntry zipEntry = jarFile.getEntry(resourceName);
-                    if (zipEntry == null)
-                    {
-                        jarFile.close();
-                        throw new FileNotFoundException(
-                                "Could not find " + resourceName + " inside of " + urlClassPath);
-                    }
-                    // with our valid reference, we are now able to get the bytes
-                    // out of the jar-archive
-                    stream = jarFile.getInputStream(zipEntry);
-                    return stream;
+                    name = name + "/";
                 }
+                return new FileInputStream(name + resourceName);
             }
-            catch (IOException ioEx)
+            else
             {
-                if (jarFile != null)
-                {
-                    jarFile.close();
-                }
+                // we are inside a jar-File. The content is copied so that the pooled jar file handle is not kept
+                // open by a stream the caller might never close
+                return new ByteArrayInputStream(this.readEntry(file, resourceName));
             }
-//            finally
-//            {
-//                if (stream != null)
-//                {
-//                    try
-//                    {
-//                        stream.close();
-//                    }
-//                    catch (IOException e)
-//                    {
-//                        LOGGER.log(Level.SEVERE, "Couldn't close the stream of {0}!", new Object[] {resourceName});
-//                        e.printStackTrace();
-//                    }
-//                }
-//                if (jarFile != null)
-//                {
-//                    jarFile.close();
-//                }
-//            }
         }
         throw new IOException("No classpath has been specified");
     }
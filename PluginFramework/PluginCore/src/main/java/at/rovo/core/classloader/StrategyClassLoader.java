@@ -6,7 +6,9 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,6 +22,18 @@ import java.util.logging.Logger;
  * valid <code>Class</code> object. If the parental class loaders are unable to find the required class the current
  * instance propagates the call to its strategies. The first strategy that returns a byte[] array unequal to null will
  * load the class via the {@link #defineClass(String, byte[], int, int)} method and return it to the caller.
+ * <p/>
+ * Classes which are provided by the own strategies but not by any parent class loader are defined right away, which
+ * avoids the costly {@link ClassNotFoundException}s thrown by the parents on a miss. A {@link DelegationPolicy} further
+ * allows to load classes child-first, i.e. to define them before asking the parent class loaders. Classes already
+ * exported via a {@link DelegationClassLoader} parent are however always taken from the parent.
+ * <p/>
+ * This class loader is registered as parallel capable and therefore only locks on the name of the class to load.
+ * Subclasses which should be parallel capable as well need to register themselves via {@link
+ * #registerAsParallelCapable()}.
+ * <p/>
+ * The bytes of classes may further be prepared ahead of their definition via {@link #prepareClass(String)}. This
+ * allows to read and instrument many classes concurrently while the classes are defined in order later on.
  *
  * @author Roman Vottner
  */
@@ -27,10 +41,26 @@ public class StrategyClassLoader extends ClassLoader
 {
     /** The logger of this class **/
     private static Logger LOGGER = Logger.getLogger(StrategyClassLoader.class.getName());
+
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
+
     /** The registered strategies for this class loader **/
     private Set<IClassLoaderStrategy> strategies = null;
     /** The name of this class loader **/
     private String name = "Strategy class loader";
+    /** The delegation class loader which gets notified about each class defined by this instance **/
+    private volatile DelegationClassLoader classIndex = null;
+    /** Specifies whether classes are loaded parent-first or child-first **/
+    private volatile DelegationPolicy delegationPolicy = DelegationPolicy.PARENT_FIRST;
+    /** The metrics to record the class loading requests to, if any **/
+    private volatile ClassLoadingMetrics metrics = null;
+    /** The build-time index of the plug-in loaded by this class loader, if any **/
+    private volatile PluginIndex pluginIndex = null;
+    /** The bytes of classes which got prepared but not yet defined **/
+    private final Map<String, byte[]> preparedClasses = new ConcurrentHashMap<>();
 
     /**
      * Creates a new instance of this class loader which is a child of the class loader that loaded this class loder's
@@ -122,10 +152,109 @@ public class StrategyClassLoader extends ClassLoader
         return this.name;
     }
 
+    /**
+     * Sets the policy which specifies whether a class is loaded parent-first or child-first.
+     *
+     * @param delegationPolicy
+     *         The policy to apply on loading classes
+     */
+    public void setDelegationPolicy(DelegationPolicy delegationPolicy)
+    {
+        this.delegationPolicy = delegationPolicy != null ? delegationPolicy : DelegationPolicy.PARENT_FIRST;
+    }
+
+    /**
+     * Returns the policy which specifies whether a class is loaded parent-first or child-first.
+     *
+     * @return The applied delegation policy
+     */
+    public DelegationPolicy getDelegationPolicy()
+    {
+        return this.delegationPolicy;
+    }
+
+    /**
+     * Sets the metrics class loading requests, class definitions and strategy calls should be recorded to.
+     *
+     * @param metrics
+     *         The metrics to record to or null if nothing should be recorded
+     */
+    public void setMetrics(ClassLoadingMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics class loading requests are recorded to.
+     *
+     * @return The metrics of this class loader or null if nothing is recorded
+     */
+    public ClassLoadingMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the index of the plug-in whose classes are loaded by this class loader.
+     *
+     * @param pluginIndex
+     *         The index of the plug-in or null if the plug-in was packaged without an index
+     */
+    public void setPluginIndex(PluginIndex pluginIndex)
+    {
+        this.pluginIndex = pluginIndex;
+    }
+
+    /**
+     * Returns the index of the plug-in whose classes are loaded by this class loader.
+     *
+     * @return The index of the plug-in or null if the plug-in was packaged without an index
+     */
+    public PluginIndex getPluginIndex()
+    {
+        return this.pluginIndex;
+    }
+
+    /**
+     * Sets the delegation class loader which keeps track of the classes defined by this instance.
+     *
+     * @param classIndex
+     *         The delegation class loader to notify on defining a class
+     */
+    void setClassIndex(DelegationClassLoader classIndex)
+    {
+        this.classIndex = classIndex;
+    }
+
     @Override
     public Class<?> loadClass(String name)
     {
-        LOGGER.log(Level.INFO, "{0} - Request to load class {1}", new Object[] {this.name, name});
+        synchronized (this.getClassLoadingLock(name))
+        {
+            Class<?> classToLoad = this.loadClassLocked(name);
+            ClassLoadingMetrics metrics = this.metrics;
+            if (metrics != null)
+            {
+                metrics.recordLoad(classToLoad != null);
+            }
+            return classToLoad;
+        }
+    }
+
+    /**
+     * Loads the class with the given name while the class loading lock for the name is held.
+     *
+     * @param name
+     *         The fully qualified name of the class to load
+     *
+     * @return The loaded class or null if the class could not be found
+     */
+    private Class<?> loadClassLocked(String name)
+    {
+        if (LOGGER.isLoggable(Level.FINER))
+        {
+            LOGGER.log(Level.FINER, "{0} - Request to load class {1}", new Object[] {this.name, name});
+        }
 
         Class<?> classToLoad = null;
         try
@@ -136,16 +265,47 @@ public class StrategyClassLoader extends ClassLoader
             classToLoad = this.hasLoadedClass(name);
             if (classToLoad != null)
             {
-                LOGGER.log(Level.INFO, "{0} - Load class '{1}' before", new Object[] {this.name, name});
+                if (LOGGER.isLoggable(Level.FINER))
+                {
+                    LOGGER.log(Level.FINER, "{0} - Load class '{1}' before", new Object[] {this.name, name});
+                }
                 return classToLoad;
             }
 
-            LOGGER.log(Level.INFO, "{0} - Didn't load class '{1}' before - trying parent loader",
-                       new Object[] {this.name, name});
+            DelegationClassLoader delegation =
+                    parent instanceof DelegationClassLoader ? (DelegationClassLoader) parent : null;
+            // exported classes are always shared with the other plug-ins
+            if (delegation != null && delegation.containsClass(name))
+            {
+                return delegation.loadClass(name);
+            }
+
+            // define classes of our own right away if the policy says so or if no parent could provide them
+            // anyway, which spares the parents from failing with an exception
+            if (this.containsClassLocally(name) &&
+                (this.delegationPolicy.isChildFirst(name) || !this.isProvidedByParent(name, delegation)))
+            {
+                if (LOGGER.isLoggable(Level.FINER))
+                {
+                    LOGGER.log(Level.FINER, "{0} - Defining class '{1}' without asking the parent loader",
+                               new Object[] {this.name, name});
+                }
+                classToLoad = this.findClass(name);
+                if (classToLoad != null)
+                {
+                    return classToLoad;
+                }
+            }
+
+            if (LOGGER.isLoggable(Level.FINER))
+            {
+                LOGGER.log(Level.FINER, "{0} - Didn't load class '{1}' before - trying parent loader",
+                           new Object[] {this.name, name});
+            }
             // not loaded by us, maybe the ancestor have loaded it?
-            if (parent != null && parent instanceof DelegationClassLoader)
+            if (delegation != null)
             {
-                classToLoad = this.getParent().loadClass(name);
+                classToLoad = delegation.loadClass(name);
             }
             else
             {
@@ -155,8 +315,11 @@ public class StrategyClassLoader extends ClassLoader
             // the parents didn't load the class either, so do it ourselves
             if (classToLoad == null)
             {
-                LOGGER.log(Level.INFO, "{0} - Parent didn't load' {1}' either - finding it ourselves",
-                           new Object[] {this.name, name});
+                if (LOGGER.isLoggable(Level.FINER))
+                {
+                    LOGGER.log(Level.FINER, "{0} - Parent didn't load' {1}' either - finding it ourselves",
+                               new Object[] {this.name, name});
+                }
                 classToLoad = this.findClass(name);
             }
         }
@@ -170,39 +333,153 @@ public class StrategyClassLoader extends ClassLoader
     @Override
     protected Class<?> findClass(String className) throws ClassNotFoundException
     {
-        LOGGER.log(Level.INFO, "{0} - Request to find class {1}", new Object[] {this.name, className});
+        synchronized (this.getClassLoadingLock(className))
+        {
+            if (LOGGER.isLoggable(Level.FINER))
+            {
+                LOGGER.log(Level.FINER, "{0} - Request to find class {1}", new Object[] {this.name, className});
+            }
 
-        // do not define already defined classes again
-        Class<?> clazz = this.findLoadedClass(className);
-        if (clazz != null)
+            // do not define already defined classes again
+            Class<?> clazz = this.findLoadedClass(className);
+            if (clazz != null)
+            {
+                if (LOGGER.isLoggable(Level.FINER))
+                {
+                    LOGGER.log(Level.FINER, "{0} has loaded {1} before", new Object[] {this.name, className});
+                }
+                return clazz;
+            }
+            if (LOGGER.isLoggable(Level.FINER))
+            {
+                LOGGER.log(Level.FINER, "{0} has not loaded {1} before", new Object[] {this.name, className});
+            }
+
+            try
+            {
+                byte[] classBytes = this.preparedClasses.remove(className);
+                if (classBytes == null)
+                {
+                    classBytes = this.findClassBytes(className);
+                }
+                if (classBytes != null)
+                {
+                    if (LOGGER.isLoggable(Level.FINER))
+                    {
+                        LOGGER.log(Level.FINER, "found bytes for class {0} - defining class in {1}",
+                                   new Object[] {className, this.getName()});
+                    }
+                    // at least one strategy was able to find bytes for this class
+                    // so create the class based on the found bytes
+                    long start = System.nanoTime();
+                    clazz = defineClass(className, classBytes, 0, classBytes.length);
+                    ClassLoadingMetrics metrics = this.metrics;
+                    if (metrics != null)
+                    {
+                        metrics.recordDefine(System.nanoTime() - start);
+                    }
+                    if (this.classIndex != null)
+                    {
+                        this.classIndex.classDefined(className, this);
+                    }
+                    return clazz;
+                }
+            }
+            catch (IOException ioEx)
+            {
+                throw new ClassNotFoundException(
+                        "Error while loading class " + className + "! The following error occurred: " +
+                        ioEx.getLocalizedMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the bytes of a class from the strategies without defining the class. The bytes are kept until the class
+     * gets defined on the next request to load it. As neither the class loading lock is acquired nor a class is
+     * defined, multiple classes can be prepared concurrently.
+     *
+     * @param className
+     *         The fully qualified name of the class to prepare
+     *
+     * @return The prepared bytes of the class or null if the class is already defined or no strategy was able to
+     * deliver the bytes
+     *
+     * @throws IOException
+     *         If during the loading of the class files a strategy noticed an error
+     */
+    public byte[] prepareClass(String className) throws IOException
+    {
+        if (this.findLoadedClass(className) != null)
         {
-            LOGGER.log(Level.INFO, "{0} has loaded {1} before", new Object[] {this.name, className});
-            return clazz;
+            return null;
         }
-        else
+        byte[] classBytes = this.preparedClasses.get(className);
+        if (classBytes == null)
         {
-            LOGGER.log(Level.INFO, "{0} has not loaded {1} before", new Object[] {this.name, className});
+            classBytes = this.findClassBytes(className);
+            if (classBytes != null)
+            {
+                this.preparedClasses.putIfAbsent(className, classBytes);
+            }
         }
+        return classBytes;
+    }
 
-        try
+    /**
+     * Drops the bytes of all prepared classes which did not get defined by this class loader, f.e. as they were loaded
+     * by a parent class loader instead.
+     */
+    public void discardPreparedClasses()
+    {
+        this.preparedClasses.clear();
+    }
+
+    /**
+     * Returns true if at least one of the strategies might be able to provide the class with the given name.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     *
+     * @return true if the class might be provided by a strategy, false if no strategy contains the class
+     */
+    private boolean containsClassLocally(String className)
+    {
+        for (IClassLoaderStrategy strategy : this.strategies)
         {
-            byte[] classBytes = this.findClassBytes(className);
-            if (classBytes != null)
+            if (strategy.containsClass(className))
             {
-                LOGGER.log(Level.INFO, "found bytes for class {0} - defining class in {1}",
-                           new Object[] {className, this.getName()});
-                // at least one strategy was able to find bytes for this class
-                // so create the class based on the found bytes
-                return defineClass(className, classBytes, 0, classBytes.length);
+                return true;
             }
         }
-        catch (IOException ioEx)
+        return false;
+    }
+
+    /**
+     * Returns true if the class file of the class with the given name is visible to the parent class loaders. Exported
+     * classes of a {@link DelegationClassLoader} parent are not taken into account.
+     *
+     * @param className
+     *         The fully qualified name of the class
+     * @param delegation
+     *         The parent of this class loader if it is a delegation class loader, null otherwise
+     *
+     * @return true if the parent class loaders are able to load the class
+     */
+    private boolean isProvidedByParent(String className, DelegationClassLoader delegation)
+    {
+        if (delegation != null)
         {
-            throw new ClassNotFoundException(
-                    "Error while loading class " + className + "! The following error occurred: " +
-                    ioEx.getLocalizedMessage());
+            return delegation.isProvidedByParent(className);
         }
-        return null;
+        String classFile = className.replace('.', '/') + ".class";
+        ClassLoader parent = this.getParent();
+        if (parent != null)
+        {
+            return parent.getResource(classFile) != null;
+        }
+        return ClassLoader.getSystemResource(classFile) != null;
     }
 
     /**
@@ -224,9 +501,26 @@ public class StrategyClassLoader extends ClassLoader
         byte[] classBytes;
         for (IClassLoaderStrategy strategy : this.strategies)
         {
-            LOGGER.log(Level.FINE, "find bytes for class {0} in {1} with strategy {2}",
-                       new Object[] {className, this, strategy});
+            // skip strategies which definitely don't know the class
+            if (!strategy.containsClass(className))
+            {
+                continue;
+            }
+            if (LOGGER.isLoggable(Level.FINE))
+            {
+                LOGGER.log(Level.FINE, "find bytes for class {0} in {1} with strategy {2}",
+                           new Object[] {className, this, strategy});
+            }
+            long start = System.nanoTime();
             classBytes = strategy.findClassBytes(className);
+            ClassLoadingMetrics metrics = this.metrics;
+            if (metrics != null)
+            {
+                long nanos = System.nanoTime() - start;
+                int bytes = classBytes != null ? classBytes.length : 0;
+                metrics.recordStrategyCall(nanos, bytes);
+                ClassLoadingMetrics.forStrategy(strategy.getClass()).recordStrategyCall(nanos, bytes);
+            }
             if (classBytes != null)
             {
                 return classBytes;
@@ -349,13 +643,16 @@ public class StrategyClassLoader extends ClassLoader
     public Class<?> hasLoadedClass(String className)
     {
         Class<?> clazz = this.findLoadedClass(className);
-        if (clazz != null)
-        {
-            LOGGER.log(Level.INFO, "{0} loaded class {1}/{2}", new Object[] {this.name, className, clazz});
-        }
-        else
+        if (LOGGER.isLoggable(Level.FINEST))
         {
-            LOGGER.log(Level.INFO, "{0} did not load class {1}", new Object[] {this.name, className});
+            if (clazz != null)
+            {
+                LOGGER.log(Level.FINEST, "{0} loaded class {1}/{2}", new Object[] {this.name, className, clazz});
+            }
+            else
+            {
+                LOGGER.log(Level.FINEST, "{0} did not load class {1}", new Object[] {this.name, className});
+            }
         }
         return clazz;
     }
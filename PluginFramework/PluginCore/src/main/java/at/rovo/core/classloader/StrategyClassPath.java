@@ -0,0 +1,76 @@
+package at.rovo.core.classloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+/**
+ * A Javassist {@link ClassPath} which looks up class files via an {@link IClassLoaderStrategy}.
+ * <p/>
+ * This allows Javassist to resolve the classes of a plug-in from the very same source the class loader reads the class
+ * bytes from, f.e. a {@link JarSnapshot}, instead of accessing the jar file on the file system.
+ *
+ * @author Roman Vottner
+ */
+class StrategyClassPath implements ClassPath
+{
+    /** The strategy to look up class files with **/
+    private final IClassLoaderStrategy strategy;
+
+    /**
+     * Creates a new class path which looks up class files via the provided strategy.
+     *
+     * @param strategy
+     *         The strategy to look up class files with
+     */
+    StrategyClassPath(IClassLoaderStrategy strategy)
+    {
+        this.strategy = strategy;
+    }
+
+    @Override
+    public InputStream openClassfile(String className) throws NotFoundException
+    {
+        try
+        {
+            return this.strategy.findResourceAsStream(toResourceName(className));
+        }
+        catch (IOException ioEx)
+        {
+            // Javassist asks every class path in turn, so a class not being part of the plug-in is no error
+            return null;
+        }
+    }
+
+    @Override
+    public URL find(String className)
+    {
+        try
+        {
+            return this.strategy.findResource(toResourceName(className));
+        }
+        catch (IOException ioEx)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+
+    }
+
+    private static String toResourceName(String className)
+    {
+        return className.replace('.', '/') + ".class";
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StrategyClassPath[" + this.strategy + "]";
+    }
+}
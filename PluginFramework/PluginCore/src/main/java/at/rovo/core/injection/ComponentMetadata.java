@@ -0,0 +1,170 @@
+package at.rovo.core.injection;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.annotations.ScopeType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the injection relevant parts of a {@link Component} annotated class: its scope, the fields annotated with
+ * {@link ComponentId} and {@link Inject} and the static field holding the instance of a singleton component.
+ * <p/>
+ * The metadata is recorded by {@link at.rovo.core.classloader.InjectionLoaderStrategyDecorator} while the class gets
+ * instrumented and kept per plug-in, so neither the plug-in manager nor the {@link IInjectionController} have to
+ * inspect the class again. Fields are referenced by their names in declaration order.
+ *
+ * @author Roman Vottner
+ */
+public final class ComponentMetadata
+{
+    /** The fully qualified name of the component **/
+    private final String className;
+    /** The scope of the component **/
+    private final ScopeType scope;
+    /** The names of the fields annotated with {@link ComponentId} **/
+    private final List<String> componentIdFields;
+    /** The names of the fields annotated with {@link Inject} **/
+    private final List<String> injectFields;
+    /** The name of the static field holding the singleton instance or null if there is none **/
+    private final String singletonField;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param className
+     *         The fully qualified name of the component
+     * @param scope
+     *         The scope of the component
+     * @param componentIdFields
+     *         The names of the fields annotated with {@link ComponentId}
+     * @param injectFields
+     *         The names of the fields annotated with {@link Inject}
+     * @param singletonField
+     *         The name of the static field holding the singleton instance or null if there is none
+     */
+    public ComponentMetadata(String className, ScopeType scope, List<String> componentIdFields,
+                             List<String> injectFields, String singletonField)
+    {
+        this.className = className;
+        this.scope = scope;
+        this.componentIdFields = Collections.unmodifiableList(new ArrayList<>(componentIdFields));
+        this.injectFields = Collections.unmodifiableList(new ArrayList<>(injectFields));
+        this.singletonField = singletonField;
+    }
+
+    /**
+     * Extracts the metadata of an already loaded class via reflection. This is used for components whose metadata was
+     * not recorded during instrumentation, f.e. as their bytes were served from the {@link
+     * at.rovo.core.classloader.InstrumentedClassCache}.
+     *
+     * @param clazz
+     *         The class to extract the metadata from
+     *
+     * @return The metadata of the class or null if the class is not annotated with {@link Component}
+     */
+    public static ComponentMetadata fromClass(Class<?> clazz)
+    {
+        Component component = clazz.getAnnotation(Component.class);
+        if (component == null)
+        {
+            return null;
+        }
+        List<String> componentIdFields = new ArrayList<>();
+        List<String> injectFields = new ArrayList<>();
+        String singletonField = null;
+        for (Field field : clazz.getDeclaredFields())
+        {
+            if (field.isAnnotationPresent(ComponentId.class))
+            {
+                componentIdFields.add(field.getName());
+            }
+            if (field.isAnnotationPresent(Inject.class))
+            {
+                injectFields.add(field.getName());
+            }
+            if (ScopeType.SINGLETON.equals(component.scope()) && Modifier.isStatic(field.getModifiers()) &&
+                (field.getType().equals(clazz) || field.getType().equals(WeakReference.class) ||
+                 field.getType().equals(SingletonHolder.class)))
+            {
+                singletonField = field.getName();
+            }
+        }
+        return new ComponentMetadata(clazz.getName(), component.scope(), componentIdFields, injectFields,
+                                     singletonField);
+    }
+
+    /**
+     * Returns the fully qualified name of the component.
+     *
+     * @return The name of the component
+     */
+    public String getClassName()
+    {
+        return this.className;
+    }
+
+    /**
+     * Returns the scope of the component.
+     *
+     * @return The scope of the component
+     */
+    public ScopeType getScope()
+    {
+        return this.scope;
+    }
+
+    /**
+     * Returns true if the component is a {@link ScopeType#SINGLETON}.
+     *
+     * @return true if the component is a singleton, false otherwise
+     */
+    public boolean isSingleton()
+    {
+        return ScopeType.SINGLETON.equals(this.scope);
+    }
+
+    /**
+     * Returns the names of the fields annotated with {@link ComponentId}. A valid component declares exactly one such
+     * field.
+     *
+     * @return The names of the component id fields
+     */
+    public List<String> getComponentIdFields()
+    {
+        return this.componentIdFields;
+    }
+
+    /**
+     * Returns the names of the fields annotated with {@link Inject}.
+     *
+     * @return The names of the fields to inject
+     */
+    public List<String> getInjectFields()
+    {
+        return this.injectFields;
+    }
+
+    /**
+     * Returns the name of the static field holding the singleton instance.
+     *
+     * @return The name of the singleton field or null if the component is no singleton or does not declare such a
+     * field
+     */
+    public String getSingletonField()
+    {
+        return this.singletonField;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.className + " [scope=" + this.scope + ", componentId=" + this.componentIdFields + ", inject=" +
+               this.injectFields + ", singletonField=" + this.singletonField + "]";
+    }
+}
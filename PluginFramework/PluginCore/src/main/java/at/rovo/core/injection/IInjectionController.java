@@ -2,14 +2,18 @@ package at.rovo.core.injection;
 
 import at.rovo.common.annotations.Component;
 import at.rovo.common.annotations.Inject;
+import at.rovo.common.plugin.IInjectionResolver;
 import at.rovo.common.plugin.InjectionException;
 
 /**
  * The injection controller interface.
+ * <p/>
+ * The controller resolves the instances assigned by the injector methods woven into components as well as by the
+ * {@link at.rovo.common.plugin.IComponentInjector}s generated at compile time of a plug-in.
  *
  * @author Roman Vottner
  */
-public interface IInjectionController
+public interface IInjectionController extends IInjectionResolver
 {
     /**
      * Injects all {@link Inject} annotated fields. Only objects of classes that are {@link Component} annotated shall
@@ -3,25 +3,27 @@ package at.rovo.core.injection;
 import at.rovo.common.annotations.Component;
 import at.rovo.common.annotations.ComponentId;
 import at.rovo.common.annotations.Inject;
-import at.rovo.common.annotations.ScopeType;
+import at.rovo.core.classloader.IClassLoaderStrategy;
+import at.rovo.core.classloader.InjectionLoaderStrategyDecorator;
+import at.rovo.core.classloader.StrategyClassLoader;
+import at.rovo.core.injection.InjectionPlan.InjectionPoint;
 import at.rovo.core.util.ClassFinder;
 import at.rovo.common.plugin.InjectionException;
 import java.lang.invoke.MethodHandles;
-import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.AccessibleObject;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,6 +51,10 @@ import java.util.logging.Logger;
  * possible. In case an interface is marked as injection-target the application- class path is looked for some classes
  * that implement this interface. If only one implementing class could be found, this class gets instantiated and
  * injected into the field.
+ * <p/>
+ * The annotations of a component are not read on every initialization but taken from the {@link ComponentMetadata}
+ * recorded while the component got instrumented. The fields and setters of a component are looked up once and kept as
+ * {@link InjectionPlan} of the class afterwards.
  *
  * @author Roman Vottner
  * @see Component
@@ -65,15 +71,54 @@ public enum InjectionControllerImpl implements IInjectionController
     private static Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
     /**
-     * Keeps track of singleton instances which should get injected into a <code>@Component</code> annotated class
+     * Keeps track of singleton instances which should get injected into a <code>@Component</code> annotated class. The
+     * instances are only weakly referenced and kept per class, so the registry entry is released together with the
+     * class and equally named classes of different plug-ins don't collide
      **/
-    private final Map<String, WeakReference<Object>> singletonRef = Collections.synchronizedMap(new HashMap<>());
+    private final ClassValue<SingletonHolder> singletons = new ClassValue<SingletonHolder>()
+    {
+        @Override
+        protected SingletonHolder computeValue(Class<?> type)
+        {
+            return new SingletonHolder(false);
+        }
+    };
+
+    /**
+     * The instance of a singleton class which is currently injected, if any. A singleton is only registered once its
+     * fields got injected, so other threads wait for the construction to complete, while threads which are part of a
+     * dependency cycle with the constructing thread get the instance under construction
+     **/
+    private final ClassValue<AtomicReference<Construction>> constructions =
+            new ClassValue<AtomicReference<Construction>>()
+            {
+                @Override
+                protected AtomicReference<Construction> computeValue(Class<?> type)
+                {
+                    return new AtomicReference<>();
+                }
+            };
+
+    /** The construction of a singleton each thread is currently waiting for **/
+    private final Map<Thread, Construction> waitingThreads = new ConcurrentHashMap<>();
+
+    /**
+     * The plans of initializing components, which are kept per class and released together with the class
+     **/
+    private final ClassValue<InjectionPlan> plans = new ClassValue<InjectionPlan>()
+    {
+        @Override
+        protected InjectionPlan computeValue(Class<?> type)
+        {
+            return InjectionPlan.create(type, getComponentMetadata(type));
+        }
+    };
 
     /**
-     * Contains a phantom reference to keep track of unloading events for instances injected
+     * Contains an identity based reference to every initialized instance, which is used to detect multiple
+     * initialization calls for the same instance and to keep track of unloading events of the instance
      **/
-    private final Map<? super Reference<?>, String> initializations =
-            Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<IdentityReference, String> initializations = new ConcurrentHashMap<>();
 
     /**
      * Will contain a reference to objects that have been removed by the garbage collector
@@ -87,7 +132,7 @@ public enum InjectionControllerImpl implements IInjectionController
      * Keeps track of the number of instantiated classes. The ID will be assigned to the <code>@Component</code>
      * annotated class as its <code>@ComponentId</code>.
      **/
-    private Long uniqueId = 0L;
+    private final AtomicLong uniqueId = new AtomicLong();
 
     /** If set to true will terminate the cleanUp thread **/
     private volatile boolean done = false;
@@ -117,29 +162,12 @@ public enum InjectionControllerImpl implements IInjectionController
                     {
                         // call to remove blocks until an object is available for removal
                         Reference<?> ref = refQueue.remove(500);
-                        synchronized (initializations)
+                        // check if the map containing the already initialized objects has a reference to an unloaded
+                        // object. Singletons need no clean up as their weak reference is cleared on collecting them
+                        String name = ref != null ? initializations.remove(ref) : null;
+                        if (name != null)
                         {
-                            // check if the map containing the already initialized objects has a reference to an
-                            // unloaded object
-                            if (initializations.containsKey(ref))
-                            {
-
-                                LOGGER.log(Level.INFO, "Unloading object {0}", new Object[] {initializations.get(ref)});
-                                String name = initializations.remove(ref);
-
-                                if (name != null && name.contains("@"))
-                                {
-                                    name = name.substring(0, name.indexOf("@"));
-                                    synchronized (singletonRef)
-                                    {
-                                        if (singletonRef.containsKey(name))
-                                        {
-                                            LOGGER.log(Level.INFO, "Unloading singleton {0}", new Object[] {name});
-                                            singletonRef.remove(name);
-                                        }
-                                    }
-                                }
-                            }
+                            LOGGER.log(Level.INFO, "Unloading object {0}", new Object[] {name});
                         }
 
                         if (ref != null)
@@ -147,30 +175,32 @@ public enum InjectionControllerImpl implements IInjectionController
                             ref.clear();
                         }
 
-                        // pause the thread if both maps are empty --> no injected classes available; either nothing got
-                        // loaded or everything is unloaded
-                        if (initializations.isEmpty() && singletonRef.isEmpty())
+                        // pause the thread if the map is empty --> no injected classes available; either nothing got
+                        // loaded or everything is unloaded. The sleeping state is published before the map is checked,
+                        // so either an initialization notices the sleeping thread or the thread notices the new
+                        // reference
+                        synchronized (cleanUpThread)
                         {
-                            synchronized (cleanUpThread)
+                            isSleeping = true;
+                            while (!done && initializations.isEmpty())
                             {
-                                isSleeping = true;
-                                Thread.currentThread().wait();
-                                isSleeping = false;
+                                cleanUpThread.wait();
                             }
-
-//                            try
-//                            {
-//                                lock.lock();
-//                                // wait till new references arrive
-//                                isSleeping = true;
-//                                noReferenceToMonitorAvailable.await();
-//                            }
-//                            finally
-//                            {
-//                                lock.unlock();
-//                                isSleeping = false;
-//                            }
+                            isSleeping = false;
                         }
+
+//                        try
+//                        {
+//                            lock.lock();
+//                            // wait till new references arrive
+//                            isSleeping = true;
+//                            noReferenceToMonitorAvailable.await();
+//                        }
+//                        finally
+//                        {
+//                            lock.unlock();
+//                            isSleeping = false;
+//                        }
                     }
                 }
                 catch (InterruptedException e)
@@ -217,407 +247,453 @@ public enum InjectionControllerImpl implements IInjectionController
     {
         LOGGER.log(Level.FINE, "initializing {0}", new Object[] {obj});
         // every Object to initialize has to be annotated with "@Component"
-        Class<?> clazz = obj.getClass();
-        if (!clazz.isAnnotationPresent(Component.class))
+        InjectionPlan plan = this.getInjectionPlan(obj.getClass());
+        if (!plan.isComponent())
         {
             throw new InjectionException("Object '" + obj.toString() + "' is not a component: " + obj);
         }
 
-        // check for multiple initialization calls for the same objects
-        synchronized (initializations)
+        // check for multiple initialization calls for the same objects. Objects are compared by identity, so neither a
+        // global lock is required nor are user defined equals or toString methods invoked
+        IdentityReference ref = new IdentityReference(obj, refQueue);
+        String name = obj.getClass().getName() + "@" + Integer.toHexString(ref.hash);
+        if (this.initializations.putIfAbsent(ref, name) == null)
         {
-            if (!this.initializations.containsValue(obj.toString()))
+            LOGGER.log(Level.INFO, "{0} loaded with class loader: {1}",
+                       new Object[] {name, obj.getClass().getClassLoader()});
+            // as we've added some data to the map wake-up the cleanup thread, if it is sleeping, in order to listen to
+            // receive references if the garbage collector removes the object
+            if (this.isSleeping)
             {
-                LOGGER.log(Level.INFO, "{0} loaded with class loader: {1}",
-                           new Object[] {obj, obj.getClass().getClassLoader()});
-                Reference<?> ref = new PhantomReference<>(obj, refQueue);
-                boolean isEmpty = this.initializations.isEmpty();
-                this.initializations.put(ref, obj.toString());
-                // as we've added some data to the map and it was empty before wake-up the cleanup thread in order to
-                // listen to receive phantom references if the garbage collector finalizes the object
-                if (isEmpty)
+                synchronized (this.cleanUpThread)
                 {
-                    synchronized (this.cleanUpThread)
-                    {
-                        this.cleanUpThread.notify();
-                    }
-//                    try
-//                    {
-//                        this.lock.lock();
-//                        // signal that new references to monitor are available
-//                        noReferenceToMonitorAvailable.signal();
-//                    }
-//                    finally
-//                    {
-//                        this.lock.unlock();
-//                    }
+                    this.cleanUpThread.notify();
                 }
-                obj = this.initializeObject(obj, true);
+//                try
+//                {
+//                    this.lock.lock();
+//                    // signal that new references to monitor are available
+//                    noReferenceToMonitorAvailable.signal();
+//                }
+//                finally
+//                {
+//                    this.lock.unlock();
+//                }
             }
+            obj = this.initializeObject(obj, plan, true);
         }
         return obj;
     }
 
     /**
-     * This method checks an object for inconsistencies like missing or multiple {@link ComponentId}-fields and
-     * propagates injection of needed instances to {@link #injectFields(Object, Field, List, boolean)}.
+     * This method propagates injection of needed instances to {@link #injectFields(Object, InjectionPlan)}. The object
+     * was checked for inconsistencies like missing or multiple {@link ComponentId}-fields while creating its plan.
      *
      * @param obj
      *         The @Component annotated object to inject elements into @Inject annotated fields
+     * @param plan
+     *         The plan of initializing the object
      * @param isOriginCall
      *         Defines if the call is a origin invocation or an invocation of a ancestor object; true means an origin
      *         invocation takes place, false if an ancestor is injected
      */
-    private Object initializeObject(Object obj, boolean isOriginCall)
+    private Object initializeObject(Object obj, InjectionPlan plan, boolean isOriginCall)
     {
-        // every Object to initialize has to be annotated with "@Component"
-        Class<?> clazz = obj.getClass();
-        if (!clazz.isAnnotationPresent(Component.class))
+        ComponentMetadata metadata = plan.getMetadata();
+        if (metadata == null)
         {
             return null;
         }
 
-        // every "@Component" annotated class needs one(!) "@ComponentId" of type Long
-        int foundId = 0;
-        Field componentId = null;
-        boolean required = false;
-        List<Field> injectFields = new ArrayList<>();
-
-        // catch the case when a plug-in requires a further plug-in to be loaded but the plug-in was not loaded
-        // therefore getDeclaredFields throws a NoClassDefFoundError
-        Field[] fields;
-        try
+        // so we do have a component-class
+        // check if we have a Singleton or Prototype class
+        if (metadata.isSingleton())
         {
-            fields = clazz.getDeclaredFields();
+            // a singleton is injected only once. The thread which claims the construction of the class injects its
+            // instance without holding any lock and publishes it afterwards, so further threads wait for the singleton
+            // instead of seeing it before its fields are assigned
+            Class<?> clazz = obj.getClass();
+            SingletonHolder holder = this.singletons.get(clazz);
+            AtomicReference<Construction> construction = this.constructions.get(clazz);
+            Object registered = this.awaitSingleton(clazz);
+            while (registered == null)
+            {
+                Construction own = new Construction(Thread.currentThread(), obj);
+                if (construction.compareAndSet(null, own))
+                {
+                    try
+                    {
+                        // the previous construction might have completed in the meantime
+                        registered = holder.get();
+                        if (registered == null)
+                        {
+                            LOGGER.log(Level.INFO, "adding {0} to singleton-list", new Object[] {clazz.getName()});
+                            this.injectFields(obj, plan);
+                            registered = holder.publish(obj);
+                        }
+                    }
+                    finally
+                    {
+                        construction.compareAndSet(own, null);
+                        own.complete();
+                    }
+                    return registered;
+                }
+                registered = this.awaitSingleton(clazz);
+            }
+            if (isOriginCall)
+            {
+                // throw new InjectionException("Cannot initialize further instances of a singleton class: "+obj);
+                LOGGER.log(Level.INFO, "retrieving singleton {0} from list: {1}",
+                           new Object[] {clazz.getName(), registered});
+            }
+            obj = registered;
         }
-        catch (NoClassDefFoundError e)
+        else
         {
-            LOGGER.log(Level.SEVERE, "Could not find missing dependency plugin for {0}",
-                       new Object[] {e.getLocalizedMessage().substring(1).replace("/", ".")});
-            throw new InjectionException(
-                    "Missing dependency plugin could not be found! Plugin contains unresolved dependency to: " +
-                    e.getLocalizedMessage().substring(1).replace("/", "."));
+            this.injectFields(obj, plan);
         }
-        // all declared fields loaded
-        for (Field f : fields)
+
+        return obj;
+    }
+
+    /**
+     * Returns the registered instance of a singleton class. If another thread currently injects an instance of the
+     * class, the invoking thread waits for the injection to complete, unless the constructing thread is waiting for the
+     * invoking thread itself, either directly or via further threads. As waiting would never end in that case, the
+     * instance under construction is returned instead, just like a singleton depending on itself via a cycle within a
+     * single thread gets its own instance under construction.
+     *
+     * @param clazz
+     *         The singleton class
+     *
+     * @return The registered instance, the instance under construction by a thread the invoking thread is part of a
+     * dependency cycle with or null if no instance is registered or under construction
+     *
+     * @throws InjectionException
+     *         If the thread got interrupted while waiting for the singleton
+     */
+    private Object awaitSingleton(Class<?> clazz) throws InjectionException
+    {
+        SingletonHolder holder = this.singletons.get(clazz);
+        AtomicReference<Construction> construction = this.constructions.get(clazz);
+        Thread current = Thread.currentThread();
+        while (true)
         {
-            if (f.isAnnotationPresent(ComponentId.class))
+            Object registered = holder.get();
+            if (registered != null)
+            {
+                return registered;
+            }
+            Construction pending = construction.get();
+            if (pending == null)
             {
-                if (!f.getType().equals(Long.class))
+                return null;
+            }
+            // the waiting state is published before the chain is inspected, so of two threads waiting for each other
+            // at least one notices the cycle
+            boolean cycle;
+            this.waitingThreads.put(current, pending);
+            try
+            {
+                cycle = this.isConstructedBy(pending, current);
+                if (!cycle)
                 {
-                    LOGGER.log(Level.WARNING, "Invalid ComponentId type found");
-                    throw new InjectionException(
-                            "Invalid ComponentId-Type found. ComponentId needs to be of type Long");
+                    pending.await();
                 }
-                foundId++;
-                componentId = f;
             }
-            if (f.isAnnotationPresent(Inject.class))
+            catch (InterruptedException iEx)
             {
-                Inject inject = f.getAnnotation(Inject.class);
-                required = inject.required();
-                injectFields.add(f);
+                Thread.currentThread().interrupt();
+                throw new InjectionException(iEx);
+            }
+            finally
+            {
+                this.waitingThreads.remove(current);
+            }
+            if (cycle)
+            {
+                return pending.instance;
             }
         }
-        if (foundId == 0)
-        {
-            LOGGER.log(Level.WARNING, "No field annotated with @ComponentId found");
-            throw new InjectionException("No field annotated with @ComponentId found.");
-        }
-        else if (foundId > 1)
+    }
+
+    /**
+     * Checks if the given thread is part of the chain of threads the completion of a construction depends on, which is
+     * the constructing thread itself, the thread constructing the singleton it waits for and so on.
+     *
+     * @param construction
+     *         The construction of a singleton
+     * @param thread
+     *         The thread to look for
+     *
+     * @return true if waiting for the construction would cause the given thread to wait for itself
+     */
+    private boolean isConstructedBy(Construction construction, Thread thread)
+    {
+        Set<Thread> visited = new HashSet<>();
+        Construction current = construction;
+        while (current != null && visited.add(current.constructor))
         {
-            LOGGER.log(Level.WARNING, "More than one @ComponentId-fields found");
-            throw new InjectionException("More than one @ComponentId-fields found.");
+            if (current.constructor == thread)
+            {
+                return true;
+            }
+            current = this.waitingThreads.get(current.constructor);
         }
+        return false;
+    }
 
-        // so we do have a component-class
-        // check if we have a Singleton or Prototype class
-        Component comp = clazz.getAnnotation(Component.class);
-        if (comp.scope().equals(ScopeType.SINGLETON))
+    /**
+     * Returns the metadata of a component. The metadata of plug-in classes is kept by the {@link
+     * InjectionLoaderStrategyDecorator} of the plug-in, for any other class it is extracted via reflection.
+     *
+     * @param clazz
+     *         The class to return the metadata for
+     *
+     * @return The metadata of the component or null if the class is not annotated with {@link Component}
+     */
+    private ComponentMetadata getComponentMetadata(Class<?> clazz)
+    {
+        ClassLoader loader = clazz.getClassLoader();
+        if (loader instanceof StrategyClassLoader)
         {
-            // a singleton is created only once
-            synchronized (singletonRef)
+            for (IClassLoaderStrategy strategy : ((StrategyClassLoader) loader).getStrategies())
             {
-                if (this.singletonRef.containsKey(obj.getClass().getName()))
-                {
-                    if (isOriginCall)
-                    {
-                        // throw new InjectionException("Cannot initialize further instances of a singleton class: "+obj);
-                        WeakReference<?> ref = this.singletonRef.get(obj.getClass().getName());
-                        Object o = ref.get();
-                        LOGGER.log(Level.INFO, "retrieving singleton {0} from list: {1}", new Object[] {obj.getClass().getName(), o});
-                        if (o != null)
-                        {
-                            obj = o;
-                        }
-                        else
-                        {
-                            LOGGER.log(Level.INFO, "removing {0} from singleton-list - its reference is null", new Object[] {obj.getClass().getName()});
-                            this.singletonRef.remove(obj.getClass().getName());
-                            obj = null;
-                        }
-                    }
-                }
-                else
+                if (strategy instanceof InjectionLoaderStrategyDecorator)
                 {
-                    WeakReference<Object> ref = new WeakReference<>(obj);
-                    LOGGER.log(Level.INFO, "adding {0} to singleton-list as {1}", new Object[] {obj, ref});
-
-                    this.singletonRef.put(obj.getClass().getName(), ref);
-                    this.injectFields(obj, componentId, injectFields, required);
+                    return ((InjectionLoaderStrategyDecorator) strategy).getComponentMetadata(clazz);
                 }
             }
         }
-        else
+        return ComponentMetadata.fromClass(clazz);
+    }
+
+    /**
+     * Returns the plan of initializing instances of the given class. The plan is created on the first invocation for a
+     * class and kept afterwards as long as the class is loaded.
+     *
+     * @param clazz
+     *         The class to return the plan for
+     *
+     * @return The plan of initializing instances of the class
+     *
+     * @throws InjectionException
+     *         If the class is an invalid component or references a plug-in which is not available
+     */
+    private InjectionPlan getInjectionPlan(Class<?> clazz) throws InjectionException
+    {
+        // catch the case when a plug-in requires a further plug-in to be loaded but the plug-in was not loaded
+        // therefore resolving the fields throws a NoClassDefFoundError
+        try
         {
-            this.injectFields(obj, componentId, injectFields, required);
+            return this.plans.get(clazz);
+        }
+        catch (NoClassDefFoundError e)
+        {
+            LOGGER.log(Level.SEVERE, "Could not find missing dependency plugin for {0}",
+                       new Object[] {e.getLocalizedMessage().substring(1).replace("/", ".")});
+            throw new InjectionException(
+                    "Missing dependency plugin could not be found! Plugin contains unresolved dependency to: " +
+                    e.getLocalizedMessage().substring(1).replace("/", "."));
         }
-
-        return obj;
     }
 
     /**
-     * Returns all fields of super classes which have been annotated with {@link Inject}.
+     * Injects instances into {@link Field}s which have been annotated with {@link Inject}. This method sets the {@link
+     * ComponentId} for a {@link Component}-annotated class too.
+     * <p/>
+     * Components with an injector, which is either generated at compile time of the plug-in or woven into the component
+     * as method, assign their own fields directly, the instances to inject are resolved via {@link
+     * #resolveInjection(Object, String)}. Fields declared by super classes and the fields of components without injector
+     * are assigned via the {@link InjectionPlan} of the component.
      *
      * @param obj
-     *         Instance, fields of super classes should be returned for
-     * @param required
-     *         Defines if exceptions should be thrown in case of errors. true specifies that exceptions should be
-     *         thrown, false prevents exceptions from being propagated
+     *         Object whose field(s) need to be injected.
+     * @param plan
+     *         The plan of initializing the object, which contains the {@link ComponentId}-annotated field of this
+     *         object and the fields to inject instances to.
      *
-     * @return {@link List} of {@link Field}s which have been annotated with {@link Inject} in super classes.
+     * @throws InjectionException
+     *         If an instance to inject could not be resolved or assigned, f.e. as the setter of a field failed
      */
-    private List<Field> getSuperClassFields(Object obj, boolean required)
+    private void injectFields(Object obj, InjectionPlan plan)
     {
-        List<Field> superClassFields = new ArrayList<>();
-        Class<?> clazz = obj.getClass();
-        for (Class<?> supClass = clazz.getSuperclass(); supClass != null; supClass = supClass.getSuperclass())
+        try
         {
-            if (supClass.isAnnotationPresent(Component.class))
+            if (plan.hasInjector())
             {
-                LOGGER.log(Level.INFO, "Found Super-Class of {0} with Component-annotation: {1}",
-                           new Object[] {clazz.getName(), supClass.getCanonicalName()});
-                int found = 0;
-                for (Field f : supClass.getDeclaredFields())
-                {
-                    if (f.isAnnotationPresent(ComponentId.class))
-                    {
-                        if (!f.getType().equals(Long.class) && required)
-                        {
-                            LOGGER.log(Level.WARNING,
-                                       "Invalid ComponentId-Type found. ComponentId needs to be of type Long");
-                            throw new InjectionException(
-                                    "Invalid ComponentId-Type found. ComponentId needs to be of type Long");
-                        }
-                        found++;
-                    }
-                    if (f.isAnnotationPresent(Inject.class))
-                    {
-                        superClassFields.add(f);
-                    }
-                }
-                if (found == 0 && required)
+                plan.inject(obj, this);
+            }
+            for (InjectionPoint injectionPoint : plan.getInjectionPoints())
+            {
+                if (plan.hasInjector() && !injectionPoint.isInherited())
                 {
-                    LOGGER.log(Level.WARNING, "No field annotated with @ComponentId found.");
-                    throw new InjectionException("No field annotated with @ComponentId found.");
+                    continue;
                 }
-                else if (found > 1 && required)
+                Object injObj = this.resolve(obj, injectionPoint);
+                if (injObj == null)
                 {
-                    LOGGER.log(Level.WARNING, "More than one @ComponentId-fields found.");
-                    throw new InjectionException("More than one @ComponentId-fields found.");
+                    continue;
                 }
+                // a failing setter or a value of an incompatible type aborts the initialization of the component
+                injectionPoint.inject(obj, injObj);
+            }
+            // Set the unique id
+            if (!plan.injectsComponentId() && plan.getComponentId(obj) == null)
+            {
+                Long id = this.createComponentId();
+                plan.setComponentId(obj, id);
+                LOGGER.log(Level.INFO, "{0} has now id {1}", new Object[] {obj.toString(), id});
             }
         }
-        return superClassFields;
+        catch (InjectionException iEx)
+        {
+            throw iEx;
+        }
+        catch (Throwable t)
+        {
+            throw new InjectionException(t);
+        }
+    }
+
+    @Override
+    public Object resolveInjection(Object component, String fieldName) throws InjectionException
+    {
+        InjectionPoint injectionPoint = this.getInjectionPlan(component.getClass()).getInjectionPoint(fieldName);
+        if (injectionPoint == null)
+        {
+            throw new InjectionException("Field " + fieldName + " of " + component.getClass().getName() +
+                                         " is not annotated with @Inject");
+        }
+        return this.resolve(component, injectionPoint);
+    }
+
+    @Override
+    public Long createComponentId()
+    {
+        return this.uniqueId.incrementAndGet();
     }
 
     /**
-     * Injects instances into {@link Field}s which have been annotated with {@link Inject}. This method sets the {@link
-     * ComponentId} for a {@link Component}-annotated class too.
+     * Resolves the instance to inject into a field which has been annotated with {@link Inject}. The returned instance
+     * got initialized already.
      * <p/>
      * If the field to inject is an interface an implementing class is being looked for via the {@link
      * ClassFinder#findImplementingClasses}-method. If none or more than one could be found an InjectionException will
      * be thrown if the injection is required
      *
      * @param obj
-     *         Object whose field(s) need to be injected.
-     * @param componentId
-     *         {@link ComponentId}-annotated field of this object.
-     * @param injectFields
-     *         {@link List} of {@link Field}s to inject instances to.
+     *         Object whose field needs to be injected.
+     * @param injectionPoint
+     *         The field to resolve the instance for
      *
+     * @return The instance to inject or null if the injection is not required and no instance could be resolved
+     *
+     * @throws InjectionException
+     *         If the injection is required but no instance could be resolved
      * @see ClassFinder#findImplementingClasses(Class, ClassLoader)
      */
-    private void injectFields(Object obj, Field componentId, List<Field> injectFields, boolean required)
+    private Object resolve(Object obj, InjectionPoint injectionPoint) throws InjectionException
     {
         try
         {
-            // and add its annotated fields to this object
-            // as those fields need to be injected too
-            List<Field> superClassFields = this.getSuperClassFields(obj, required);
-            superClassFields.forEach((Field f) ->
+            Field f = injectionPoint.getField();
+            // either a specified sub-type or the fields type
+            Class<?> toInject = injectionPoint.getType();
+            LOGGER.log(Level.INFO, "Injecting: {0} into {1}",
+                       new Object[] {toInject.getCanonicalName(), f.getName()});
+
+            // Set the specified type (or the fields type) as to be loaded
+            Class<?> toLoad = toInject;
+            // I don't handle abstract classes here
+            if (toInject.isInterface())
             {
-                if (!injectFields.contains(f))
-                {
-                    injectFields.add(f);
-                }
-            });
+                // As interfaces can't be instantiated we have to find some
+                // implementations of this interface
+                List<Class<?>> implementingClasses = ClassFinder.getInstance().
+                        findImplementingClasses(toInject, obj.getClass().getClassLoader());
 
-            for (Field f : injectFields)
-            {
-                Inject inject = f.getAnnotation(Inject.class);
 
-                // Test if a specified sub-type should be injected
-                // if none was specified use the fields type
-                Class<?> toInject;
-                if (!inject.specificType().equals(Inject.DEFAULT.class))
+                // If no implementations could be found, raise an error
+                // If there are more than one implementations to use, there
+                // is no certainty of which one to use, so raise an error too
+                if (implementingClasses == null || (implementingClasses.isEmpty() && injectionPoint.isRequired()))
                 {
-                    toInject = inject.specificType();
+                    throw new InjectionException(
+                            "No implementation for " + toInject.getCanonicalName() + " could be found!");
                 }
-                else
+                else if (implementingClasses.size() > 1 && injectionPoint.isRequired())
                 {
-                    toInject = f.getType();
+                    throw new InjectionException(
+                            "More than one implementation for " + toInject.getCanonicalName() + " was found. " +
+                            "Please specify which implementation you like to use " +
+                            "bye adding the specificType-attribute to the " + "annotation.");
                 }
-                LOGGER.log(Level.INFO, "Injecting: {0} into {1}",
-                           new Object[] {toInject.getCanonicalName(), f.getName()});
 
-                // Set the specified type (or the fields type) as to be loaded
-                Class<?> toLoad = toInject;
-                // I don't handle abstract classes here
-                if (toInject.isInterface())
+                // as there is only one implementation expected, set its
+                // class to be loaded instead of the interface-class
+                if (!implementingClasses.isEmpty() || injectionPoint.isRequired())
                 {
-                    // As interfaces can't be instantiated we have to find some
-                    // implementations of this interface
-                    List<Class<?>> implementingClasses = ClassFinder.getInstance().
-                            findImplementingClasses(toInject, obj.getClass().getClassLoader());
-
-
-                    // If no implementations could be found, raise an error
-                    // If there are more than one implementations to use, there
-                    // is no certainty of which one to use, so raise an error too
-                    if (implementingClasses == null || (implementingClasses.isEmpty() && inject.required()))
-                    {
-                        throw new InjectionException(
-                                "No implementation for " + toInject.getCanonicalName() + " could be found!");
-                    }
-                    else if (implementingClasses.size() > 1 && inject.required())
-                    {
-                        throw new InjectionException(
-                                "More than one implementation for " + toInject.getCanonicalName() + " was found. " +
-                                "Please specify which implementation you like to use " +
-                                "bye adding the specificType-attribute to the " + "annotation.");
-                    }
-
-                    // as there is only one implementation expected, set its
-                    // class to be loaded instead of the interface-class
-                    if (!implementingClasses.isEmpty() || inject.required())
-                    {
-                        toLoad = implementingClasses.get(0);
-                    }
+                    toLoad = implementingClasses.get(0);
                 }
+            }
 
-                Object injObj = null;
-                // Test if this class is a SINGLETON-component, if so, try to
-                // load the object from the cache
-                Component comp = toLoad.getAnnotation(Component.class);
-                // an injection-field for an interface was found which was
-                // declared as not required, so no exception may be thrown
-                if (comp == null)
-                {
-                    return;
-                }
+            Object injObj = null;
+            // Test if this class is a SINGLETON-component, if so, try to
+            // load the object from the cache
+            InjectionPlan injectionPlan = this.getInjectionPlan(toLoad);
+            ComponentMetadata comp = injectionPlan.getMetadata();
+            // an injection-field for an interface was found which was
+            // declared as not required, so no exception may be thrown
+            if (comp == null)
+            {
+                return null;
+            }
 
-                if (comp.scope().equals(ScopeType.SINGLETON))
+            if (comp.isSingleton())
+            {
+                // waits for a singleton another thread is currently injecting, unless it is part of a dependency
+                // cycle with this thread
+                injObj = this.awaitSingleton(toLoad);
+                if (injObj == null)
                 {
-                    injObj = this.getSingletonInstance(toLoad);
-                    if (injObj == null)
+                    try
                     {
-                        try
-                        {
-                            Method getInstance = toLoad.getMethod("getInstance", (Class[]) null);
-                            // create a new instance of the singleton class
-                            getInstance.invoke(null, (Object[])null);
-                            // as the object was initialized and stored in the singleton list
-                            // before, we now should have access to it
-                            synchronized (singletonRef)
-                            {
-                                WeakReference<?> ref = this.singletonRef.get(toLoad.getName());
-                                Object _o = ref.get();
-                                LOGGER.log(Level.INFO, "retrieving singleton {0} for injection {1}",
-                                           new Object[] {obj.getClass().getName(), _o});
-                                if (_o != null)
-                                {
-                                    injObj = _o;
-                                }
-                                else
-                                {
-                                    LOGGER.log(Level.INFO,
-                                               "removing {0} from singleton-list - can't be injected due to null",
-                                               new Object[] {toLoad.getName()});
-                                    this.singletonRef.remove(toLoad.getName());
-                                    injObj = null;
-                                }
-                            }
-                        }
-                        catch (SecurityException | NoSuchMethodException | InvocationTargetException e)
+                        Method getInstance = toLoad.getMethod("getInstance", (Class[]) null);
+                        // create a new instance of the singleton class
+                        getInstance.invoke(null, (Object[])null);
+                        // as the object was initialized and stored in the singleton list
+                        // before, we now should have access to it
+                        injObj = this.awaitSingleton(toLoad);
+                        if (injObj == null)
                         {
-                            e.printStackTrace();
+                            LOGGER.log(Level.INFO, "singleton {0} can't be injected due to null",
+                                       new Object[] {toLoad.getName()});
                         }
                     }
-                }
-
-                // either this class is scope PROTOTYPE or the SINGLETON was not loaded before
-                if (injObj == null)
-                {
-                    // we use the class loader of the original object if this is a class from a plug-in, the actual
-                    // class loader is the plug-in class loader
-                    injObj = this.loadClass(toLoad, inject.required());
-                }
-
-                // start injecting sub-injections recursively
-                this.initializeObject(injObj, false);
-
-                String methodName = "set" + f.getName().substring(0, 1).toUpperCase() + f.getName().substring(1);
-
-                try
-                {
-                    Method m = obj.getClass().getMethod(methodName, f.getType());
-                    m.setAccessible(true);
-                    m.invoke(obj, injObj);
-                }
-                catch (NoSuchMethodException nsmEx)
-                {
-                    f.setAccessible(true);
-                    f.set(obj, injObj);
-                }
-                catch (InvocationTargetException e)
-                {
-                    e.printStackTrace();
+                    catch (SecurityException | NoSuchMethodException | InvocationTargetException e)
+                    {
+                        e.printStackTrace();
+                    }
                 }
             }
-            // Set the unique id
-            componentId.setAccessible(true);
-            if (componentId.get(obj) == null)
+
+            // either this class is scope PROTOTYPE or the SINGLETON was not loaded before
+            if (injObj == null)
             {
-                Long id = ++uniqueId;
-                String compId = "set" + componentId.getName().substring(0, 1).toUpperCase() +
-                                componentId.getName().substring(1);
-                try
-                {
-                    Method m = obj.getClass().getMethod(compId, Long.class);
-                    m.setAccessible(true);
-                    m.invoke(obj, id);
-                }
-                catch (NoSuchMethodException e)
-                {
-                    componentId.set(obj, id);
-                }
-                catch (Exception e)
+                // we use the class loader of the original object if this is a class from a plug-in, the actual
+                // class loader is the plug-in class loader
+                injObj = this.loadClass(toLoad, injectionPoint.isRequired());
+                if (injObj == null)
                 {
-                    throw new InjectionException(e);
+                    return null;
                 }
-                LOGGER.log(Level.INFO, "{0} has now id {1}", new Object[] {obj.toString(), id});
             }
+
+            // start injecting sub-injections recursively. A singleton instantiated concurrently by another thread is
+            // replaced by the instance registered first
+            return this.initializeObject(injObj, this.getInjectionPlan(injObj.getClass()), false);
         }
         catch (IllegalArgumentException | IllegalAccessException ex)
         {
@@ -642,53 +718,20 @@ public enum InjectionControllerImpl implements IInjectionController
     @SuppressWarnings("unchecked")
     private <T> T loadClass(Class<T> classToLoad, boolean required)
     {
-        try
+        T registered = classToLoad.cast(this.singletons.get(classToLoad).get());
+        if (registered != null)
         {
-            synchronized (singletonRef)
-            {
-                if (this.singletonRef.containsKey(classToLoad.getName()))
-                {
-                    WeakReference<?> ref = this.singletonRef.get(classToLoad.getName());
-                    T t = (T) ref.get();
-                    LOGGER.log(Level.INFO, "loading class for singleton {0}: {1}",
-                               new Object[] {classToLoad.getName(), t});
-                    return t;
-                }
-                else
-                {
-                    Constructor<T>[] cons = (Constructor<T>[]) classToLoad.getDeclaredConstructors();
-                    // Change the accessible property for all constructors
-                    AccessibleObject.setAccessible(cons, true);
-                    // iterate through all defined constructors
-                    Constructor<T> defaultConstructor = null;
-                    for (Constructor<T> con : cons)
-                    {
-                        if (con.getParameterTypes().length == 0)
-                        {
-                            defaultConstructor = con;
-                            break;
-                        }
-                    }
-
-                    if (defaultConstructor == null) {
-                        throw new InstantiationException("Could not find appropriate constructor for class "
-                                                         + classToLoad);
-                    }
-                    T injObj = defaultConstructor.newInstance((Object[])null);
-                    if (!classToLoad.isInstance(injObj))
-                    {
-                        LOGGER.log(Level.WARNING, "Could not instantiate {0}", new Object[] {classToLoad.getName()});
-                        throw new InjectionException("Could not instantiate " +
-                                                     classToLoad.getName() + "!");
-                    }
+            LOGGER.log(Level.INFO, "loading class for singleton {0}: {1}",
+                       new Object[] {classToLoad.getName(), registered});
+            return registered;
+        }
 
-                    LOGGER.log(Level.INFO, "Initialized object: {0} loader: {1}",
-                               new Object[] {injObj, injObj.getClass().getClassLoader()});
-                    return injObj;
-                }
-            }
+        T injObj;
+        try
+        {
+            injObj = (T) this.getInjectionPlan(classToLoad).newInstance();
         }
-        catch (IllegalAccessException | InstantiationException | IllegalArgumentException | InvocationTargetException e)
+        catch (Throwable e)
         {
             // if field is required and there are any problems injecting the field throw an exception
             LOGGER.log(Level.WARNING, "Couldn't instantiate class {0} - Reason: {1}",
@@ -697,29 +740,95 @@ public enum InjectionControllerImpl implements IInjectionController
             {
                 throw new InjectionException(e);
             }
+            return null;
         }
-        return null;
+        if (!classToLoad.isInstance(injObj))
+        {
+            LOGGER.log(Level.WARNING, "Could not instantiate {0}", new Object[] {classToLoad.getName()});
+            throw new InjectionException("Could not instantiate " +
+                                         classToLoad.getName() + "!");
+        }
+
+        LOGGER.log(Level.INFO, "Initialized object: {0} loader: {1}",
+                   new Object[] {injObj, injObj.getClass().getClassLoader()});
+        return injObj;
     }
 
     @Override
     public <T> T getSingletonInstance(Class<T> clazz) throws InjectionException
     {
-        synchronized (singletonRef)
+        Object obj = this.singletons.get(clazz).get();
+        LOGGER.log(Level.FINE, "retrieving singleton instance of class {0}: {1}", new Object[] {clazz.getName(), obj});
+        @SuppressWarnings("unchecked") T ret = (T) obj;
+        return ret;
+        //throw new InjectionException("Could not inject singleton: "+clazz.getName()+" as singleton is null");
+    }
+
+    /**
+     * The construction of a singleton by a certain thread, which other threads may wait for to complete.
+     */
+    private static final class Construction
+    {
+        /** The thread injecting the singleton **/
+        private final Thread constructor;
+        /** The instance of the singleton which gets injected **/
+        private final Object instance;
+        /** Released once the construction completed, either successfully or not **/
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Construction(Thread constructor, Object instance)
+        {
+            this.constructor = constructor;
+            this.instance = instance;
+        }
+
+        private void await() throws InterruptedException
+        {
+            this.done.await();
+        }
+
+        private void complete()
+        {
+            this.done.countDown();
+        }
+    }
+
+    /**
+     * A weak reference to an initialized object which is compared by the identity of the referenced object. As long as
+     * the object is reachable, a further reference to the same object is equal to this reference. Once the object got
+     * collected, the reference is only equal to itself, which allows the cleanup thread to remove it from the map of
+     * initialized objects.
+     */
+    private static final class IdentityReference extends WeakReference<Object>
+    {
+        /** The identity hash code of the referenced object **/
+        private final int hash;
+
+        private IdentityReference(Object referent, ReferenceQueue<Object> queue)
+        {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode()
         {
-            WeakReference<?> ref = this.singletonRef.get(clazz.getName());
-            if (ref != null)
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (this == other)
             {
-                Object obj = ref.get();
-                LOGGER.log(Level.INFO, "retrieving singleton instance of class {0}: {1}",
-                           new Object[] {clazz.getName(), obj});
-                if (obj != null)
-                {
-                    @SuppressWarnings("unchecked") T ret = (T) obj;
-                    return ret;
-                }
+                return true;
             }
-            return null;
-            //throw new InjectionException("Could not inject singleton: "+clazz.getName()+" as singleton is null");
+            if (!(other instanceof IdentityReference))
+            {
+                return false;
+            }
+            Object referent = this.get();
+            return referent != null && referent == ((IdentityReference) other).get();
         }
     }
 }
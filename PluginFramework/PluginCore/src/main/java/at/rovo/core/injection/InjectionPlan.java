@@ -0,0 +1,602 @@
+package at.rovo.core.injection;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.plugin.IComponentInjector;
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.classloader.InstrumentationEngine;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The immutable plan of how to create and initialize a {@link Component}: the default constructor, the resolved
+ * {@link ComponentId} field, the fields to inject including those of {@link Component} annotated super classes and the
+ * types to inject.
+ * <p/>
+ * A plan is created once per class by {@link InjectionControllerImpl} and kept in a {@link ClassValue}, so it is
+ * released together with the class and therefore with the class loader of the plug-in. Constructors, setters and
+ * fields are resolved into {@link MethodHandle}s when the plan is created, so initializing a component does neither
+ * require any reflective lookups nor reflective invocations afterwards. If a field declares a public setter, the
+ * setter is used instead of writing the field directly.
+ * <p/>
+ * If the plug-in got compiled with the component injector processor, the generated {@link IComponentInjector} of the
+ * component is used to create instances and to assign the fields declared by the component. Otherwise the injector
+ * method woven into the component while instrumenting it is used if available.
+ *
+ * @author Roman Vottner
+ */
+final class InjectionPlan
+{
+    /** The logger of this class **/
+    private final static Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+    /** The lookup used to convert accessible members into method handles **/
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    /** The type of the handles which create an instance **/
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+    /** The type of the handles which read a field **/
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    /** The type of the handles which write a field either directly or via its setter **/
+    private static final MethodType WRITER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    /** The type of the handles which invoke the injector method of a component **/
+    private static final MethodType INJECTOR_TYPE =
+            MethodType.methodType(void.class, Object.class, IInjectionController.class);
+
+    /** The metadata of the component or null if the class is no component **/
+    private final ComponentMetadata metadata;
+    /** Creates a new instance via the default constructor or null if there is no usable default constructor **/
+    private final MethodHandle constructor;
+    /** Reads the field annotated with {@link ComponentId} **/
+    private final MethodHandle componentIdReader;
+    /** Writes the field annotated with {@link ComponentId} **/
+    private final MethodHandle componentIdWriter;
+    /** The fields to inject in declaration order followed by the fields of super classes **/
+    private final List<InjectionPoint> injectionPoints;
+    /** Invokes the injector method woven into the component or null if the component has none **/
+    private final MethodHandle injector;
+    /** The injector generated at compile time of the component or null if the component has none **/
+    private final IComponentInjector<Object> generatedInjector;
+
+    private InjectionPlan(ComponentMetadata metadata, MethodHandle constructor, MethodHandle componentIdReader,
+                          MethodHandle componentIdWriter, List<InjectionPoint> injectionPoints, MethodHandle injector,
+                          IComponentInjector<Object> generatedInjector)
+    {
+        this.metadata = metadata;
+        this.constructor = constructor;
+        this.componentIdReader = componentIdReader;
+        this.componentIdWriter = componentIdWriter;
+        this.injectionPoints = Collections.unmodifiableList(injectionPoints);
+        this.injector = injector;
+        this.generatedInjector = generatedInjector;
+    }
+
+    /**
+     * Creates the plan of initializing instances of the given class.
+     *
+     * @param clazz
+     *         The class to create the plan for
+     * @param metadata
+     *         The metadata of the class or null if the class is no component
+     *
+     * @return The plan of initializing instances of the class
+     *
+     * @throws InjectionException
+     *         If the component does not declare exactly one {@link ComponentId} field of type {@link Long} or a member
+     *         can't be accessed
+     * @throws NoClassDefFoundError
+     *         If the type of a field can't be resolved as a required plug-in is not available
+     */
+    static InjectionPlan create(Class<?> clazz, ComponentMetadata metadata) throws InjectionException
+    {
+        if (metadata == null)
+        {
+            return new InjectionPlan(null, null, null, null, new ArrayList<>(), null, null);
+        }
+
+        // every "@Component" annotated class needs one(!) "@ComponentId" of type Long
+        if (metadata.getComponentIdFields().isEmpty())
+        {
+            LOGGER.log(Level.WARNING, "No field annotated with @ComponentId found");
+            throw new InjectionException("No field annotated with @ComponentId found.");
+        }
+        else if (metadata.getComponentIdFields().size() > 1)
+        {
+            LOGGER.log(Level.WARNING, "More than one @ComponentId-fields found");
+            throw new InjectionException("More than one @ComponentId-fields found.");
+        }
+
+        Field componentId;
+        boolean required = false;
+        List<Field> injectFields = new ArrayList<>();
+        try
+        {
+            componentId = clazz.getDeclaredField(metadata.getComponentIdFields().get(0));
+            if (!componentId.getType().equals(Long.class))
+            {
+                LOGGER.log(Level.WARNING, "Invalid ComponentId type found");
+                throw new InjectionException("Invalid ComponentId-Type found. ComponentId needs to be of type Long");
+            }
+            for (String fieldName : metadata.getInjectFields())
+            {
+                Field f = clazz.getDeclaredField(fieldName);
+                required = f.getAnnotation(Inject.class).required();
+                injectFields.add(f);
+            }
+        }
+        catch (NoSuchFieldException e)
+        {
+            throw new InjectionException(e);
+        }
+
+        // fields of super classes need to be injected too
+        for (Field f : getSuperClassFields(clazz, required))
+        {
+            if (!injectFields.contains(f))
+            {
+                injectFields.add(f);
+            }
+        }
+
+        try
+        {
+            List<InjectionPoint> injectionPoints = new ArrayList<>(injectFields.size());
+            boolean inheritsInjections = false;
+            for (Field f : injectFields)
+            {
+                boolean inherited = !clazz.equals(f.getDeclaringClass());
+                inheritsInjections |= inherited;
+                injectionPoints.add(new InjectionPoint(f, createWriter(clazz, f), inherited));
+            }
+            componentId.setAccessible(true);
+            MethodHandle componentIdReader = LOOKUP.unreflectGetter(componentId).asType(GETTER_TYPE);
+            IComponentInjector<Object> generatedInjector = findGeneratedInjector(clazz);
+            // the id is assigned after all fields got injected, which the injector can't do for inherited fields
+            MethodHandle injector = generatedInjector == null && !inheritsInjections ? findInjector(clazz) : null;
+            return new InjectionPlan(metadata, findConstructor(clazz), componentIdReader,
+                                     createWriter(clazz, componentId), injectionPoints, injector, generatedInjector);
+        }
+        catch (IllegalAccessException | NoSuchMethodException e)
+        {
+            throw new InjectionException(e);
+        }
+    }
+
+    /**
+     * Resolves the default constructor of a class into a method handle.
+     *
+     * @param clazz
+     *         The class to resolve the default constructor for
+     *
+     * @return The handle creating a new instance or null if the class does not declare a usable default constructor
+     */
+    private static MethodHandle findConstructor(Class<?> clazz)
+    {
+        try
+        {
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return LOOKUP.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+        }
+        catch (NoSuchMethodException | IllegalAccessException e)
+        {
+            LOGGER.log(Level.FINE, "No usable default constructor found in {0}: {1}",
+                       new Object[] {clazz.getName(), e.getLocalizedMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Returns all fields of super classes which have been annotated with {@link Inject}.
+     *
+     * @param clazz
+     *         The class whose super classes should be inspected
+     * @param required
+     *         Defines if exceptions should be thrown in case of errors. true specifies that exceptions should be
+     *         thrown, false prevents exceptions from being propagated
+     *
+     * @return {@link List} of {@link Field}s which have been annotated with {@link Inject} in super classes.
+     */
+    private static List<Field> getSuperClassFields(Class<?> clazz, boolean required)
+    {
+        List<Field> superClassFields = new ArrayList<>();
+        for (Class<?> supClass = clazz.getSuperclass(); supClass != null; supClass = supClass.getSuperclass())
+        {
+            if (supClass.isAnnotationPresent(Component.class))
+            {
+                LOGGER.log(Level.INFO, "Found Super-Class of {0} with Component-annotation: {1}",
+                           new Object[] {clazz.getName(), supClass.getCanonicalName()});
+                int found = 0;
+                for (Field f : supClass.getDeclaredFields())
+                {
+                    if (f.isAnnotationPresent(ComponentId.class))
+                    {
+                        if (!f.getType().equals(Long.class) && required)
+                        {
+                            LOGGER.log(Level.WARNING,
+                                       "Invalid ComponentId-Type found. ComponentId needs to be of type Long");
+                            throw new InjectionException(
+                                    "Invalid ComponentId-Type found. ComponentId needs to be of type Long");
+                        }
+                        found++;
+                    }
+                    if (f.isAnnotationPresent(Inject.class))
+                    {
+                        superClassFields.add(f);
+                    }
+                }
+                if (found == 0 && required)
+                {
+                    LOGGER.log(Level.WARNING, "No field annotated with @ComponentId found.");
+                    throw new InjectionException("No field annotated with @ComponentId found.");
+                }
+                else if (found > 1 && required)
+                {
+                    LOGGER.log(Level.WARNING, "More than one @ComponentId-fields found.");
+                    throw new InjectionException("More than one @ComponentId-fields found.");
+                }
+            }
+        }
+        return superClassFields;
+    }
+
+    /**
+     * Resolves the injector method woven into a component, which assigns the fields declared by the component and its
+     * id directly.
+     *
+     * @param clazz
+     *         The component to resolve the injector method for
+     *
+     * @return The handle invoking the injector method or null if the component has no injector method
+     *
+     * @throws IllegalAccessException
+     *         If the injector method is not accessible
+     */
+    private static MethodHandle findInjector(Class<?> clazz) throws IllegalAccessException
+    {
+        try
+        {
+            Method injector = clazz.getDeclaredMethod(InstrumentationEngine.INJECTOR_METHOD,
+                                                     IInjectionController.class);
+            injector.setAccessible(true);
+            return LOOKUP.unreflect(injector).asType(INJECTOR_TYPE);
+        }
+        catch (NoSuchMethodException nsmEx)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the injector which got generated for a component at compile time of its plug-in. The injector is loaded
+     * by the class loader of the component, so it is defined in the same runtime package as the component.
+     *
+     * @param clazz
+     *         The component to create the injector for
+     *
+     * @return The generated injector or null if the plug-in of the component was compiled without generating injectors
+     */
+    @SuppressWarnings("unchecked")
+    private static IComponentInjector<Object> findGeneratedInjector(Class<?> clazz)
+    {
+        if (clazz.getClassLoader() == null)
+        {
+            return null;
+        }
+        try
+        {
+            Class<?> injector = Class.forName(clazz.getName() + IComponentInjector.INJECTOR_SUFFIX, true,
+                                              clazz.getClassLoader());
+            if (!IComponentInjector.class.isAssignableFrom(injector))
+            {
+                return null;
+            }
+            return (IComponentInjector<Object>) injector.getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException cnfEx)
+        {
+            return null;
+        }
+        catch (ReflectiveOperationException | LinkageError ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not create the generated injector of {0}: {1}",
+                       new Object[] {clazz.getName(), ex.getLocalizedMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the handle which writes a field. If the class declares a public setter, which maps the name of the field
+     * starting with an upper letter prefixed with <em>set</em>, the setter is used. This allows parent classes to
+     * receive their values. Otherwise the field is written directly.
+     *
+     * @param clazz
+     *         The class to look up the setter in
+     * @param field
+     *         The field to write
+     *
+     * @return The handle writing the field
+     *
+     * @throws IllegalAccessException
+     *         If neither the setter nor the field are accessible
+     * @throws NoSuchMethodException
+     *         If the field can't be written reflectively
+     */
+    private static MethodHandle createWriter(Class<?> clazz, Field field)
+            throws IllegalAccessException, NoSuchMethodException
+    {
+        String methodName = "set" + field.getName().substring(0, 1).toUpperCase() + field.getName().substring(1);
+        try
+        {
+            Method setter = clazz.getMethod(methodName, field.getType());
+            setter.setAccessible(true);
+            return LOOKUP.unreflect(setter).asType(WRITER_TYPE);
+        }
+        catch (NoSuchMethodException nsmEx)
+        {
+            field.setAccessible(true);
+        }
+        try
+        {
+            return LOOKUP.unreflectSetter(field).asType(WRITER_TYPE);
+        }
+        catch (IllegalAccessException iaEx)
+        {
+            // final fields can only be written via reflection
+            return LOOKUP.findVirtual(Field.class, "set", WRITER_TYPE).bindTo(field);
+        }
+    }
+
+    /**
+     * Returns true if the class of this plan is a {@link Component}.
+     *
+     * @return true if the class is a component, false otherwise
+     */
+    boolean isComponent()
+    {
+        return this.metadata != null;
+    }
+
+    /**
+     * Returns the metadata of the component.
+     *
+     * @return The metadata of the component or null if the class is no component
+     */
+    ComponentMetadata getMetadata()
+    {
+        return this.metadata;
+    }
+
+    /**
+     * Creates a new instance of the class via its default constructor.
+     *
+     * @return The new instance
+     *
+     * @throws InstantiationException
+     *         If the class does not declare a usable default constructor
+     * @throws Throwable
+     *         Anything thrown by the constructor
+     */
+    Object newInstance() throws Throwable
+    {
+        if (this.generatedInjector != null)
+        {
+            Object instance = this.generatedInjector.newInstance();
+            if (instance != null)
+            {
+                return instance;
+            }
+        }
+        if (this.constructor == null)
+        {
+            throw new InstantiationException("Could not find appropriate constructor for class " +
+                                             this.metadata.getClassName());
+        }
+        return (Object) this.constructor.invokeExact();
+    }
+
+    /**
+     * Returns the value of the {@link ComponentId} field of the given component.
+     *
+     * @param component
+     *         The component to return the id of
+     *
+     * @return The id of the component or null if it was not yet assigned
+     *
+     * @throws Throwable
+     *         Never, as the field is read directly
+     */
+    Object getComponentId(Object component) throws Throwable
+    {
+        if (this.generatedInjector != null)
+        {
+            return this.generatedInjector.getComponentId(component);
+        }
+        return (Object) this.componentIdReader.invokeExact(component);
+    }
+
+    /**
+     * Assigns the {@link ComponentId} of the given component.
+     *
+     * @param component
+     *         The component to assign the id to
+     * @param id
+     *         The id to assign
+     *
+     * @throws Throwable
+     *         Anything thrown by the setter of the field
+     */
+    void setComponentId(Object component, Long id) throws Throwable
+    {
+        if (this.generatedInjector != null)
+        {
+            this.generatedInjector.setComponentId(component, id);
+            return;
+        }
+        this.componentIdWriter.invokeExact(component, (Object) id);
+    }
+
+    /**
+     * Returns true if the component has either a generated injector or declares a woven injector method.
+     *
+     * @return true if the fields declared by the component are assigned by its injector
+     */
+    boolean hasInjector()
+    {
+        return this.generatedInjector != null || this.injector != null;
+    }
+
+    /**
+     * Returns true if the injector of the component assigns the id of the component too, which is the case for the
+     * injector method woven into the component.
+     *
+     * @return true if the id of the component is assigned by its injector
+     */
+    boolean injectsComponentId()
+    {
+        return this.generatedInjector == null && this.injector != null;
+    }
+
+    /**
+     * Invokes the injector of the component, which assigns the fields declared by the component. The injector method
+     * woven into a component assigns its id too.
+     *
+     * @param component
+     *         The component to inject
+     * @param controller
+     *         The controller which resolves the instances to inject
+     *
+     * @throws Throwable
+     *         Anything thrown by the injector method
+     */
+    void inject(Object component, IInjectionController controller) throws Throwable
+    {
+        if (this.generatedInjector != null)
+        {
+            this.generatedInjector.inject(component, controller);
+            return;
+        }
+        this.injector.invokeExact(component, controller);
+    }
+
+    /**
+     * Returns the injection point of the given field.
+     *
+     * @param fieldName
+     *         The name of the field
+     *
+     * @return The injection point or null if the field is not annotated with {@link Inject}
+     */
+    InjectionPoint getInjectionPoint(String fieldName)
+    {
+        for (InjectionPoint injectionPoint : this.injectionPoints)
+        {
+            if (!injectionPoint.isInherited() && injectionPoint.getField().getName().equals(fieldName))
+            {
+                return injectionPoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the fields to inject.
+     *
+     * @return The injection points of the component
+     */
+    List<InjectionPoint> getInjectionPoints()
+    {
+        return this.injectionPoints;
+    }
+
+    /**
+     * A single {@link Inject} annotated field together with the way to assign it.
+     */
+    static final class InjectionPoint
+    {
+        /** The field to inject into **/
+        private final Field field;
+        /** Writes the field either directly or via its setter **/
+        private final MethodHandle writer;
+        /** The type to inject, which is either the specified type of the annotation or the type of the field **/
+        private final Class<?> type;
+        /** Whether the injection is required **/
+        private final boolean required;
+        /** Whether the field is declared by a super class of the component **/
+        private final boolean inherited;
+
+        private InjectionPoint(Field field, MethodHandle writer, boolean inherited)
+        {
+            this.inherited = inherited;
+            Inject inject = field.getAnnotation(Inject.class);
+            this.field = field;
+            this.writer = writer;
+            this.type = !inject.specificType().equals(Inject.DEFAULT.class) ? inject.specificType() : field.getType();
+            this.required = inject.required();
+        }
+
+        /**
+         * Returns the field to inject into.
+         *
+         * @return The field to inject into
+         */
+        Field getField()
+        {
+            return this.field;
+        }
+
+        /**
+         * Assigns the value to inject to the field of the given component.
+         *
+         * @param component
+         *         The component to inject the value into
+         * @param value
+         *         The value to inject
+         *
+         * @throws Throwable
+         *         Anything thrown by the setter of the field
+         */
+        void inject(Object component, Object value) throws Throwable
+        {
+            this.writer.invokeExact(component, value);
+        }
+
+        /**
+         * Returns the type to inject into the field.
+         *
+         * @return The specified type of the {@link Inject} annotation or the type of the field
+         */
+        Class<?> getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * Returns whether the field is declared by a super class of the component.
+         *
+         * @return true if the field is inherited, false if the component declares the field
+         */
+        boolean isInherited()
+        {
+            return this.inherited;
+        }
+
+        /**
+         * Returns whether the injection is required.
+         *
+         * @return true if the injection is required, false otherwise
+         */
+        boolean isRequired()
+        {
+            return this.required;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package at.rovo.core.injection;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the instance of an instrumented singleton {@link at.rovo.common.annotations.Component}. The
+ * <code>getInstance()</code> method woven into a singleton reads the instance via {@link #get()} and only on a miss
+ * creates a new instance outside of any lock and publishes it via {@link #publish(Object)}:
+ * <pre>
+ * private static final SingletonHolder REFERENCE = new SingletonHolder();
+ *
+ * public static T getInstance() {
+ *     T instance = (T) REFERENCE.get();
+ *     if (instance != null) {
+ *         return instance;
+ *     }
+ *     return (T) REFERENCE.publish(ic.initialize(new T()));
+ * }
+ * </pre>
+ * Publishing is done via a compare-and-set, so if multiple threads create an instance concurrently, all of them end up
+ * with the instance published first. The {@link InjectionControllerImpl} keeps a further, weakly referencing holder per
+ * singleton class as its registry of singletons.
+ * <p/>
+ * By default the instance is only weakly referenced, which enables unloading the singleton if no strong reference is
+ * pointing to it. As this leads to the singleton being collected and recreated over and over if no plug-in keeps a
+ * reference to it, the system property <em>at.rovo.core.singleton.retention</em> may be set to <em>strong</em> to keep
+ * the instance as long as its class is loaded.
+ *
+ * @author Roman Vottner
+ */
+public final class SingletonHolder
+{
+    /** Defines if singletons are strongly referenced by their holder **/
+    private static final boolean STRONG_RETENTION =
+            "strong".equalsIgnoreCase(System.getProperty("at.rovo.core.singleton.retention", "weak"));
+
+    /** Either the instance itself or a weak reference to it, depending on the retention mode **/
+    private final AtomicReference<Object> reference = new AtomicReference<>();
+    /** Defines if the instance is strongly referenced **/
+    private final boolean strong;
+
+    /**
+     * Creates a new holder using the retention mode defined via the system property
+     * <em>at.rovo.core.singleton.retention</em>.
+     */
+    public SingletonHolder()
+    {
+        this(STRONG_RETENTION);
+    }
+
+    /**
+     * Creates a new holder.
+     *
+     * @param strong
+     *         true if the instance should be strongly referenced, false if it should only be weakly referenced
+     */
+    public SingletonHolder(boolean strong)
+    {
+        this.strong = strong;
+    }
+
+    /**
+     * Returns the held instance.
+     *
+     * @return The instance of the singleton or null if it was not yet published or got garbage collected meanwhile
+     */
+    public Object get()
+    {
+        return unwrap(this.reference.get());
+    }
+
+    /**
+     * Publishes a newly created instance unless another thread published a still reachable instance before.
+     *
+     * @param instance
+     *         The instance to publish
+     *
+     * @return The instance which is held after the invocation, which is either <code>instance</code> or the instance
+     * published by another thread before
+     */
+    public Object publish(Object instance)
+    {
+        Object wrapped = this.strong ? instance : new WeakReference<>(instance);
+        while (true)
+        {
+            Object current = this.reference.get();
+            Object published = unwrap(current);
+            if (published != null)
+            {
+                return published;
+            }
+            if (this.reference.compareAndSet(current, wrapped))
+            {
+                return instance;
+            }
+        }
+    }
+
+    /**
+     * Returns the instance referenced by the given content of the holder.
+     *
+     * @param content
+     *         The content of the holder, which is either null, the instance or a weak reference to it
+     *
+     * @return The referenced instance or null if there is none
+     */
+    private static Object unwrap(Object content)
+    {
+        if (content instanceof WeakReference)
+        {
+            return ((WeakReference<?>) content).get();
+        }
+        return content;
+    }
+}
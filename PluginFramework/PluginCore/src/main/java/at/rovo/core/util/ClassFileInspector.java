@@ -0,0 +1,358 @@
+package at.rovo.core.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A lightweight reader of class files which answers questions about a class without building a complete model of it.
+ * <p/>
+ * {@link #containsUtf8(byte[], String)} only scans the constant pool of a class and is therefore cheap enough to filter
+ * out classes which can't carry a certain annotation before handing them to a bytecode manipulation library. {@link
+ * #getClassAnnotations(byte[])} additionally walks the fields and methods of the class in order to read the
+ * annotations declared on the class itself.
+ *
+ * @author Roman Vottner
+ */
+public final class ClassFileInspector
+{
+    /** The magic number every class file starts with **/
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private ClassFileInspector()
+    {
+
+    }
+
+    /**
+     * Converts the fully qualified name of a type to its descriptor, f.e. <em>at.rovo.Test</em> to
+     * <em>Lat/rovo/Test;</em>
+     *
+     * @param className
+     *         The fully qualified name of the type
+     *
+     * @return The descriptor of the type
+     */
+    public static String toDescriptor(String className)
+    {
+        return "L" + className.replace('.', '/') + ";";
+    }
+
+    /**
+     * Returns true if the constant pool of the class contains the given string. As each annotation type used within a
+     * class is referenced by its descriptor from the constant pool, a class can't be annotated with an annotation whose
+     * descriptor is not contained.
+     *
+     * @param classBytes
+     *         The bytes of the class file
+     * @param value
+     *         The string to look for. Only ASCII strings are supported
+     *
+     * @return true if the constant pool contains the string
+     *
+     * @throws IllegalArgumentException
+     *         If the bytes do not represent a valid class file
+     */
+    public static boolean containsUtf8(byte[] classBytes, String value)
+    {
+        byte[] expected = value.getBytes(StandardCharsets.US_ASCII);
+        Reader reader = new Reader(classBytes);
+        int count = reader.readHeader();
+        for (int i = 1; i < count; i++)
+        {
+            int tag = reader.u1();
+            if (tag == 1)
+            {
+                int length = reader.u2();
+                if (length == expected.length && reader.matches(expected))
+                {
+                    return true;
+                }
+                reader.skip(length);
+            }
+            else
+            {
+                i += reader.skipConstant(tag);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the descriptors of the annotations declared on the class itself, independent of their retention.
+     *
+     * @param classBytes
+     *         The bytes of the class file
+     *
+     * @return The descriptors of the annotations of the class
+     *
+     * @throws IllegalArgumentException
+     *         If the bytes do not represent a valid class file
+     */
+    public static List<String> getClassAnnotations(byte[] classBytes)
+    {
+        Reader reader = new Reader(classBytes);
+        int[] offsets = reader.readConstantPool();
+
+        // access flags, this class, super class
+        reader.skip(6);
+        reader.skip(reader.u2() * 2);
+        // fields and methods
+        for (int member = 0; member < 2; member++)
+        {
+            int members = reader.u2();
+            for (int i = 0; i < members; i++)
+            {
+                reader.skip(6);
+                reader.skipAttributes();
+            }
+        }
+
+        List<String> annotations = new ArrayList<>();
+        int attributes = reader.u2();
+        for (int i = 0; i < attributes; i++)
+        {
+            String name = reader.utf8At(offsets[reader.u2()]);
+            int length = reader.u4();
+            int end = reader.pos + length;
+            if ("RuntimeVisibleAnnotations".equals(name) || "RuntimeInvisibleAnnotations".equals(name))
+            {
+                int num = reader.u2();
+                for (int j = 0; j < num; j++)
+                {
+                    annotations.add(reader.utf8At(offsets[reader.u2()]));
+                    reader.skipElementValuePairs();
+                }
+            }
+            reader.pos = end;
+        }
+        return annotations.isEmpty() ? Collections.emptyList() : annotations;
+    }
+
+    /**
+     * Returns the fully qualified name of the direct super class of a class.
+     *
+     * @param classBytes
+     *         The bytes of the class file
+     *
+     * @return The name of the super class or null if the class file describes <em>java.lang.Object</em> or a module
+     *
+     * @throws IllegalArgumentException
+     *         If the bytes do not represent a valid class file
+     */
+    public static String getSuperClassName(byte[] classBytes)
+    {
+        Reader reader = new Reader(classBytes);
+        int[] offsets = reader.readConstantPool();
+        // access flags, this class
+        reader.skip(4);
+        int superClass = reader.u2();
+        if (superClass == 0)
+        {
+            return null;
+        }
+        // the class constant refers to the UTF8 constant holding the internal name of the class
+        reader.pos = offsets[superClass] + 1;
+        return reader.utf8At(offsets[reader.u2()]).replace('/', '.');
+    }
+
+    /**
+     * A cursor on the bytes of a class file.
+     */
+    private static final class Reader
+    {
+        /** The bytes of the class file **/
+        private final byte[] bytes;
+        /** The current position within the bytes **/
+        private int pos = 0;
+
+        private Reader(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Validates the magic number, skips the version and returns the size of the constant pool.
+         *
+         * @return The number of constant pool entries plus one
+         */
+        private int readHeader()
+        {
+            if (this.bytes.length < 10 || this.u4() != MAGIC)
+            {
+                throw new IllegalArgumentException("Not a valid class file");
+            }
+            this.skip(4);
+            return this.u2();
+        }
+
+        /**
+         * Reads the header and the constant pool of the class file.
+         *
+         * @return The position of each constant within the class file by its index in the constant pool
+         */
+        private int[] readConstantPool()
+        {
+            int count = this.readHeader();
+            int[] offsets = new int[count];
+            for (int i = 1; i < count; i++)
+            {
+                offsets[i] = this.pos;
+                int tag = this.u1();
+                if (tag == 1)
+                {
+                    this.skip(this.u2());
+                }
+                else
+                {
+                    i += this.skipConstant(tag);
+                }
+            }
+            return offsets;
+        }
+
+        private int u1()
+        {
+            this.check(1);
+            return this.bytes[this.pos++] & 0xFF;
+        }
+
+        private int u2()
+        {
+            this.check(2);
+            int value = ((this.bytes[this.pos] & 0xFF) << 8) | (this.bytes[this.pos + 1] & 0xFF);
+            this.pos += 2;
+            return value;
+        }
+
+        private int u4()
+        {
+            return (this.u2() << 16) | this.u2();
+        }
+
+        private void skip(int length)
+        {
+            this.check(length);
+            this.pos += length;
+        }
+
+        private void check(int length)
+        {
+            if (length < 0 || this.pos + length > this.bytes.length)
+            {
+                throw new IllegalArgumentException("Truncated class file");
+            }
+        }
+
+        /**
+         * Returns true if the bytes at the current position match the expected bytes. The position is not changed.
+         */
+        private boolean matches(byte[] expected)
+        {
+            this.check(expected.length);
+            for (int i = 0; i < expected.length; i++)
+            {
+                if (this.bytes[this.pos + i] != expected[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Skips the content of a constant pool entry whose tag was already read.
+         *
+         * @return The number of additional constant pool slots the entry occupies
+         */
+        private int skipConstant(int tag)
+        {
+            switch (tag)
+            {
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    this.skip(2);
+                    return 0;
+                case 15: // MethodHandle
+                    this.skip(3);
+                    return 0;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    this.skip(4);
+                    return 0;
+                case 5: // Long
+                case 6: // Double
+                    this.skip(8);
+                    return 1;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        /**
+         * Reads the string of the UTF8 constant located at the given position.
+         */
+        private String utf8At(int offset)
+        {
+            int length = ((this.bytes[offset + 1] & 0xFF) << 8) | (this.bytes[offset + 2] & 0xFF);
+            // descriptors and attribute names of interest only contain ASCII characters
+            return new String(this.bytes, offset + 3, length, StandardCharsets.UTF_8);
+        }
+
+        private void skipAttributes()
+        {
+            int attributes = this.u2();
+            for (int i = 0; i < attributes; i++)
+            {
+                this.skip(2);
+                this.skip(this.u4());
+            }
+        }
+
+        private void skipElementValuePairs()
+        {
+            int pairs = this.u2();
+            for (int i = 0; i < pairs; i++)
+            {
+                this.skip(2);
+                this.skipElementValue();
+            }
+        }
+
+        private void skipElementValue()
+        {
+            int tag = this.u1();
+            switch (tag)
+            {
+                case 'e':
+                    this.skip(4);
+                    break;
+                case '@':
+                    this.skip(2);
+                    this.skipElementValuePairs();
+                    break;
+                case '[':
+                    int values = this.u2();
+                    for (int i = 0; i < values; i++)
+                    {
+                        this.skipElementValue();
+                    }
+                    break;
+                default:
+                    // constant values and classes
+                    this.skip(2);
+                    break;
+            }
+        }
+    }
+}
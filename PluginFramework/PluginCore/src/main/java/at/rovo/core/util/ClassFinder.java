@@ -1,5 +1,7 @@
 package at.rovo.core.util;
 
+import at.rovo.core.classloader.PluginIndex;
+import at.rovo.core.classloader.StrategyClassLoader;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
@@ -116,6 +118,10 @@ public final class ClassFinder
 
     /**
      * Tries to find all implementing classes of a certain interface loaded by a specific {@link ClassLoader}
+     * <p/>
+     * If the class loader loads a plug-in which was packaged with a {@link PluginIndex}, the implementations among the
+     * classes of the plug-in are taken from the index, while the class path of this instance is still scanned for
+     * further implementations.
      *
      * @param iface
      *         The interface classes have to implement to be listed
@@ -130,8 +136,30 @@ public final class ClassFinder
         if (iface.isInterface())
         {
             List<Class<?>> implementingClasses = new ArrayList<>();
-            implementingClasses.addAll(this.findImplementingClassesInDirectories(iface, loader));
-            implementingClasses.addAll(this.findImplementingClassesInJarFiles(iface, loader));
+            // the index of a plug-in lists the implementations among the plug-in's own classes, which therefore don't
+            // need to be scanned. Implementations provided by the class path are looked up nonetheless
+            if (loader instanceof StrategyClassLoader && ((StrategyClassLoader) loader).getPluginIndex() != null)
+            {
+                PluginIndex index = ((StrategyClassLoader) loader).getPluginIndex();
+                for (String className : index.findSubtypes(iface.getName()))
+                {
+                    this.loadClass(loader, className, iface, implementingClasses);
+                }
+            }
+            for (Class<?> clazz : this.findImplementingClassesInDirectories(iface, loader))
+            {
+                if (!implementingClasses.contains(clazz))
+                {
+                    implementingClasses.add(clazz);
+                }
+            }
+            for (Class<?> clazz : this.findImplementingClassesInJarFiles(iface, loader))
+            {
+                if (!implementingClasses.contains(clazz))
+                {
+                    implementingClasses.add(clazz);
+                }
+            }
             return implementingClasses;
         }
         return null;
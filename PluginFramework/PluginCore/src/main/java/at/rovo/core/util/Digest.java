@@ -0,0 +1,78 @@
+package at.rovo.core.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates SHA-256 digests of byte arrays and strings and returns them as hexadecimal strings.
+ *
+ * @author Roman Vottner
+ */
+public final class Digest
+{
+    /** The hexadecimal digits **/
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digest()
+    {
+
+    }
+
+    /**
+     * Calculates the digest of the given bytes.
+     *
+     * @param bytes
+     *         The bytes to calculate the digest for
+     *
+     * @return The hexadecimal representation of the digest
+     */
+    public static String sha256(byte[] bytes)
+    {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * Calculates the digest of the given strings. The strings are separated from each other, so the digests of
+     * <em>("ab", "c")</em> and <em>("a", "bc")</em> differ.
+     *
+     * @param values
+     *         The strings to calculate the digest for
+     *
+     * @return The hexadecimal representation of the digest
+     */
+    public static String sha256(String... values)
+    {
+        MessageDigest digest = newDigest();
+        for (String value : values)
+        {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsaEx)
+        {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 is not supported", nsaEx);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,164 @@
+import at.rovo.core.classloader.ActivationPipeline;
+import at.rovo.core.classloader.DelegationPolicy;
+import at.rovo.core.classloader.IClassLoaderStrategy;
+import at.rovo.core.classloader.StrategyClassLoader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class ActivationPipelineTest
+{
+    @BeforeClass
+    public static void setUp()
+    {
+        // classes are only prepared concurrently with at least two worker threads, regardless of the processors
+        System.setProperty("at.rovo.core.activation.threads", "2");
+    }
+
+    @Test
+    public void testSuperClassesFirst()
+    {
+        CountingStrategy strategy = new CountingStrategy(Base.class, Middle.class, Leaf.class, Other.class);
+        StrategyClassLoader loader = createLoader(strategy);
+
+        List<String> ordered = ActivationPipeline.prepare(loader, Arrays.asList(Leaf.class.getName(),
+                                                                                Middle.class.getName(),
+                                                                                Other.class.getName(),
+                                                                                Base.class.getName()));
+        // classes of the same depth keep their order
+        Assert.assertEquals(Arrays.asList(Other.class.getName(), Base.class.getName(), Middle.class.getName(),
+                                          Leaf.class.getName()), ordered);
+        Assert.assertEquals(1, strategy.getReads(Leaf.class));
+
+        // defining the classes uses the prepared bytes
+        for (String className : ordered)
+        {
+            Class<?> clazz = loader.loadClass(className);
+            Assert.assertNotNull(clazz);
+            Assert.assertSame(loader, clazz.getClassLoader());
+        }
+        Assert.assertEquals(1, strategy.getReads(Base.class));
+        Assert.assertEquals(1, strategy.getReads(Leaf.class));
+    }
+
+    @Test
+    public void testDiscardPreparedClasses()
+    {
+        CountingStrategy strategy = new CountingStrategy(Base.class, Other.class);
+        StrategyClassLoader loader = createLoader(strategy);
+
+        ActivationPipeline.prepare(loader, Arrays.asList(Base.class.getName(), Other.class.getName()));
+        Assert.assertEquals(1, strategy.getReads(Other.class));
+        Assert.assertNotNull(loader.loadClass(Base.class.getName()));
+        Assert.assertEquals(1, strategy.getReads(Base.class));
+
+        // once discarded, the class is read again on defining it
+        loader.discardPreparedClasses();
+        Assert.assertNotNull(loader.loadClass(Other.class.getName()));
+        Assert.assertEquals(2, strategy.getReads(Other.class));
+    }
+
+    private static StrategyClassLoader createLoader(IClassLoaderStrategy strategy)
+    {
+        StrategyClassLoader loader = new StrategyClassLoader(ActivationPipelineTest.class.getClassLoader(),
+                                                             Collections.singleton(strategy));
+        loader.setDelegationPolicy(DelegationPolicy.CHILD_FIRST);
+        return loader;
+    }
+
+    /**
+     * Serves the class files of the given classes from the test classpath and counts how often each class got read.
+     */
+    private static class CountingStrategy implements IClassLoaderStrategy
+    {
+        private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+
+        private CountingStrategy(Class<?>... classes)
+        {
+            for (Class<?> clazz : classes)
+            {
+                this.classes.put(clazz.getName(), clazz);
+                this.reads.put(clazz.getName(), new AtomicInteger());
+            }
+        }
+
+        private int getReads(Class<?> clazz)
+        {
+            return this.reads.get(clazz.getName()).get();
+        }
+
+        @Override
+        public boolean containsClass(String className)
+        {
+            return this.classes.containsKey(className);
+        }
+
+        @Override
+        public byte[] findClassBytes(String name) throws IOException
+        {
+            Class<?> clazz = this.classes.get(name);
+            if (clazz == null)
+            {
+                return null;
+            }
+            this.reads.get(name).incrementAndGet();
+            return JarFixtures.readClass(clazz);
+        }
+
+        @Override
+        public URL findResource(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public Enumeration<URL> findResources(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public InputStream findResourceAsStream(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public String findLibraryPath(String libraryName)
+        {
+            return null;
+        }
+    }
+
+    public static class Base
+    {
+
+    }
+
+    public static class Middle extends Base
+    {
+
+    }
+
+    public static class Leaf extends Middle
+    {
+
+    }
+
+    public static class Other
+    {
+
+    }
+}
@@ -0,0 +1,58 @@
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.core.util.ClassFileInspector;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ClassFileInspectorTest
+{
+    private static final String COMPONENT = ClassFileInspector.toDescriptor(Component.class.getName());
+
+    @Test
+    public void testComponent() throws IOException
+    {
+        byte[] bytes = JarFixtures.readClass(AnnotatedComponent.class);
+        Assert.assertTrue(ClassFileInspector.containsUtf8(bytes, COMPONENT));
+        List<String> annotations = ClassFileInspector.getClassAnnotations(bytes);
+        Assert.assertTrue(annotations.contains(COMPONENT));
+        Assert.assertTrue(annotations.contains(ClassFileInspector.toDescriptor(Deprecated.class.getName())));
+    }
+
+    @Test
+    public void testNoComponent() throws IOException
+    {
+        byte[] bytes = JarFixtures.readClass(Plain.class);
+        Assert.assertFalse(ClassFileInspector.containsUtf8(bytes, COMPONENT));
+        Assert.assertTrue(ClassFileInspector.getClassAnnotations(bytes).isEmpty());
+        Assert.assertEquals(Object.class.getName(), ClassFileInspector.getSuperClassName(bytes));
+        Assert.assertEquals(Plain.class.getName(), ClassFileInspector.getSuperClassName(JarFixtures.readClass(SubClass.class)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidClassFile()
+    {
+        ClassFileInspector.containsUtf8(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, COMPONENT);
+    }
+
+
+    @Deprecated
+    @Component(scope = ScopeType.SINGLETON)
+    private static class AnnotatedComponent
+    {
+        private long value = 42L;
+        private double factor = 1.5;
+    }
+
+    private static class Plain
+    {
+        private long value = 42L;
+    }
+
+    private static class SubClass extends Plain
+    {
+
+    }
+}
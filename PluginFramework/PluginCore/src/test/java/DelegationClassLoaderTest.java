@@ -0,0 +1,134 @@
+import at.rovo.core.classloader.DelegationClassLoader;
+import at.rovo.core.classloader.DelegationPolicy;
+import at.rovo.core.classloader.IClassLoaderStrategy;
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.PluginLoaderStrategy;
+import at.rovo.core.classloader.StrategyClassLoader;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DelegationClassLoaderTest
+{
+    @Test
+    public void testMissIsResolvedOnceExported() throws Exception
+    {
+        DelegationClassLoader delegation = createDelegation();
+        Assert.assertNull(delegation.loadClass(First.class.getName()));
+
+        // registering the plug-in invalidates the cached miss
+        StrategyClassLoader loader = createLoader(delegation, First.class, Second.class);
+        delegation.addLoaderForName("plugin", loader);
+        Class<?> exported = loader.loadClass(First.class.getName());
+        Assert.assertSame(loader, exported.getClassLoader());
+        Assert.assertSame(exported, delegation.loadClass(First.class.getName()));
+        Assert.assertTrue(delegation.containsClass(First.class.getName()));
+    }
+
+    @Test
+    public void testUnloadedClassesMissAgain() throws Exception
+    {
+        DelegationClassLoader delegation = createDelegation();
+        StrategyClassLoader loader = createLoader(delegation, First.class, Second.class);
+        delegation.addLoaderForName("plugin", loader);
+        Assert.assertNotNull(loader.loadClass(First.class.getName()));
+        Assert.assertNotNull(delegation.loadClass(First.class.getName()));
+
+        delegation.unload("plugin");
+        Assert.assertFalse(delegation.containsClass(First.class.getName()));
+        Assert.assertNull(delegation.loadClass(First.class.getName()));
+        Assert.assertEquals(0, size(delegation, "commonLoaders"));
+        Assert.assertEquals(0, size(delegation, "classIndex"));
+    }
+
+    @Test
+    public void testCollectedLoaderIsDropped() throws Exception
+    {
+        DelegationClassLoader delegation = createDelegation();
+        exportAndForget(delegation);
+        Assert.assertEquals(1, size(delegation, "commonLoaders"));
+        Assert.assertEquals(1, size(delegation, "classIndex"));
+
+        long timeout = System.currentTimeMillis() + 10000L;
+        while (delegation.getClearedLoaderCount() == 0 && System.currentTimeMillis() < timeout)
+        {
+            System.gc();
+            Thread.sleep(50L);
+        }
+        Assert.assertEquals(1L, delegation.getClearedLoaderCount());
+        Assert.assertEquals(0, size(delegation, "commonLoaders"));
+        Assert.assertEquals(0, size(delegation, "classIndex"));
+        Assert.assertFalse(delegation.containsClass(First.class.getName()));
+    }
+
+    @Test
+    public void testExportedClassesShareTheirLoader() throws Exception
+    {
+        DelegationClassLoader delegation = createDelegation();
+        StrategyClassLoader loader = createLoader(delegation, First.class, Second.class);
+        delegation.addLoaderForName("plugin", loader);
+        loader.loadClass(First.class.getName());
+        loader.loadClass(Second.class.getName());
+
+        Class<?> first = delegation.loadClass(First.class.getName());
+        Class<?> second = delegation.loadClass(Second.class.getName());
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertSame(loader, first.getClassLoader());
+        Assert.assertSame(first.getClassLoader(), second.getClassLoader());
+        Assert.assertEquals(1, size(delegation, "commonLoaders"));
+    }
+
+    /**
+     * Exports a class via a composite loader no strong reference is kept to.
+     */
+    private static void exportAndForget(DelegationClassLoader delegation) throws Exception
+    {
+        StrategyClassLoader loader = createLoader(delegation, First.class);
+        delegation.addLoaderForName("plugin", loader);
+        Assert.assertNotNull(loader.loadClass(First.class.getName()));
+    }
+
+    /**
+     * Creates a delegation loader whose parent can't see the classes of the test classpath, so exported classes are
+     * only provided by its composite loaders.
+     */
+    private static DelegationClassLoader createDelegation()
+    {
+        return new DelegationClassLoader(null);
+    }
+
+    /**
+     * Creates a composite loader for a plug-in jar file containing the given classes.
+     */
+    private static StrategyClassLoader createLoader(DelegationClassLoader delegation, Class<?>... classes)
+            throws Exception
+    {
+        File jar = JarFixtures.createJar(JarFixtures.manifest(), classes);
+        IClassLoaderStrategy strategy = new PluginLoaderStrategy(jar.toURI().toURL(), JarSnapshot.create(jar));
+        StrategyClassLoader loader = new StrategyClassLoader(delegation, Collections.singleton(strategy));
+        loader.setDelegationPolicy(DelegationPolicy.CHILD_FIRST);
+        return loader;
+    }
+
+    private static int size(DelegationClassLoader delegation, String fieldName) throws Exception
+    {
+        Field field = DelegationClassLoader.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return ((Map<?, ?>) field.get(delegation)).size();
+    }
+
+    public static class First
+    {
+
+    }
+
+    public static class Second
+    {
+
+    }
+}
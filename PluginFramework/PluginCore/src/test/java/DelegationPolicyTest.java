@@ -0,0 +1,49 @@
+import at.rovo.core.classloader.DelegationPolicy;
+import java.util.jar.Attributes;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DelegationPolicyTest
+{
+    @Test
+    public void testDefaultIsParentFirst()
+    {
+        DelegationPolicy policy = DelegationPolicy.fromManifest(new Attributes());
+        Assert.assertSame(DelegationPolicy.PARENT_FIRST, policy);
+        Assert.assertFalse(policy.isChildFirst("at.rovo.plugin.Test"));
+    }
+
+    @Test
+    public void testChildFirst()
+    {
+        Attributes attributes = new Attributes();
+        attributes.put(DelegationPolicy.CLASS_LOADING, "child-first");
+        DelegationPolicy policy = DelegationPolicy.fromManifest(attributes);
+        Assert.assertTrue(policy.isChildFirst("at.rovo.plugin.Test"));
+        // shared classes are never loaded child-first
+        Assert.assertFalse(policy.isChildFirst("java.lang.String"));
+        Assert.assertFalse(policy.isChildFirst("at.rovo.common.plugin.IPlugin"));
+        Assert.assertFalse(policy.isChildFirst("at.rovo.core.injection.IInjectionController"));
+    }
+
+    @Test
+    public void testChildFirstPackages()
+    {
+        Attributes attributes = new Attributes();
+        attributes.put(DelegationPolicy.CHILD_FIRST_PACKAGES, "at.rovo.plugin.impl  org.example");
+        DelegationPolicy policy = DelegationPolicy.fromManifest(attributes);
+        Assert.assertTrue(policy.isChildFirst("at.rovo.plugin.impl.Test"));
+        Assert.assertTrue(policy.isChildFirst("org.example.sub.Test"));
+        Assert.assertFalse(policy.isChildFirst("at.rovo.plugin.Test"));
+        Assert.assertFalse(policy.isChildFirst("org.examples.Test"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMode()
+    {
+        Attributes attributes = new Attributes();
+        attributes.put(DelegationPolicy.CLASS_LOADING, "sideways");
+        DelegationPolicy.fromManifest(attributes);
+    }
+}
@@ -0,0 +1,440 @@
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.classloader.AsmInstrumentationEngine;
+import at.rovo.core.classloader.InstrumentationEngine;
+import at.rovo.core.injection.InjectionControllerImpl;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class InjectionControllerTest
+{
+    @Test
+    public void testSingletonsArePerClass() throws Exception
+    {
+        // both loaders define a class of the same name, which must not share their singleton
+        Class<?> first = new TestLoader(Registry.class).loadClass(Registry.class.getName());
+        Class<?> second = new TestLoader(Registry.class).loadClass(Registry.class.getName());
+        Assert.assertNotSame(first, second);
+
+        Object firstInstance = first.getMethod("getInstance").invoke(null);
+        Object secondInstance = second.getMethod("getInstance").invoke(null);
+        Assert.assertNotSame(firstInstance, secondInstance);
+        Assert.assertTrue(first.isInstance(firstInstance));
+        Assert.assertTrue(second.isInstance(secondInstance));
+        Assert.assertSame(firstInstance, InjectionControllerImpl.INSTANCE.getSingletonInstance(first));
+        Assert.assertSame(secondInstance, InjectionControllerImpl.INSTANCE.getSingletonInstance(second));
+        Assert.assertSame(firstInstance, first.getMethod("getInstance").invoke(null));
+    }
+
+    @Test
+    public void testSingletonIsOnlyVisibleOnceInjected() throws Exception
+    {
+        Method getInstance = new TestLoader(Registry.class).loadClass(Registry.class.getName())
+                                                          .getMethod("getInstance");
+
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            // every thread returns the singleton along with the dependency injected at the time it got hold of it
+            List<Future<Object[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(() ->
+                                            {
+                                                barrier.await();
+                                                Object instance = getInstance.invoke(null);
+                                                return new Object[] {instance, get(instance, "dependency")};
+                                            }));
+            }
+            Object first = results.get(0).get(10, TimeUnit.SECONDS)[0];
+            for (Future<Object[]> result : results)
+            {
+                Object[] instance = result.get(10, TimeUnit.SECONDS);
+                Assert.assertSame(first, instance[0]);
+                Assert.assertNotNull(instance[1]);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSingletonCycle() throws Exception
+    {
+        TestLoader loader = new TestLoader(CycleA.class, CycleB.class);
+        Class<?> cycleA = loader.loadClass(CycleA.class.getName());
+        Class<?> cycleB = loader.loadClass(CycleB.class.getName());
+
+        Object a = cycleA.getMethod("getInstance").invoke(null);
+        Object b = get(a, "b");
+        Assert.assertNotNull(b);
+        Assert.assertSame(a, get(b, "a"));
+        Assert.assertSame(b, cycleB.getMethod("getInstance").invoke(null));
+        Assert.assertSame(a, InjectionControllerImpl.INSTANCE.getSingletonInstance(cycleA));
+    }
+
+    @Test
+    public void testSingletonCycleAcrossThreads() throws Exception
+    {
+        TestLoader loader = new TestLoader(CrossA.class, CrossB.class);
+        Class<?> crossA = loader.loadClass(CrossA.class.getName());
+        Class<?> crossB = loader.loadClass(CrossB.class.getName());
+        Method getA = crossA.getMethod("getInstance");
+        Method getB = crossB.getMethod("getInstance");
+
+        // both threads start injecting their singleton before requiring the one of the other thread
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<Object> first = executor.submit(() ->
+                                                   {
+                                                       barrier.await();
+                                                       return getA.invoke(null);
+                                                   });
+            Future<Object> second = executor.submit(() ->
+                                                    {
+                                                        barrier.await();
+                                                        return getB.invoke(null);
+                                                    });
+            Object a = first.get(10, TimeUnit.SECONDS);
+            Object b = second.get(10, TimeUnit.SECONDS);
+
+            Assert.assertSame(a, InjectionControllerImpl.INSTANCE.getSingletonInstance(crossA));
+            Assert.assertSame(b, InjectionControllerImpl.INSTANCE.getSingletonInstance(crossB));
+            Assert.assertSame(b, get(a, "b"));
+            Assert.assertSame(a, get(b, "a"));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = InjectionException.class)
+    public void testFailingSetter()
+    {
+        InjectionControllerImpl.INSTANCE.initialize(new FailingSetter());
+    }
+
+    @Test
+    public void testRepeatedInitialization() throws Exception
+    {
+        Prototype prototype = new Prototype();
+        Assert.assertSame(prototype, InjectionControllerImpl.INSTANCE.initialize(prototype));
+        Long id = prototype.id;
+        Dependency dependency = prototype.dependency;
+        Assert.assertNotNull(id);
+        Assert.assertNotNull(dependency);
+
+        // initializing the very same object again leaves it untouched
+        Assert.assertSame(prototype, InjectionControllerImpl.INSTANCE.initialize(prototype));
+        Assert.assertEquals(id, prototype.id);
+        Assert.assertSame(dependency, prototype.dependency);
+    }
+
+    @Test
+    public void testEqualObjectsAreInitializedSeparately() throws Exception
+    {
+        // objects are told apart by identity, not by equals or toString
+        Prototype first = new Prototype();
+        Prototype second = new Prototype();
+        Assert.assertEquals(first.toString(), second.toString());
+        Assert.assertEquals(first, second);
+
+        InjectionControllerImpl.INSTANCE.initialize(first);
+        InjectionControllerImpl.INSTANCE.initialize(second);
+        Assert.assertNotNull(first.dependency);
+        Assert.assertNotNull(second.dependency);
+        Assert.assertNotEquals(first.id, second.id);
+    }
+
+    @Test
+    public void testCollectedObjectsAreRemoved() throws Exception
+    {
+        InjectionControllerImpl.INSTANCE.initialize(new Collected());
+        Assert.assertTrue(this.isInitialized(Collected.class));
+
+        long timeout = System.currentTimeMillis() + 10000L;
+        while (this.isInitialized(Collected.class) && System.currentTimeMillis() < timeout)
+        {
+            System.gc();
+            Thread.sleep(50L);
+        }
+        Assert.assertFalse(this.isInitialized(Collected.class));
+    }
+
+    /**
+     * Checks if the injection controller keeps track of an initialized instance of the given class.
+     */
+    private boolean isInitialized(Class<?> clazz) throws Exception
+    {
+        Field field = InjectionControllerImpl.class.getDeclaredField("initializations");
+        field.setAccessible(true);
+        for (Object name : ((Map<?, ?>) field.get(InjectionControllerImpl.INSTANCE)).values())
+        {
+            if (((String) name).startsWith(clazz.getName() + "@"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object get(Object obj, String fieldName) throws Exception
+    {
+        Field field = obj.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return field.get(obj);
+    }
+
+    /**
+     * Defines instrumented versions of the given classes itself instead of delegating to its parent. The test class
+     * itself is defined as well, as nested classes have to agree with their enclosing class.
+     */
+    private static class TestLoader extends ClassLoader
+    {
+        private final Map<String, byte[]> classes = new HashMap<>();
+
+        private TestLoader(Class<?>... components) throws Exception
+        {
+            super(InjectionControllerTest.class.getClassLoader());
+            this.classes.put(InjectionControllerTest.class.getName(), JarFixtures.readClass(InjectionControllerTest.class));
+            InstrumentationEngine engine = new AsmInstrumentationEngine();
+            for (Class<?> component : components)
+            {
+                this.classes.put(component.getName(),
+                                 engine.instrument(component.getName(), JarFixtures.readClass(component)).getBytes());
+            }
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            synchronized (this.getClassLoadingLock(name))
+            {
+                byte[] bytes = this.classes.get(name);
+                if (bytes == null)
+                {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> clazz = this.findLoadedClass(name);
+                if (clazz == null)
+                {
+                    clazz = this.defineClass(name, bytes, 0, bytes.length);
+                }
+                return clazz;
+            }
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class Registry
+    {
+        private static Registry instance;
+        @ComponentId
+        private Long id;
+        @Inject
+        private SlowDependency dependency;
+
+        private Registry()
+        {
+
+        }
+
+        public static Registry getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new Registry();
+            }
+            return instance;
+        }
+    }
+
+    @Component
+    public static class SlowDependency
+    {
+        @ComponentId
+        private Long id;
+
+        public SlowDependency() throws InterruptedException
+        {
+            Thread.sleep(100L);
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class CycleA
+    {
+        private static CycleA instance;
+        @ComponentId
+        private Long id;
+        @Inject
+        private CycleB b;
+
+        private CycleA()
+        {
+
+        }
+
+        public static CycleA getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new CycleA();
+            }
+            return instance;
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class CycleB
+    {
+        private static CycleB instance;
+        @ComponentId
+        private Long id;
+        @Inject
+        private CycleA a;
+
+        private CycleB()
+        {
+
+        }
+
+        public static CycleB getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new CycleB();
+            }
+            return instance;
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class CrossA
+    {
+        private static CrossA instance;
+        @ComponentId
+        private Long id;
+        @Inject
+        private SlowDependency dependency;
+        @Inject
+        private CrossB b;
+
+        private CrossA()
+        {
+
+        }
+
+        public static CrossA getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new CrossA();
+            }
+            return instance;
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class CrossB
+    {
+        private static CrossB instance;
+        @ComponentId
+        private Long id;
+        @Inject
+        private SlowDependency dependency;
+        @Inject
+        private CrossA a;
+
+        private CrossB()
+        {
+
+        }
+
+        public static CrossB getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new CrossB();
+            }
+            return instance;
+        }
+    }
+
+    @Component
+    public static class FailingSetter
+    {
+        @ComponentId
+        private Long id;
+        @Inject
+        private SlowDependency dependency;
+
+        public void setDependency(SlowDependency dependency)
+        {
+            throw new IllegalStateException("Rejecting " + dependency);
+        }
+    }
+
+    @Component
+    public static class Prototype
+    {
+        @ComponentId
+        private Long id;
+        @Inject
+        private Dependency dependency;
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Prototype;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Prototype";
+        }
+    }
+
+    @Component
+    public static class Dependency
+    {
+        @ComponentId
+        private Long id;
+    }
+
+    @Component
+    public static class Collected
+    {
+        @ComponentId
+        private Long id;
+    }
+}
@@ -0,0 +1,265 @@
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.core.classloader.AsmInstrumentationEngine;
+import at.rovo.core.classloader.IClassLoaderStrategy;
+import at.rovo.core.classloader.InstrumentationEngine;
+import at.rovo.core.classloader.InstrumentedClass;
+import at.rovo.core.classloader.JavassistInstrumentationEngine;
+import at.rovo.core.injection.IInjectionController;
+import at.rovo.core.injection.SingletonHolder;
+import at.rovo.core.util.ClassFileInspector;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class InstrumentationEngineTest
+{
+    @Test
+    public void testAsmPrototype() throws Exception
+    {
+        this.testPrototype(new AsmInstrumentationEngine());
+    }
+
+    @Test
+    public void testJavassistPrototype() throws Exception
+    {
+        this.testPrototype(new JavassistInstrumentationEngine(new EmptyStrategy()));
+    }
+
+    @Test
+    public void testAsmSingleton() throws Exception
+    {
+        this.testSingleton(new AsmInstrumentationEngine(), AsmSingleton.class);
+    }
+
+    @Test
+    public void testJavassistSingleton() throws Exception
+    {
+        this.testSingleton(new JavassistInstrumentationEngine(new EmptyStrategy()), JavassistSingleton.class);
+    }
+
+    @Test
+    public void testConcurrentAsmSingleton() throws Exception
+    {
+        this.testConcurrentSingleton(new AsmInstrumentationEngine(), AsmSingleton.class);
+    }
+
+    @Test
+    public void testConcurrentJavassistSingleton() throws Exception
+    {
+        this.testConcurrentSingleton(new JavassistInstrumentationEngine(new EmptyStrategy()), JavassistSingleton.class);
+    }
+
+    @Test
+    public void testNoComponent() throws Exception
+    {
+        Assert.assertNull(new AsmInstrumentationEngine().instrument(Plain.class.getName(), JarFixtures.readClass(Plain.class)));
+        Assert.assertNull(new AsmInstrumentationEngine().readMetadata(Plain.class.getName(), JarFixtures.readClass(Plain.class)));
+    }
+
+    private void testPrototype(InstrumentationEngine engine) throws Exception
+    {
+        InstrumentedClass instrumented = engine.instrument(Prototype.class.getName(), JarFixtures.readClass(Prototype.class));
+        Assert.assertNotNull(instrumented);
+        Assert.assertEquals(ScopeType.PROTOTYPE, instrumented.getMetadata().getScope());
+        Assert.assertEquals(Arrays.asList("id"), instrumented.getMetadata().getComponentIdFields());
+        Assert.assertEquals(Arrays.asList("dependency"), instrumented.getMetadata().getInjectFields());
+        Assert.assertTrue(ClassFileInspector.getClassAnnotations(instrumented.getBytes())
+                                            .contains("Lat/rovo/core/injection/Instrumented;"));
+        // instrumenting an instrumented class again leaves it untouched
+        Assert.assertNull(engine.instrument(Prototype.class.getName(), instrumented.getBytes()));
+
+        Class<?> clazz = new TestLoader().define(Prototype.class.getName(), instrumented.getBytes());
+        Constructor<?> constructor = clazz.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object instance = constructor.newInstance();
+        // the injection controller assigns the component id on construction
+        Field id = clazz.getDeclaredField("id");
+        id.setAccessible(true);
+        Assert.assertNotNull(id.get(instance));
+        // fields are assigned by the woven injector method
+        Assert.assertNotNull(clazz.getDeclaredMethod(InstrumentationEngine.INJECTOR_METHOD,
+                                                     IInjectionController.class));
+        Field dependency = clazz.getDeclaredField("dependency");
+        dependency.setAccessible(true);
+        Assert.assertNotNull(dependency.get(instance));
+        Assert.assertNotNull(((Dependency) dependency.get(instance)).id);
+    }
+
+    private void testSingleton(InstrumentationEngine engine, Class<?> singleton) throws Exception
+    {
+        // each engine gets its own singleton class, so the test shows the engine produced a working getInstance()
+        InstrumentedClass instrumented = engine.instrument(singleton.getName(), JarFixtures.readClass(singleton));
+        Assert.assertNotNull(instrumented);
+        Assert.assertTrue(instrumented.getMetadata().isSingleton());
+        Assert.assertEquals(InstrumentationEngine.SINGLETON_FIELD, instrumented.getMetadata().getSingletonField());
+
+        Class<?> clazz = new TestLoader().define(singleton.getName(), instrumented.getBytes());
+        Assert.assertEquals(SingletonHolder.class,
+                            clazz.getDeclaredField(InstrumentationEngine.SINGLETON_FIELD).getType());
+        Method getInstance = clazz.getMethod("getInstance");
+        Object first = getInstance.invoke(null);
+        Assert.assertNotNull(first);
+        Assert.assertSame(first, getInstance.invoke(null));
+    }
+
+    private void testConcurrentSingleton(InstrumentationEngine engine, Class<?> singleton) throws Exception
+    {
+        InstrumentedClass instrumented = engine.instrument(singleton.getName(), JarFixtures.readClass(singleton));
+        Method getInstance = new TestLoader().define(singleton.getName(), instrumented.getBytes())
+                                             .getMethod("getInstance");
+
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(() ->
+                                            {
+                                                barrier.await();
+                                                return getInstance.invoke(null);
+                                            }));
+            }
+            Object first = results.get(0).get(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(first);
+            for (Future<Object> result : results)
+            {
+                Assert.assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class TestLoader extends ClassLoader
+    {
+        private TestLoader()
+        {
+            super(InstrumentationEngineTest.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes)
+        {
+            return this.defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static class EmptyStrategy implements IClassLoaderStrategy
+    {
+        @Override
+        public byte[] findClassBytes(String name)
+        {
+            return null;
+        }
+
+        @Override
+        public URL findResource(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public Enumeration<URL> findResources(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public InputStream findResourceAsStream(String resourceName)
+        {
+            return null;
+        }
+
+        @Override
+        public String findLibraryPath(String libraryName)
+        {
+            return null;
+        }
+    }
+
+    @Component
+    public static class Prototype
+    {
+        @ComponentId
+        private Long id;
+        @Inject
+        private Dependency dependency;
+    }
+
+    @Component
+    public static class Dependency
+    {
+        @ComponentId
+        private Long id;
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class AsmSingleton
+    {
+        private static AsmSingleton instance;
+        @ComponentId
+        private Long id;
+
+        private AsmSingleton()
+        {
+
+        }
+
+        public static AsmSingleton getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new AsmSingleton();
+            }
+            return instance;
+        }
+    }
+
+    @Component(scope = ScopeType.SINGLETON)
+    public static class JavassistSingleton
+    {
+        private static JavassistSingleton instance;
+        @ComponentId
+        private Long id;
+
+        private JavassistSingleton()
+        {
+
+        }
+
+        public static JavassistSingleton getInstance()
+        {
+            if (instance == null)
+            {
+                instance = new JavassistSingleton();
+            }
+            return instance;
+        }
+    }
+
+    public static class Plain
+    {
+
+    }
+}
@@ -0,0 +1,147 @@
+import at.rovo.core.classloader.AsmInstrumentationEngine;
+import at.rovo.core.classloader.InstrumentationEngine;
+import at.rovo.core.classloader.InstrumentedClassCache;
+import at.rovo.core.classloader.JavassistInstrumentationEngine;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class InstrumentedClassCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHitAndMiss() throws Exception
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 1024 * 1024);
+        byte[] original = classFile(100, (byte) 1);
+        byte[] instrumented = classFile(120, (byte) 2);
+        String key = cache.createKey(original, "a.B", new AsmInstrumentationEngine(), true);
+
+        Assert.assertNull(cache.get(key, original));
+        cache.put(key, instrumented);
+        Assert.assertArrayEquals(instrumented, cache.get(key, original));
+    }
+
+    @Test
+    public void testKeyDependsOnTheClassBytes()
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 1024 * 1024);
+        InstrumentationEngine engine = new AsmInstrumentationEngine();
+        byte[] original = classFile(100, (byte) 1);
+        String key = cache.createKey(original, "a.B", engine, true);
+
+        Assert.assertEquals(key, cache.createKey(original.clone(), "a.B", engine, true));
+        Assert.assertNotEquals(key, cache.createKey(classFile(100, (byte) 3), "a.B", engine, true));
+        Assert.assertNotEquals(key, cache.createKey(original, "a.C", engine, true));
+        Assert.assertNotEquals(key, cache.createKey(original, "a.B", engine, false));
+        Assert.assertNotEquals(key, cache.createKey(original, "a.B", new JavassistInstrumentationEngine(null), true));
+    }
+
+    @Test
+    public void testUnchangedClass() throws Exception
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 1024 * 1024);
+        byte[] original = classFile(100, (byte) 1);
+        String key = cache.createKey(original, "a.B", new AsmInstrumentationEngine(), true);
+
+        cache.put(key, null);
+        // the marker of an untouched class returns the original bytes themselves
+        Assert.assertSame(original, cache.get(key, original));
+    }
+
+    @Test
+    public void testCorruptEntryIsRemoved() throws Exception
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 1024 * 1024);
+        byte[] original = classFile(100, (byte) 1);
+        String key = cache.createKey(original, "a.B", new AsmInstrumentationEngine(), true);
+
+        cache.put(key, new byte[] {1, 2, 3, 4, 5});
+        Assert.assertEquals(1, this.listEntries().size());
+        Assert.assertNull(cache.get(key, original));
+        Assert.assertTrue(this.listEntries().isEmpty());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 3500);
+        InstrumentationEngine engine = new AsmInstrumentationEngine();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+        {
+            byte[] original = classFile(100, (byte) i);
+            keys.add(cache.createKey(original, "a.B" + i, engine, true));
+        }
+
+        for (int i = 0; i < 3; i++)
+        {
+            cache.put(keys.get(i), classFile(1000, (byte) i));
+            Thread.sleep(20L);
+        }
+        // using the oldest entry makes the second one the least recently used entry
+        Assert.assertNotNull(cache.get(keys.get(0), null));
+        Thread.sleep(20L);
+
+        // exceeding the limit reduces the cache to three quarters of its limit
+        cache.put(keys.get(3), classFile(1000, (byte) 3));
+        Assert.assertEquals(2, this.listEntries().size());
+        Assert.assertNotNull(cache.get(keys.get(0), null));
+        Assert.assertNull(cache.get(keys.get(1), null));
+        Assert.assertNull(cache.get(keys.get(2), null));
+        Assert.assertNotNull(cache.get(keys.get(3), null));
+    }
+
+    @Test
+    public void testEntryIsReplaced() throws Exception
+    {
+        InstrumentedClassCache cache = new InstrumentedClassCache(this.folder.getRoot().toPath(), 1024 * 1024);
+        byte[] original = classFile(100, (byte) 1);
+        String key = cache.createKey(original, "a.B", new AsmInstrumentationEngine(), true);
+
+        cache.put(key, classFile(200, (byte) 2));
+        byte[] replacement = classFile(150, (byte) 3);
+        cache.put(key, replacement);
+        Assert.assertArrayEquals(replacement, cache.get(key, original));
+
+        // the temporary files the entries got written to were moved into place
+        try (Stream<Path> files = Files.walk(this.folder.getRoot().toPath()))
+        {
+            Assert.assertEquals(1L, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    private List<Path> listEntries() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(this.folder.getRoot().toPath()))
+        {
+            return files.filter((Path file) -> file.toString().endsWith(".class")).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Creates the content of a fake class file, which starts with the magic number of class files.
+     */
+    private static byte[] classFile(int length, byte fill)
+    {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, fill);
+        bytes[0] = (byte) 0xCA;
+        bytes[1] = (byte) 0xFE;
+        bytes[2] = (byte) 0xBA;
+        bytes[3] = (byte) 0xBE;
+        return bytes;
+    }
+}
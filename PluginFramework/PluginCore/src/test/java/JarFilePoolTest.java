@@ -0,0 +1,76 @@
+import at.rovo.core.classloader.JarFilePool;
+import at.rovo.core.classloader.PluginLoaderStrategy;
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class JarFilePoolTest
+{
+    @Test
+    public void testModifiedJarIsReopened() throws Exception
+    {
+        File jar = JarFixtures.createJar(JarFixtures.manifest(), First.class);
+        JarFilePool pool = new JarFilePool(4, 60000L);
+
+        JarFilePool.Handle first = pool.acquire(jar);
+        first.close();
+        try (JarFilePool.Handle handle = pool.acquire(jar))
+        {
+            Assert.assertSame(first, handle);
+        }
+
+        JarFixtures.writeJar(jar, JarFixtures.manifest(), First.class, Second.class);
+        try (JarFilePool.Handle handle = pool.acquire(jar))
+        {
+            Assert.assertNotSame(first, handle);
+            Assert.assertTrue(handle.isVersion(jar.lastModified(), jar.length()));
+            Assert.assertNotNull(handle.getJarFile().getEntry(JarFixtures.entryName(Second.class)));
+        }
+        Assert.assertEquals(1, pool.getOpenHandles());
+        pool.release(jar);
+        Assert.assertEquals(0, pool.getOpenHandles());
+    }
+
+    @Test
+    public void testRepeatedCloseIsIgnored() throws Exception
+    {
+        File jar = JarFixtures.createJar(JarFixtures.manifest(), First.class);
+        JarFilePool pool = new JarFilePool(4, 60000L);
+
+        JarFilePool.Handle first = pool.acquire(jar);
+        first.close();
+        first.close();
+        try (JarFilePool.Handle handle = pool.acquire(jar))
+        {
+            Assert.assertSame(first, handle);
+            // releasing the file must not close the jar file while it is still in use
+            pool.release(jar);
+            Assert.assertNotNull(handle.getJarFile().getEntry(JarFixtures.entryName(First.class)));
+        }
+    }
+
+    @Test
+    public void testIndexIsRevalidated() throws Exception
+    {
+        File jar = JarFixtures.createJar(JarFixtures.manifest(), First.class);
+        PluginLoaderStrategy strategy = new PluginLoaderStrategy(jar.toURI().toURL());
+        Assert.assertTrue(strategy.containsClass(First.class.getName()));
+        Assert.assertFalse(strategy.containsClass(Second.class.getName()));
+
+        JarFixtures.writeJar(jar, JarFixtures.manifest(), First.class, Second.class);
+        Assert.assertTrue(strategy.containsClass(Second.class.getName()));
+        Assert.assertNotNull(strategy.findClassBytes(Second.class.getName()));
+        strategy.release();
+    }
+
+    public static class First
+    {
+
+    }
+
+    public static class Second
+    {
+
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+
+/**
+ * Helpers shared by the tests to read class files of the test classpath and to assemble plug-in jar files from them.
+ */
+final class JarFixtures
+{
+    private JarFixtures()
+    {
+
+    }
+
+    /**
+     * Returns the name of the jar entry of the given class.
+     */
+    static String entryName(Class<?> clazz)
+    {
+        return clazz.getName().replace('.', '/') + ".class";
+    }
+
+    /**
+     * Reads the class file of the given class from the test classpath.
+     */
+    static byte[] readClass(Class<?> clazz) throws IOException
+    {
+        try (InputStream stream = clazz.getClassLoader().getResourceAsStream(entryName(clazz)))
+        {
+            return readFully(stream);
+        }
+    }
+
+    /**
+     * Reads the content of an entry of the given jar file.
+     */
+    static byte[] read(JarFile jar, String name) throws IOException
+    {
+        try (InputStream stream = jar.getInputStream(jar.getEntry(name)))
+        {
+            return readFully(stream);
+        }
+    }
+
+    /**
+     * Creates a manifest which only specifies its version.
+     */
+    static Manifest manifest()
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        return manifest;
+    }
+
+    /**
+     * Creates a temporary jar file with the given manifest containing the class files of the given classes.
+     */
+    static File createJar(Manifest manifest, Class<?>... classes) throws IOException
+    {
+        File jar = File.createTempFile("plugin", ".jar");
+        jar.deleteOnExit();
+        writeJar(jar, manifest, classes);
+        return jar;
+    }
+
+    /**
+     * Writes a jar file with the given manifest containing the class files of the given classes.
+     */
+    static void writeJar(File jar, Manifest manifest, Class<?>... classes) throws IOException
+    {
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar.toPath()), manifest))
+        {
+            for (Class<?> clazz : classes)
+            {
+                write(jos, entryName(clazz), readClass(clazz));
+            }
+        }
+    }
+
+    /**
+     * Adds an entry with the given content to a jar file.
+     */
+    static void write(JarOutputStream jos, String name, byte[] content) throws IOException
+    {
+        jos.putNextEntry(new JarEntry(name));
+        jos.write(content);
+        jos.closeEntry();
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
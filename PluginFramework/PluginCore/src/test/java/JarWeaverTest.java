@@ -0,0 +1,61 @@
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.core.classloader.JarWeaver;
+import at.rovo.core.util.ClassFileInspector;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class JarWeaverTest
+{
+    private static final String INSTRUMENTED = "Lat/rovo/core/injection/Instrumented;";
+
+    @Test
+    public void testWeave() throws Exception
+    {
+        File jar = File.createTempFile("plugin", ".jar");
+        jar.deleteOnExit();
+        Manifest manifest = JarFixtures.manifest();
+        manifest.getMainAttributes().putValue("Plugin-Class", Woven.class.getName());
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar.toPath()), manifest))
+        {
+            JarFixtures.write(jos, JarFixtures.entryName(Woven.class), JarFixtures.readClass(Woven.class));
+            JarFixtures.write(jos, JarFixtures.entryName(Plain.class), JarFixtures.readClass(Plain.class));
+            JarFixtures.write(jos, "config.properties", "key=value".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertEquals(1, new JarWeaver("asm").weave(jar));
+        try (JarFile wovenJar = new JarFile(jar))
+        {
+            Assert.assertEquals(Woven.class.getName(),
+                                wovenJar.getManifest().getMainAttributes().getValue("Plugin-Class"));
+            byte[] woven = JarFixtures.read(wovenJar, JarFixtures.entryName(Woven.class));
+            Assert.assertTrue(ClassFileInspector.getClassAnnotations(woven).contains(INSTRUMENTED));
+            Assert.assertArrayEquals(JarFixtures.readClass(Plain.class),
+                                     JarFixtures.read(wovenJar, JarFixtures.entryName(Plain.class)));
+            Assert.assertEquals("key=value",
+                                new String(JarFixtures.read(wovenJar, "config.properties"), StandardCharsets.UTF_8));
+        }
+
+        // woven components are left untouched
+        Assert.assertEquals(0, new JarWeaver("asm").weave(jar));
+    }
+
+    @Component
+    public static class Woven
+    {
+        @ComponentId
+        private Long id;
+    }
+
+    public static class Plain
+    {
+
+    }
+}
@@ -0,0 +1,93 @@
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.ScopeType;
+import at.rovo.common.plugin.IPlugin;
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.JarWeaver;
+import at.rovo.core.classloader.PluginIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.jar.Manifest;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PluginIndexTest
+{
+    @Test
+    public void testIndexOfWovenJar() throws Exception
+    {
+        Manifest manifest = JarFixtures.manifest();
+        manifest.getMainAttributes().putValue("Plugin-Class", Plugin.class.getName());
+        manifest.getMainAttributes().putValue("Export", Service.class.getName());
+        manifest.getMainAttributes().putValue("Class-Loading", "child-first");
+        File jar = JarFixtures.createJar(manifest, Plugin.class, Service.class, ServiceImpl.class, SpecialService.class);
+
+        new JarWeaver("asm").weave(jar);
+        PluginIndex index = PluginIndex.read(JarSnapshot.create(jar).read(PluginIndex.ENTRY_NAME));
+
+        Assert.assertEquals(Arrays.asList(Plugin.class.getName(), Service.class.getName(),
+                                          ServiceImpl.class.getName(), SpecialService.class.getName()),
+                            index.getClassNames());
+        Assert.assertEquals(Plugin.class.getName(), index.getPluginClass());
+        Assert.assertEquals(Service.class.getName(), index.getAttributes().getValue("Export"));
+        Assert.assertEquals("child-first", index.getAttributes().getValue("Class-Loading"));
+        Assert.assertNull(index.getAttributes().getValue("Requires"));
+
+        Assert.assertEquals(Object.class.getName(), index.getSuperclass(ServiceImpl.class.getName()));
+        Assert.assertEquals(ServiceImpl.class.getName(), index.getSuperclass(SpecialService.class.getName()));
+        Assert.assertEquals(Collections.singletonList(Service.class.getName()),
+                            index.getInterfaces(ServiceImpl.class.getName()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(ServiceImpl.class.getName(), SpecialService.class.getName())),
+                            new HashSet<>(index.findSubtypes(Service.class.getName())));
+
+        Assert.assertEquals(ScopeType.PROTOTYPE, index.getScope(ServiceImpl.class.getName()));
+        Assert.assertNull(index.getScope(SpecialService.class.getName()));
+        Assert.assertNull(index.getScope(Plugin.class.getName()));
+    }
+
+    @Test
+    public void testEntryPointWithoutManifestAttribute() throws Exception
+    {
+        Manifest manifest = JarFixtures.manifest();
+        File jar = JarFixtures.createJar(manifest, Plugin.class, Service.class);
+
+        PluginIndex index = PluginIndex.read(PluginIndex.create(JarSnapshot.create(jar)).toByteArray());
+        Assert.assertEquals(Plugin.class.getName(), index.getPluginClass());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidIndex() throws Exception
+    {
+        PluginIndex.read(new byte[] {1, 2, 3, 4, 5});
+    }
+
+    public static class Plugin implements IPlugin
+    {
+        @Override
+        public void execute()
+        {
+
+        }
+    }
+
+    public interface Service
+    {
+
+    }
+
+    @Component
+    public static class ServiceImpl implements Service
+    {
+        @ComponentId
+        private Long id;
+    }
+
+    public static class SpecialService extends ServiceImpl
+    {
+
+    }
+}
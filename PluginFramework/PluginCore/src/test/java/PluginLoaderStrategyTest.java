@@ -0,0 +1,82 @@
+import at.rovo.core.classloader.JarSnapshot;
+import at.rovo.core.classloader.PluginLoaderStrategy;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PluginLoaderStrategyTest
+{
+    private static final String RESOURCE = "config/plugin.properties";
+
+    @Test
+    public void testSnapshotIsIndependentOfTheJarFile() throws Exception
+    {
+        File jar = File.createTempFile("plugin", ".jar");
+        jar.deleteOnExit();
+        writeJar(jar, Original.class, "original");
+        PluginLoaderStrategy strategy = new PluginLoaderStrategy(jar.toURI().toURL(), JarSnapshot.create(jar));
+
+        // overwriting the jar file after the snapshot got taken does not affect the classes and resources served
+        writeJar(jar, Replacement.class, "replacement");
+
+        Assert.assertTrue(strategy.containsClass(Original.class.getName()));
+        Assert.assertFalse(strategy.containsClass(Replacement.class.getName()));
+        Assert.assertArrayEquals(JarFixtures.readClass(Original.class),
+                                 strategy.findClassBytes(Original.class.getName()));
+        Assert.assertNull(strategy.findClassBytes(Replacement.class.getName()));
+
+        Assert.assertEquals("original", read(strategy.findResourceAsStream(RESOURCE)));
+        URL url = strategy.findResource(RESOURCE);
+        Assert.assertEquals("original", read(url.openStream()));
+        List<URL> urls = Collections.list(strategy.findResources(RESOURCE));
+        Assert.assertEquals(Collections.singletonList(url), urls);
+        Assert.assertEquals("original", read(urls.get(0).openStream()));
+    }
+
+    /**
+     * Writes a jar file containing the class file of the given class and a resource with the given content.
+     */
+    private static void writeJar(File jar, Class<?> clazz, String resource) throws IOException
+    {
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar.toPath()), JarFixtures.manifest()))
+        {
+            JarFixtures.write(jos, JarFixtures.entryName(clazz), JarFixtures.readClass(clazz));
+            JarFixtures.write(jos, RESOURCE, resource.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String read(InputStream stream) throws IOException
+    {
+        try (InputStream in = stream)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class Original
+    {
+
+    }
+
+    public static class Replacement
+    {
+
+    }
+}
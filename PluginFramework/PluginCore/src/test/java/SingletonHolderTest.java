@@ -0,0 +1,34 @@
+import at.rovo.core.injection.SingletonHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SingletonHolderTest
+{
+    @Test
+    public void testFirstPublishedInstanceWins()
+    {
+        SingletonHolder holder = new SingletonHolder(true);
+        Assert.assertNull(holder.get());
+
+        Object first = new Object();
+        Assert.assertSame(first, holder.publish(first));
+        Assert.assertSame(first, holder.publish(new Object()));
+        Assert.assertSame(first, holder.get());
+    }
+
+    @Test
+    public void testStrongRetention() throws Exception
+    {
+        SingletonHolder holder = new SingletonHolder(true);
+        holder.publish(new Object());
+
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        // a strongly retaining holder is the only reference to the instance, which must survive the collections
+        Assert.assertNotNull(holder.get());
+    }
+}
@@ -0,0 +1,61 @@
+package at.rovo.common.plugin;
+
+/**
+ * <p>Creates and injects instances of a single
+ * {@link at.rovo.common.annotations.Component} without reflection. An 
+ * injector is generated at compile time of a plug-in for every component
+ * as class named like the binary name of the component followed by
+ * {@link #INJECTOR_SUFFIX} in the package of the component.</p>
+ * <p>The injector only assigns the fields declared by the component itself,
+ * {@link at.rovo.common.annotations.Inject} annotated fields of super 
+ * classes are assigned by the injection controller.</p>
+ * 
+ * @param <T> The type of the component
+ * 
+ * @author Roman Vottner
+ * @version 0.1
+ */
+public interface IComponentInjector<T>
+{
+    /** The suffix appended to the binary name of a component to name its injector **/
+    String INJECTOR_SUFFIX = "$$Injector";
+
+    /**
+     * <p>Creates a new instance of the component via its default 
+     * constructor.</p>
+     * 
+     * @return The new instance or null if the component does not declare an 
+     *         accessible default constructor
+     */
+    T newInstance();
+
+    /**
+     * <p>Assigns the instances resolved by the provided resolver to all 
+     * {@link at.rovo.common.annotations.Inject} annotated fields declared by
+     * the component.</p>
+     * 
+     * @param component The component to inject
+     * @param resolver The resolver of the instances to inject
+     * @throws InjectionException If a required injection fails
+     */
+    void inject(T component, IInjectionResolver resolver) throws InjectionException;
+
+    /**
+     * <p>Returns the value of the 
+     * {@link at.rovo.common.annotations.ComponentId} annotated field of the
+     * component.</p>
+     * 
+     * @param component The component to return the id of
+     * @return The id of the component or null if it was not yet assigned
+     */
+    Long getComponentId(T component);
+
+    /**
+     * <p>Assigns the {@link at.rovo.common.annotations.ComponentId} 
+     * annotated field of the component.</p>
+     * 
+     * @param component The component to assign the id to
+     * @param id The id to assign
+     */
+    void setComponentId(T component, Long id);
+}
@@ -0,0 +1,36 @@
+package at.rovo.common.plugin;
+
+/**
+ * <p>Resolves the values a {@link IComponentInjector} assigns to the fields
+ * of a component. The resolver is provided by the injection controller of
+ * the plug-in framework.</p>
+ * 
+ * @author Roman Vottner
+ * @version 0.1
+ */
+public interface IInjectionResolver
+{
+    /**
+     * <p>Resolves the initialized instance to inject into an
+     * {@link at.rovo.common.annotations.Inject} annotated field of a
+     * component.</p>
+     * 
+     * @param component The component declaring the field
+     * @param fieldName The name of the field to inject
+     * @return The instance to inject or null if the injection is not 
+     *         required and no instance could be resolved
+     * @throws InjectionException If the field is not annotated with 
+     *         {@link at.rovo.common.annotations.Inject} or a required 
+     *         injection fails
+     */
+    Object resolveInjection(Object component, String fieldName) throws InjectionException;
+
+    /**
+     * <p>Creates a new unique identifier which is assigned to the
+     * {@link at.rovo.common.annotations.ComponentId} annotated field of a
+     * component.</p>
+     * 
+     * @return The unique identifier
+     */
+    Long createComponentId();
+}
@@ -0,0 +1,451 @@
+package at.rovo.processor;
+
+import at.rovo.common.annotations.Component;
+import at.rovo.common.annotations.ComponentId;
+import at.rovo.common.annotations.Inject;
+import at.rovo.common.plugin.IComponentInjector;
+import at.rovo.common.plugin.IInjectionResolver;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * An annotation processor which generates an {@link IComponentInjector} for every {@link Component} annotated class
+ * at compile time of a plug-in. The injector is named like the binary name of the component followed by {@link
+ * IComponentInjector#INJECTOR_SUFFIX} and placed in the package of the component.
+ * <p/>
+ * The generated injector creates the component via its default constructor and assigns the {@link Inject} annotated
+ * fields declared by the component and its {@link ComponentId} with plain field writes or setter calls, which is why
+ * the injection controller neither has to weave an injector method into the component nor to access its members via
+ * reflection. A field is written via its setter if the component provides a public setter, which maps the name of the
+ * field starting with an upper letter prefixed with <em>set</em>. Otherwise the field is written directly.
+ * <p/>
+ * As the injector is an ordinary class of the plug-in, it can only access members which are not private. No injector
+ * is generated for components declaring private fields without an accessible setter; these are injected by the
+ * injection controller at runtime as before. A component which does not declare exactly one {@link ComponentId} field
+ * of type {@link Long} is reported as error, as it would be rejected by the injection controller anyway.
+ * <p/>
+ * Plug-ins enable the processor by adding the <em>PluginProcessor</em> artifact to their dependencies.
+ *
+ * @author Roman Vottner
+ */
+@SupportedAnnotationTypes({"at.rovo.common.annotations.Component", "at.rovo.common.annotations.Inject",
+                           "at.rovo.common.annotations.ComponentId"})
+public class ComponentInjectorProcessor extends AbstractProcessor
+{
+    /** The components an injector got generated for in previous rounds **/
+    private final Set<String> processed = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        for (TypeElement component : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(Component.class)))
+        {
+            if (component.getKind() != ElementKind.CLASS ||
+                !this.processed.add(component.getQualifiedName().toString()))
+            {
+                continue;
+            }
+            InjectorModel model = this.createModel(component);
+            if (model != null)
+            {
+                this.writeInjector(model);
+            }
+        }
+        // the annotations are left for further processors
+        return false;
+    }
+
+    /**
+     * Collects the members of a component the injector has to access.
+     *
+     * @param component
+     *         The component to generate the injector for
+     *
+     * @return The model of the injector or null if no injector can be generated for the component
+     */
+    private InjectorModel createModel(TypeElement component)
+    {
+        List<VariableElement> componentIds = new ArrayList<>();
+        List<VariableElement> injectFields = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(component.getEnclosedElements()))
+        {
+            if (field.getAnnotation(ComponentId.class) != null)
+            {
+                componentIds.add(field);
+            }
+            if (field.getAnnotation(Inject.class) != null)
+            {
+                injectFields.add(field);
+            }
+        }
+
+        // every "@Component" annotated class needs one(!) "@ComponentId" of type Long
+        if (componentIds.size() != 1)
+        {
+            this.printMessage(Diagnostic.Kind.ERROR, componentIds.isEmpty() ?
+                    "No field annotated with @ComponentId found." : "More than one @ComponentId-fields found.",
+                              component);
+            return null;
+        }
+        VariableElement componentId = componentIds.get(0);
+        if (!this.isSameType(componentId.asType(), Long.class))
+        {
+            this.printMessage(Diagnostic.Kind.ERROR,
+                              "Invalid ComponentId-Type found. ComponentId needs to be of type Long", componentId);
+            return null;
+        }
+
+        if (!this.isAccessible(component, component) || component.getNestingKind() == NestingKind.LOCAL ||
+            component.getNestingKind() == NestingKind.ANONYMOUS)
+        {
+            this.printMessage(Diagnostic.Kind.NOTE, "Component is not accessible, no injector generated", component);
+            return null;
+        }
+
+        InjectorModel model = new InjectorModel(component);
+        model.instantiable = this.isInstantiable(component);
+        model.componentIdReader = this.findReader(component, componentId);
+        model.componentIdWriter = this.findWriter(component, componentId);
+        if (model.componentIdReader == null || model.componentIdWriter == null)
+        {
+            this.printMessage(Diagnostic.Kind.NOTE, "@ComponentId field is neither accessible nor has accessor " +
+                                                    "methods, no injector generated", componentId);
+            return null;
+        }
+        for (VariableElement field : injectFields)
+        {
+            // primitives can't be components and are therefore never injected
+            if (field.asType().getKind().isPrimitive())
+            {
+                continue;
+            }
+            String writer = field.getModifiers().contains(Modifier.STATIC) ? null : this.findWriter(component, field);
+            if (writer == null)
+            {
+                this.printMessage(Diagnostic.Kind.NOTE, "@Inject field is neither accessible nor has a setter, no " +
+                                                        "injector generated", field);
+                return null;
+            }
+            model.injections.add(new Injection(field.getSimpleName().toString(), this.getTypeName(field), writer));
+        }
+        return model;
+    }
+
+    /**
+     * Returns the expression reading a field of the component, which is either a direct read of the field or the
+     * invocation of its getter.
+     *
+     * @param component
+     *         The component declaring the field
+     * @param field
+     *         The field to read
+     *
+     * @return The expression reading the field of <em>component</em> or null if the field can't be read
+     */
+    private String findReader(TypeElement component, VariableElement field)
+    {
+        if (this.isAccessible(field, component))
+        {
+            return "component." + field.getSimpleName();
+        }
+        String getter = "get" + this.capitalize(field.getSimpleName().toString());
+        for (ExecutableElement method : ElementFilter.methodsIn(this.processingEnv.getElementUtils()
+                                                                    .getAllMembers(component)))
+        {
+            if (method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty() &&
+                !method.getModifiers().contains(Modifier.STATIC) && this.isAccessible(method, component) &&
+                this.processingEnv.getTypeUtils().isSameType(method.getReturnType(), field.asType()))
+            {
+                return "component." + getter + "()";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the statement prefix writing a field of the component, which is completed by the value to assign and
+     * the closing characters. Like the injection controller the public setter of a field is preferred over writing the
+     * field directly.
+     *
+     * @param component
+     *         The component declaring the field
+     * @param field
+     *         The field to write
+     *
+     * @return The statement writing the field of <em>component</em> or null if the field can't be written
+     */
+    private String findWriter(TypeElement component, VariableElement field)
+    {
+        String setter = "set" + this.capitalize(field.getSimpleName().toString());
+        String accessibleSetter = null;
+        for (ExecutableElement method : ElementFilter.methodsIn(this.processingEnv.getElementUtils()
+                                                                    .getAllMembers(component)))
+        {
+            if (method.getSimpleName().contentEquals(setter) && method.getParameters().size() == 1 &&
+                !method.getModifiers().contains(Modifier.STATIC) && this.isAccessible(method, component) &&
+                this.processingEnv.getTypeUtils().isSameType(
+                        this.processingEnv.getTypeUtils().erasure(method.getParameters().get(0).asType()),
+                        this.processingEnv.getTypeUtils().erasure(field.asType())))
+            {
+                if (method.getModifiers().contains(Modifier.PUBLIC))
+                {
+                    return "component." + setter + "(%s);";
+                }
+                accessibleSetter = "component." + setter + "(%s);";
+            }
+        }
+        if (this.isAccessible(field, component) && !field.getModifiers().contains(Modifier.FINAL))
+        {
+            return "component." + field.getSimpleName() + " = %s;";
+        }
+        return accessibleSetter;
+    }
+
+    /**
+     * Checks if the component can be created via a <code>new</code> expression within its package.
+     *
+     * @param component
+     *         The component to check
+     *
+     * @return true if the component is a concrete top level or static nested class with an accessible default
+     *         constructor
+     */
+    private boolean isInstantiable(TypeElement component)
+    {
+        if (component.getModifiers().contains(Modifier.ABSTRACT) ||
+            (component.getNestingKind() == NestingKind.MEMBER && !component.getModifiers().contains(Modifier.STATIC)))
+        {
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(component.getEnclosedElements()))
+        {
+            if (constructor.getParameters().isEmpty())
+            {
+                return this.isAccessible(constructor, component);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the given element can be accessed by a class within the package of the component. Protected members
+     * inherited from classes of further packages are therefore not accessible.
+     *
+     * @param element
+     *         The type or member to check
+     * @param component
+     *         The component whose injector accesses the element
+     *
+     * @return true if the element and its enclosing types are accessible from within the package of the component
+     */
+    private boolean isAccessible(Element element, TypeElement component)
+    {
+        for (Element e = element; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement())
+        {
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+            {
+                return false;
+            }
+            if (e == element && !e.getModifiers().contains(Modifier.PUBLIC) && (e.getKind().isField() ||
+                    e.getKind() == ElementKind.METHOD || e.getKind() == ElementKind.CONSTRUCTOR))
+            {
+                // package-private and protected members are only accessible if they are declared in the same package
+                // as the component, which is the case for all members declared by the component itself
+                PackageElement declaringPackage = this.processingEnv.getElementUtils().getPackageOf(e);
+                if (!declaringPackage.equals(this.processingEnv.getElementUtils().getPackageOf(component)))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the source of the injector of a component.
+     *
+     * @param model
+     *         The model of the injector to write
+     */
+    private void writeInjector(InjectorModel model)
+    {
+        String componentType = model.component.getQualifiedName().toString();
+        String injectorName = model.getInjectorName();
+        String qualifiedName = model.packageName.isEmpty() ? injectorName : model.packageName + "." + injectorName;
+
+        StringBuilder sb = new StringBuilder();
+        if (!model.packageName.isEmpty())
+        {
+            sb.append("package ").append(model.packageName).append(";\n\n");
+        }
+        sb.append("/**\n");
+        sb.append(" * Injector of {@link ").append(componentType).append("} generated by ");
+        sb.append(this.getClass().getName()).append(" - do not edit.\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(injectorName).append(" implements ");
+        sb.append(IComponentInjector.class.getName()).append("<").append(componentType).append(">\n{\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public ").append(componentType).append(" newInstance()\n    {\n");
+        sb.append("        return ").append(model.instantiable ? "new " + componentType + "()" : "null").append(";\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public void inject(").append(componentType).append(" component, ");
+        sb.append(IInjectionResolver.class.getName()).append(" resolver)\n    {\n");
+        if (!model.injections.isEmpty())
+        {
+            sb.append("        Object value;\n");
+        }
+        for (Injection injection : model.injections)
+        {
+            sb.append("        value = resolver.resolveInjection(component, \"").append(injection.fieldName);
+            sb.append("\");\n");
+            sb.append("        if (value != null)\n        {\n");
+            sb.append("            ").append(String.format(injection.writer, "(" + injection.type + ") value"));
+            sb.append("\n");
+            sb.append("        }\n");
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public Long getComponentId(").append(componentType).append(" component)\n    {\n");
+        sb.append("        return ").append(model.componentIdReader).append(";\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public void setComponentId(").append(componentType).append(" component, Long id)\n    {\n");
+        sb.append("        ").append(String.format(model.componentIdWriter, "id")).append("\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        try (Writer writer = this.processingEnv.getFiler().createSourceFile(qualifiedName, model.component)
+                                               .openWriter())
+        {
+            writer.write(sb.toString());
+        }
+        catch (IOException ioEx)
+        {
+            this.printMessage(Diagnostic.Kind.ERROR, "Could not write injector " + qualifiedName + ": " +
+                                                     ioEx.getLocalizedMessage(), model.component);
+        }
+    }
+
+    /**
+     * Returns the name of the type of a field as used within a cast. Type arguments are erased, as the value to cast
+     * is resolved at runtime.
+     *
+     * @param field
+     *         The field to return the type name of
+     *
+     * @return The erased type of the field
+     */
+    private String getTypeName(VariableElement field)
+    {
+        return this.processingEnv.getTypeUtils().erasure(field.asType()).toString();
+    }
+
+    /**
+     * Checks if a type mirror denotes the given class.
+     */
+    private boolean isSameType(TypeMirror type, Class<?> clazz)
+    {
+        return type.getKind() == TypeKind.DECLARED && this.processingEnv.getTypeUtils().isSameType(
+                type, this.processingEnv.getElementUtils().getTypeElement(clazz.getCanonicalName()).asType());
+    }
+
+    private String capitalize(String name)
+    {
+        return name.substring(0, 1).toUpperCase() + name.substring(1);
+    }
+
+    private void printMessage(Diagnostic.Kind kind, String message, Element element)
+    {
+        this.processingEnv.getMessager().printMessage(kind, message, element);
+    }
+
+    /**
+     * The members of a component accessed by its generated injector.
+     */
+    private final class InjectorModel
+    {
+        /** The component to generate the injector for **/
+        private final TypeElement component;
+        /** The package of the component **/
+        private final String packageName;
+        /** Whether the component can be instantiated by the injector **/
+        private boolean instantiable;
+        /** The expression reading the {@link ComponentId} field **/
+        private String componentIdReader;
+        /** The statement writing the {@link ComponentId} field **/
+        private String componentIdWriter;
+        /** The fields to inject **/
+        private final List<Injection> injections = new ArrayList<>();
+
+        private InjectorModel(TypeElement component)
+        {
+            this.component = component;
+            this.packageName = processingEnv.getElementUtils().getPackageOf(component).getQualifiedName().toString();
+        }
+
+        /**
+         * Returns the simple name of the injector, which is the binary name of the component without its package
+         * followed by {@link IComponentInjector#INJECTOR_SUFFIX}.
+         */
+        private String getInjectorName()
+        {
+            String binaryName = processingEnv.getElementUtils().getBinaryName(this.component).toString();
+            if (!this.packageName.isEmpty())
+            {
+                binaryName = binaryName.substring(this.packageName.length() + 1);
+            }
+            return binaryName + IComponentInjector.INJECTOR_SUFFIX;
+        }
+    }
+
+    /**
+     * A single {@link Inject} annotated field assigned by the generated injector.
+     */
+    private static final class Injection
+    {
+        /** The name of the field **/
+        private final String fieldName;
+        /** The erased type of the field the injected value is casted to **/
+        private final String type;
+        /** The statement writing the field **/
+        private final String writer;
+
+        private Injection(String fieldName, String type, String writer)
+        {
+            this.fieldName = fieldName;
+            this.type = type;
+            this.writer = writer;
+        }
+    }
+}
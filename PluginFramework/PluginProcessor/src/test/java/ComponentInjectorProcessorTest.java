@@ -0,0 +1,169 @@
+import at.rovo.common.plugin.IComponentInjector;
+import at.rovo.common.plugin.IInjectionResolver;
+import at.rovo.processor.ComponentInjectorProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ComponentInjectorProcessorTest
+{
+    @Test
+    public void testInjectorViaSetters() throws Exception
+    {
+        Path dir = this.compile("test.Service",
+                                "package test;\n" +
+                                "import at.rovo.common.annotations.*;\n" +
+                                "@Component\n" +
+                                "public class Service {\n" +
+                                "    @ComponentId private Long id;\n" +
+                                "    @Inject private Dependency dependency;\n" +
+                                "    public Long getId() { return id; }\n" +
+                                "    public void setId(Long id) { this.id = id; }\n" +
+                                "    public Dependency getDependency() { return dependency; }\n" +
+                                "    public void setDependency(Dependency dependency) { this.dependency = dependency; }\n" +
+                                "}\n",
+                                "test.Dependency",
+                                "package test;\n" +
+                                "import at.rovo.common.annotations.*;\n" +
+                                "@Component(scope = ScopeType.SINGLETON)\n" +
+                                "public class Dependency {\n" +
+                                "    @ComponentId Long id;\n" +
+                                "    private Dependency() { }\n" +
+                                "}\n");
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {dir.toUri().toURL()}))
+        {
+            IComponentInjector<Object> injector = this.createInjector(loader, "test.Service");
+            Object service = injector.newInstance();
+            Assert.assertNotNull(service);
+            Assert.assertNull(injector.getComponentId(service));
+            injector.setComponentId(service, 42L);
+            Assert.assertEquals(Long.valueOf(42L), injector.getComponentId(service));
+
+            // singletons with a private constructor are created by the injection controller
+            IComponentInjector<Object> dependencyInjector = this.createInjector(loader, "test.Dependency");
+            Assert.assertNull(dependencyInjector.newInstance());
+
+            Constructor<?> constructor = loader.loadClass("test.Dependency").getDeclaredConstructor();
+            constructor.setAccessible(true);
+            final Object dependency = constructor.newInstance();
+            final List<String> resolved = new ArrayList<>();
+            injector.inject(service, new IInjectionResolver()
+            {
+                @Override
+                public Object resolveInjection(Object component, String fieldName)
+                {
+                    resolved.add(fieldName);
+                    return dependency;
+                }
+
+                @Override
+                public Long createComponentId()
+                {
+                    return 1L;
+                }
+            });
+            Assert.assertEquals(Collections.singletonList("dependency"), resolved);
+            Assert.assertSame(dependency, service.getClass().getMethod("getDependency").invoke(service));
+        }
+    }
+
+    @Test
+    public void testNoInjectorForInaccessibleFields() throws Exception
+    {
+        Path dir = this.compile("test.Hidden",
+                                "package test;\n" +
+                                "import at.rovo.common.annotations.*;\n" +
+                                "@Component\n" +
+                                "public class Hidden {\n" +
+                                "    @ComponentId private Long id;\n" +
+                                "}\n");
+        Assert.assertFalse(Files.exists(dir.resolve("test/Hidden" + IComponentInjector.INJECTOR_SUFFIX + ".class")));
+    }
+
+    @Test
+    public void testMissingComponentId() throws Exception
+    {
+        List<Diagnostic<? extends JavaFileObject>> errors = this.compileWithErrors(
+                "test.Invalid",
+                "package test;\n" +
+                "@at.rovo.common.annotations.Component\n" +
+                "public class Invalid {\n" +
+                "}\n");
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals("No field annotated with @ComponentId found.", errors.get(0).getMessage(null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private IComponentInjector<Object> createInjector(ClassLoader loader, String component) throws Exception
+    {
+        Class<?> injector = loader.loadClass(component + IComponentInjector.INJECTOR_SUFFIX);
+        return (IComponentInjector<Object>) injector.getDeclaredConstructor().newInstance();
+    }
+
+    private Path compile(String... sources) throws IOException
+    {
+        Path dir = Files.createTempDirectory("processor");
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Assert.assertTrue(String.valueOf(diagnostics.getDiagnostics()), this.compile(dir, diagnostics, sources));
+        return dir;
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compileWithErrors(String... sources) throws IOException
+    {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Assert.assertFalse(this.compile(Files.createTempDirectory("processor"), diagnostics, sources));
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+        {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+            {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Compiles the given pairs of class names and sources into the given directory with the processor enabled.
+     */
+    private boolean compile(Path dir, DiagnosticCollector<JavaFileObject> diagnostics, String... sources)
+            throws IOException
+    {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < sources.length; i += 2)
+        {
+            Path file = dir.resolve(sources[i].replace('.', '/') + ".java");
+            Files.createDirectories(file.getParent());
+            Files.write(file, sources[i + 1].getBytes(StandardCharsets.UTF_8));
+            files.add(file.toFile());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null))
+        {
+            JavaCompiler.CompilationTask task = compiler.getTask(
+                    null, fileManager, diagnostics,
+                    Arrays.asList("-d", dir.toString(), "-classpath", System.getProperty("java.class.path")), null,
+                    fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Collections.singletonList(new ComponentInjectorProcessor()));
+            return task.call();
+        }
+    }
+}
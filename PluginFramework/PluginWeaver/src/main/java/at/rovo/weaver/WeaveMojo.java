@@ -0,0 +1,66 @@
+package at.rovo.weaver;
+
+import at.rovo.common.plugin.InjectionException;
+import at.rovo.core.classloader.JarWeaver;
+import java.io.File;
+import java.io.IOException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Weaves the components of the packaged plug-in jar ahead of time via a {@link JarWeaver}.
+ * <p/>
+ * The goal is bound to the <em>package</em> phase and runs after the jar got created, as long as it is declared after
+ * the jar plugin. The packaged jar is replaced by the woven one, which further contains an index of the plug-in's
+ * classes. Loading a pre-woven plug-in does therefore only require reading its classes and defining them.
+ *
+ * @author Roman Vottner
+ */
+@Mojo(name = "weave", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
+public class WeaveMojo extends AbstractMojo
+{
+    /** The plug-in jar to weave **/
+    @Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}.jar", required = true)
+    private File jarFile;
+
+    /** The name of the instrumentation engine to use, which is either <em>asm</em> or <em>javassist</em> **/
+    @Parameter(property = "at.rovo.core.instrumentation.engine", defaultValue = "asm")
+    private String engine;
+
+    /** Whether an index of the plug-in should be added to the jar **/
+    @Parameter(property = "plugin-weaver.index", defaultValue = "true")
+    private boolean index;
+
+    /** Whether weaving should be skipped **/
+    @Parameter(property = "plugin-weaver.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException
+    {
+        if (this.skip)
+        {
+            this.getLog().info("Skipping weaving of " + this.jarFile);
+            return;
+        }
+        if (!this.jarFile.isFile())
+        {
+            throw new MojoExecutionException("Plug-in jar " + this.jarFile + " does not exist. Declare the weaver " +
+                                             "after the jar plugin in order to run after the jar got packaged.");
+        }
+        try
+        {
+            JarWeaver weaver = new JarWeaver(this.engine);
+            weaver.setIndexing(this.index);
+            int woven = weaver.weave(this.jarFile);
+            this.getLog().info("Wove " + woven + " components of " + this.jarFile.getName());
+        }
+        catch (IOException | InjectionException | IllegalArgumentException ex)
+        {
+            throw new MojoExecutionException("Could not weave " + this.jarFile + ": " + ex.getLocalizedMessage(), ex);
+        }
+    }
+}